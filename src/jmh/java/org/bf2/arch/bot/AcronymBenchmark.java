@@ -0,0 +1,72 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bf2.arch.bot;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.bf2.arch.bot.model.patch.FilePatch;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the heuristic for finding undefined acronyms ({@link AcronymLinter}):
+ * collecting the acronyms defined in a record, and checking the added lines of a patch against them.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AcronymBenchmark {
+
+    /** Words of text: a short record, and a long one */
+    @Param({"2000", "20000"})
+    int words;
+
+    String text;
+    FilePatch patch;
+    Set<String> defined;
+
+    @Setup
+    public void setup() {
+        text = new BenchmarkCorpus(42).prose(words);
+        patch = FilePatch.parsePatch(BenchmarkCorpus.additionPatch(text.replace(". ", ".\n")));
+        defined = AcronymLinter.definedAcronyms(text);
+    }
+
+    @Benchmark
+    public Set<String> definedAcronyms() {
+        return AcronymLinter.definedAcronyms(text);
+    }
+
+    @Benchmark
+    public List<AcronymLinter.Finding> undefinedAcronyms() {
+        return AcronymLinter.undefinedAcronyms(patch, defined);
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bf2.arch.bot;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates realistic, but reproducible, record pages and the patches GitHub would give for changes to them,
+ * for the benchmarks to work on.
+ */
+final class BenchmarkCorpus {
+
+    private static final String[] WORDS = {
+        "the", "service", "should", "use", "a", "managed", "instance", "of", "for", "each", "tenant",
+        "which", "means", "we", "need", "to", "consider", "how", "data", "is", "replicated", "between",
+        "zones", "and", "what", "happens", "when", "broker", "fails", "over", "control", "plane", "operator",
+        "reconciles", "cluster", "state", "with", "quota", "limits", "on", "connectors", "registry", "schema",
+        "latency", "throughput", "cost", "option", "decision", "because", "it", "is", "simpler", "than",
+    };
+
+    /** Acronyms, together with their expansions. */
+    private static final String[][] ACRONYMS = {
+        {"SLO", "Service Level Objective"},
+        {"AZ", "Availability Zone"},
+        {"CRD", "Custom Resource Definition"},
+        {"TLS", "Transport Layer Security"},
+        {"OLM", "Operator Lifecycle Manager"},
+        {"RBAC", "Role Based Access Control"},
+        {"MTTR", "Mean Time To Recovery"},
+    };
+
+    private static final String[] SECTIONS = {
+        "Context and Problem Statement", "Decision Drivers", "Considered Options",
+        "Decision Outcome", "Positive Consequences", "Negative Consequences", "Links",
+    };
+
+    private final Random random;
+
+    BenchmarkCorpus(long seed) {
+        this.random = new Random(seed);
+    }
+
+    /**
+     * @return The front matter of a record, with the same fields as the templates.
+     */
+    String frontMatter(int num, String status) {
+        StringBuilder sb = new StringBuilder("---\n")
+                .append("num: ").append(num).append('\n')
+                .append("title: \"").append(sentence(6, false)).append("\"\n")
+                .append("status: \"").append(status).append("\"\n")
+                .append("authors:\n");
+        for (int i = 0; i < 3; i++) {
+            sb.append("- \"").append(word()).append(word()).append("\"\n");
+        }
+        sb.append("tags:\n");
+        for (int i = 0; i < 4; i++) {
+            sb.append("- \"").append(word()).append("\"\n");
+        }
+        sb.append("applies_padrs: [").append(random.nextInt(40)).append(", ").append(random.nextInt(40)).append("]\n")
+                .append("applies_patterns: [").append(random.nextInt(20)).append("]\n")
+                .append("---\n");
+        return sb.toString();
+    }
+
+    /**
+     * @return The body of a record: asciidoc sections of paragraphs which define, and use, acronyms.
+     */
+    String body(int paragraphsPerSection) {
+        StringBuilder sb = new StringBuilder();
+        for (String section : SECTIONS) {
+            sb.append("\n== ").append(section).append("\n\n");
+            for (int p = 0; p < paragraphsPerSection; p++) {
+                int sentences = 3 + random.nextInt(4);
+                for (int s = 0; s < sentences; s++) {
+                    sb.append(sentence(8 + random.nextInt(12), true)).append(' ');
+                }
+                sb.append("\n\n");
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return A whole record page.
+     */
+    String page(int num, String status, int paragraphsPerSection) {
+        return frontMatter(num, status) + body(paragraphsPerSection);
+    }
+
+    /**
+     * @return A text of about the given number of words, starting with a word, in which some acronyms
+     * are defined before they're used and some aren't.
+     */
+    String prose(int words) {
+        StringBuilder sb = new StringBuilder();
+        while (words > 0) {
+            int n = 8 + random.nextInt(12);
+            sb.append(sentence(n, true)).append(' ');
+            words -= n;
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return The patch GitHub would show for a change to the given page which rewrites the status and
+     * about one line in {@code 1/changeEvery} of the body, with the usual three lines of context.
+     */
+    String modificationPatch(String page, int changeEvery) {
+        String[] lines = page.split("\n");
+        List<Integer> changes = new ArrayList<>();
+        for (int i = 0; i < lines.length; i++) {
+            if (lines[i].startsWith("status:") || (i > 12 && random.nextInt(changeEvery) == 0)) {
+                changes.add(i);
+            }
+        }
+        StringBuilder patch = new StringBuilder();
+        int delta = 0;
+        int c = 0;
+        while (c < changes.size()) {
+            // Changes whose context overlaps go in the same hunk
+            int first = changes.get(c);
+            int last = first;
+            int n = c + 1;
+            while (n < changes.size() && changes.get(n) - last <= 6) {
+                last = changes.get(n);
+                n++;
+            }
+            int start = Math.max(0, first - 3);
+            int end = Math.min(lines.length - 1, last + 3);
+            int changed = n - c;
+            int oldLength = end - start + 1;
+            int newLength = oldLength + changed;
+            patch.append("@@ -").append(start + 1).append(',').append(oldLength)
+                    .append(" +").append(start + 1 + delta).append(',').append(newLength)
+                    .append(" @@").append(start > 0 ? " " + lines[start - 1] : "").append('\n');
+            for (int i = start; i <= end; i++) {
+                if (c < n && changes.get(c) == i) {
+                    patch.append('-').append(lines[i]).append('\n');
+                    if (lines[i].startsWith("status:")) {
+                        patch.append("+status: \"Accepted\"\n");
+                    } else {
+                        patch.append('+').append(sentence(10, true)).append('\n');
+                        patch.append('+').append(sentence(10, true)).append('\n');
+                    }
+                    c++;
+                } else {
+                    patch.append(' ').append(lines[i]).append('\n');
+                }
+            }
+            delta += changed;
+        }
+        return patch.toString();
+    }
+
+    /**
+     * @return The patch GitHub would show for the addition of the given page.
+     */
+    static String additionPatch(String page) {
+        String[] lines = page.split("\n");
+        StringBuilder patch = new StringBuilder("@@ -0,0 +1,").append(lines.length).append(" @@\n");
+        for (String line : lines) {
+            patch.append('+').append(line).append('\n');
+        }
+        return patch.toString();
+    }
+
+    /**
+     * @return The paths of the files changed by a PR: mostly the site's sources and assets,
+     * with a record page in about 1 in 20.
+     */
+    String filePaths(int files) {
+        String[] dirs = {"_layouts", "_includes", "assets/images", "assets/css", "docs/guides", "_data", "scripts"};
+        String[] recordDirs = {"_adr", "_ap", "_padr"};
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < files; i++) {
+            if (random.nextInt(20) == 0) {
+                String recordDir = recordDirs[random.nextInt(recordDirs.length)];
+                sb.append(recordDir).append('/').append(random.nextInt(120)).append('/')
+                        .append(random.nextBoolean() ? "index.adoc" : "diagram.png");
+            } else {
+                sb.append(dirs[random.nextInt(dirs.length)]).append('/')
+                        .append(word()).append('-').append(word()).append('-').append(i).append(".html");
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    private String sentence(int words, boolean acronyms) {
+        StringBuilder sb = new StringBuilder();
+        String first = word();
+        sb.append(Character.toUpperCase(first.charAt(0))).append(first, 1, first.length());
+        for (int i = 1; i < words; i++) {
+            sb.append(' ');
+            int r = random.nextInt(20);
+            if (acronyms && r == 0) {
+                String[] acronym = ACRONYMS[random.nextInt(ACRONYMS.length)];
+                // Defined in either style, or just used
+                switch (random.nextInt(3)) {
+                    case 0:
+                        sb.append(acronym[1]).append(" (").append(acronym[0]).append(')');
+                        break;
+                    case 1:
+                        sb.append(acronym[0]).append(" (").append(acronym[1]).append(')');
+                        break;
+                    default:
+                        sb.append(acronym[0]);
+                }
+            } else if (r == 1 && i < words - 1) {
+                sb.append(word()).append(',');
+            } else {
+                sb.append(word());
+            }
+        }
+        return sb.append('.').toString();
+    }
+
+    private String word() {
+        return WORDS[random.nextInt(WORDS.length)];
+    }
+}
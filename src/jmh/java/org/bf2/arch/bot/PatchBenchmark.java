@@ -0,0 +1,97 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bf2.arch.bot;
+
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import org.bf2.arch.bot.model.patch.FilePatch;
+import org.bf2.arch.bot.model.patch.Line;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks parsing the patches of changed records, and searching them, as {@link PrReviewFlow} does.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PatchBenchmark {
+
+    /** Paragraphs per section of the changed record: 40 gives a page of about 2000 lines. */
+    @Param({"4", "40"})
+    int paragraphs;
+
+    /** Whether the record was added, or modified */
+    @Param({"added", "modified"})
+    String change;
+
+    String patch;
+    FilePatch filePatch;
+    Pattern statusPattern;
+    List<Pattern> patterns;
+
+    @Setup
+    public void setup() {
+        BenchmarkCorpus corpus = new BenchmarkCorpus(42);
+        String page = corpus.page(17, "Draft", paragraphs);
+        patch = change.equals("added") ? BenchmarkCorpus.additionPatch(page) : corpus.modificationPatch(page, 8);
+        filePatch = FilePatch.parsePatch(patch);
+        statusPattern = Pattern.compile("^status:.*$");
+        patterns = List.of(statusPattern,
+                Pattern.compile("^title:.*$"),
+                Pattern.compile("\\b[A-Z0-9]{2,}\\b"));
+    }
+
+    @Benchmark
+    public FilePatch parsePatch() {
+        return FilePatch.parsePatch(patch);
+    }
+
+    @Benchmark
+    public Object linesMatching() {
+        return filePatch.linesMatching(EnumSet.of(Line.Type.ADD, Line.Type.CONTEXT), statusPattern)
+                .findFirst()
+                .orElse(null);
+    }
+
+    @Benchmark
+    public Object linesMatchingAll() {
+        return filePatch.linesMatching(EnumSet.of(Line.Type.ADD), patterns.get(2))
+                .collect(Collectors.toList());
+    }
+
+    @Benchmark
+    public List<List<FilePatch.LineMatch>> linesMatchingMany() {
+        return filePatch.linesMatching(EnumSet.of(Line.Type.ADD, Line.Type.CONTEXT), patterns);
+    }
+}
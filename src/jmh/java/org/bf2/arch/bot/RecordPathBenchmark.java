@@ -0,0 +1,100 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bf2.arch.bot;
+
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.bf2.arch.bot.model.record.RecordId;
+import org.bf2.arch.bot.model.record.RecordPaths;
+import org.bf2.arch.bot.model.record.RecordType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks finding the records touched by the files of a PR, as
+ * {@link ArchReviewStateMachineFlow#touchesRecord} and {@link PrReviewFlow} do.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RecordPathBenchmark {
+
+    /** Files in the PR: a typical PR, and a large infrastructure change */
+    @Param({"20", "3000"})
+    int files;
+
+    String[] paths;
+
+    @Setup
+    public void setup() {
+        paths = new BenchmarkCorpus(42).filePaths(files).split("\n");
+    }
+
+    @Benchmark
+    public EnumSet<RecordType> touchedRecordTypes() {
+        EnumSet<RecordType> touched = EnumSet.noneOf(RecordType.class);
+        for (String path : paths) {
+            RecordId recordId = RecordPaths.recordOf(path);
+            if (recordId != null) {
+                touched.add(recordId.recordType());
+            }
+        }
+        return touched;
+    }
+
+    @Benchmark
+    public void touchedRecordPaths(Blackhole blackhole) {
+        for (String path : paths) {
+            RecordId recordId = RecordPaths.recordOf(path);
+            if (recordId != null) {
+                blackhole.consume(recordId.repoPath());
+            }
+        }
+    }
+
+    /** The baseline: what the flows used to do, compiling a regex per record type per file. */
+    @Benchmark
+    public EnumSet<RecordType> touchedRecordTypesByRegex() {
+        EnumSet<RecordType> touched = EnumSet.noneOf(RecordType.class);
+        for (String path : paths) {
+            for (RecordType recordType : RecordType.values()) {
+                Pattern p = Pattern.compile(recordType.repoDir + "/(?<num>[0-9]+)/index.adoc");
+                Matcher matcher = p.matcher(path);
+                if (matcher.matches()) {
+                    touched.add(recordType);
+                }
+            }
+        }
+        return touched;
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bf2.arch.bot;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.bf2.arch.bot.model.patch.FilePatch;
+import org.bf2.arch.bot.model.patch.Line;
+
+/**
+ * Finds acronyms (and initialisms) which a PR adds to a record without them being defined in it.
+ *
+ * An acronym is a word of at least two capital letters and digits, with at least one letter.
+ * It's defined where it's written out in full just before or just after it, for example
+ * {@code Three Letter Acronym (TLA)} or {@code TLA (three letter acronym)}:
+ * that is where the initials of the words next to it spell it.
+ * An acronym defined anywhere in the record is taken to be defined everywhere in it,
+ * so only the added lines of the patch need to be checked, against the acronyms defined in the whole head page.
+ *
+ * Both passes are linear in the length of the text, and only allocate for the acronyms they find,
+ * so they can be run on every update of a PR, however large the record.
+ */
+final class AcronymLinter {
+
+    /** Acronyms which needn't be defined */
+    private static final Set<String> WELL_KNOWN = Set.of("OK");
+
+    /**
+     * An acronym used, but not defined.
+     */
+    static final class Finding {
+        final String acronym;
+        /** The position of the line it's first used on. */
+        final int position;
+
+        Finding(String acronym, int position) {
+            this.acronym = acronym;
+            this.position = position;
+        }
+
+        @Override
+        public String toString() {
+            return acronym + "@" + position;
+        }
+    }
+
+    private AcronymLinter() {
+    }
+
+    /**
+     * @param texts The texts of a record (nulls are ignored).
+     * @return The acronyms defined in the texts, including the well-known ones.
+     */
+    static Set<String> definedAcronyms(CharSequence... texts) {
+        Set<String> defined = new HashSet<>(WELL_KNOWN);
+        Words words = new Words();
+        for (CharSequence text : texts) {
+            if (text != null) {
+                words.clear();
+                words.scan(text);
+                addDefined(text, words, defined);
+            }
+        }
+        return defined;
+    }
+
+    private static void addDefined(CharSequence text, Words words, Set<String> defined) {
+        for (int w = 0; w < words.size; w++) {
+            int start = words.starts[w];
+            int end = words.ends[w];
+            if (isAcronym(text, start, end)
+                    && (initialsMatch(text, words, start, end, w + 1)
+                        || initialsMatch(text, words, start, end, w - (end - start)))) {
+                defined.add(text.subSequence(start, end).toString());
+            }
+        }
+    }
+
+    /**
+     * @return Whether the initials of the words starting at {@code firstWord} spell the acronym.
+     */
+    private static boolean initialsMatch(CharSequence text, Words words, int start, int end, int firstWord) {
+        int length = end - start;
+        if (firstWord < 0 || firstWord + length > words.size) {
+            return false;
+        }
+        for (int j = 0; j < length; j++) {
+            char initial = text.charAt(words.starts[firstWord + j]);
+            if (Character.toUpperCase(initial) != text.charAt(start + j)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param patch The patch of a record.
+     * @param defined The acronyms defined in the record, as of the head of the PR.
+     * @return The acronyms used in the added lines of the patch which are not defined,
+     * each with the position of the first line it's used on, in the order they're first used.
+     */
+    static List<Finding> undefinedAcronyms(FilePatch patch, Set<String> defined) {
+        List<Finding> findings = new ArrayList<>();
+        Set<String> found = new HashSet<>();
+        Words words = new Words();
+        for (int position = 0; position < patch.positions(); position++) {
+            Line line = patch.lineAt(position);
+            if (line == null || line.type() != Line.Type.ADD) {
+                continue;
+            }
+            CharSequence chars = line.chars();
+            words.clear();
+            words.scan(chars);
+            for (int w = 0; w < words.size; w++) {
+                int start = words.starts[w];
+                int end = words.ends[w];
+                if (isAcronym(chars, start, end)) {
+                    String acronym = chars.subSequence(start, end).toString();
+                    if (!defined.contains(acronym) && found.add(acronym)) {
+                        findings.add(new Finding(acronym, position));
+                    }
+                }
+            }
+        }
+        return findings;
+    }
+
+    private static boolean isAcronym(CharSequence text, int start, int end) {
+        if (end - start < 2) {
+            return false;
+        }
+        boolean letter = false;
+        for (int i = start; i < end; i++) {
+            char ch = text.charAt(i);
+            if (ch >= 'A' && ch <= 'Z') {
+                letter = true;
+            } else if (ch < '0' || ch > '9') {
+                return false;
+            }
+        }
+        return letter;
+    }
+
+    private static boolean isWordChar(char ch) {
+        return (ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z') || (ch >= '0' && ch <= '9') || ch == '_';
+    }
+
+    /**
+     * The bounds of the words of a text, in arrays which are reused from one text to the next.
+     */
+    private static final class Words {
+        int[] starts = new int[64];
+        int[] ends = new int[64];
+        int size;
+
+        void clear() {
+            size = 0;
+        }
+
+        void scan(CharSequence text) {
+            int length = text.length();
+            int i = 0;
+            while (i < length) {
+                if (!isWordChar(text.charAt(i))) {
+                    i++;
+                    continue;
+                }
+                int start = i;
+                while (i < length && isWordChar(text.charAt(i))) {
+                    i++;
+                }
+                if (size == starts.length) {
+                    starts = Arrays.copyOf(starts, size * 2);
+                    ends = Arrays.copyOf(ends, size * 2);
+                }
+                starts[size] = start;
+                ends[size] = i;
+                size++;
+            }
+        }
+    }
+}
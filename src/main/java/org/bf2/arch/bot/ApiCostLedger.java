@@ -0,0 +1,261 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bf2.arch.bot;
+
+import javax.enterprise.context.ApplicationScoped;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Metrics;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Attributes every GitHub request to the event which caused it (a webhook delivery, or a scheduled run)
+ * and logs what each event cost once it's been handled, as one line of {@code key=value} pairs, e.g.
+ * <pre>
+ * API cost: event=delivery:17 kind=webhook trigger=issue_comment.created handlers=onIssueComment
+ *   subject=foo/bar#123 calls=14 writes=4 cache_hits=2 github_ms=2130 duration_ms=3204
+ *   endpoints="GET /repos/{owner}/{repo}/contents/{path}=6, ..."
+ * </pre>
+ * An event which makes more calls than its budget ({@code bot.api-cost.call-budget} for a webhook delivery,
+ * {@code bot.api-cost.scheduled-call-budget} for a scheduled run) is logged as a warning instead,
+ * and counted in the {@value #OVER_BUDGET} metric.
+ *
+ * The {@linkplain Event#current() current event} is kept per thread, like the flow of {@link FlowMetrics},
+ * and {@link GitHubRequestMetrics} records each request against it.
+ */
+@ApplicationScoped
+public class ApiCostLedger {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ApiCostLedger.class);
+
+    static final String CALL_BUDGET = "bot.api-cost.call-budget";
+    static final String SCHEDULED_CALL_BUDGET = "bot.api-cost.scheduled-call-budget";
+
+    static final String CALLS = "arch_bot.api.cost.calls";
+    static final String OVER_BUDGET = "arch_bot.api.cost.over.budget";
+
+    static final String WEBHOOK = "webhook";
+    static final String SCHEDULED = "scheduled";
+
+    private static final ThreadLocal<Event> CURRENT = new ThreadLocal<>();
+
+    @ConfigProperty(name = CALL_BUDGET, defaultValue = "50")
+    int callBudget;
+
+    @ConfigProperty(name = SCHEDULED_CALL_BUDGET, defaultValue = "500")
+    int scheduledCallBudget;
+
+    private final AtomicLong deliveries = new AtomicLong();
+    private final AtomicLong runs = new AtomicLong();
+
+    /**
+     * The cost of one event so far.
+     */
+    final class Event {
+        final String id;
+        final String kind;
+        final String trigger;
+        private final Set<String> handlers = new LinkedHashSet<>();
+        private final Set<String> subjects = new LinkedHashSet<>();
+        private final long start = System.nanoTime();
+        private final AtomicBoolean finished = new AtomicBoolean();
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder writes = new LongAdder();
+        private final LongAdder cacheHits = new LongAdder();
+        private final LongAdder githubNanos = new LongAdder();
+        /** Keyed by method and endpoint */
+        private final Map<String, LongAdder> endpoints = new ConcurrentHashMap<>();
+
+        private Event(String id, String kind, String trigger) {
+            this.id = id;
+            this.kind = kind;
+            this.trigger = trigger;
+        }
+
+        /**
+         * Notes a handler which works for the event.
+         * @param handler The handler.
+         * @param subject The PR or issue it works on, or null.
+         */
+        synchronized void handledBy(String handler, String subject) {
+            handlers.add(handler);
+            if (subject != null) {
+                subjects.add(subject);
+            }
+        }
+
+        /**
+         * Records a request made to GitHub for the event (including conditional requests answered with
+         * {@code 304 Not Modified}).
+         * @param method The HTTP method.
+         * @param endpoint The {@linkplain GitHubRequestMetrics#endpoint endpoint}.
+         * @param write Whether the request {@linkplain GitHubRateLimiter#isWrite writes}.
+         * @param nanos How long the request took.
+         */
+        void record(String method, String endpoint, boolean write, long nanos) {
+            calls.increment();
+            if (write) {
+                writes.increment();
+            }
+            githubNanos.add(nanos);
+            endpoints.computeIfAbsent(method + " " + endpoint, k -> new LongAdder()).increment();
+        }
+
+        /**
+         * Records a response served from the HTTP cache for the event, which didn't need a request to GitHub.
+         */
+        void recordCacheHit() {
+            cacheHits.increment();
+        }
+
+        long calls() {
+            return calls.sum();
+        }
+
+        long writes() {
+            return writes.sum();
+        }
+
+        /**
+         * Makes this the current event of this thread, until the returned scope is closed.
+         */
+        Scope enter() {
+            return new Scope(this);
+        }
+
+        /**
+         * Finishes the event, logging its cost (only the first time it's called).
+         */
+        void finish() {
+            if (finished.compareAndSet(false, true)) {
+                ApiCostLedger.this.log(this);
+            }
+        }
+
+        @Override
+        public synchronized String toString() {
+            String endpoints = new TreeMap<>(this.endpoints).entrySet().stream()
+                    .map(entry -> entry.getKey() + "=" + entry.getValue().sum())
+                    .collect(Collectors.joining(", "));
+            return "event=" + id
+                    + " kind=" + kind
+                    + (trigger != null ? " trigger=" + trigger : "")
+                    + " handlers=" + String.join(",", handlers)
+                    + (!subjects.isEmpty() ? " subject=" + String.join(",", subjects) : "")
+                    + " calls=" + calls()
+                    + " writes=" + writes()
+                    + " cache_hits=" + cacheHits.sum()
+                    + " github_ms=" + TimeUnit.NANOSECONDS.toMillis(githubNanos.sum())
+                    + " duration_ms=" + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+                    + " endpoints=\"" + endpoints + "\"";
+        }
+    }
+
+    /**
+     * The time during which an event is the current event of a thread.
+     */
+    static final class Scope implements AutoCloseable {
+        private final Event previous;
+
+        private Scope(Event event) {
+            previous = CURRENT.get();
+            CURRENT.set(event);
+        }
+
+        @Override
+        public void close() {
+            if (previous != null) {
+                CURRENT.set(previous);
+            } else {
+                CURRENT.remove();
+            }
+        }
+    }
+
+    /**
+     * @return The event the current thread is working for, or null.
+     */
+    static Event current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * @return The given task, which will work for the current event on whichever thread it runs.
+     */
+    static <T> Callable<T> inCurrentEvent(Callable<T> task) {
+        Event event = CURRENT.get();
+        if (event == null) {
+            return task;
+        }
+        return () -> {
+            try (var scope = event.enter()) {
+                return task.call();
+            }
+        };
+    }
+
+    /**
+     * Starts recording the cost of a webhook delivery, which must {@linkplain Event#finish() finish}.
+     * @param trigger The event and action, e.g. {@code issue_comment.created}, or null if it's not known.
+     */
+    Event webhook(String trigger) {
+        return new Event("delivery:" + deliveries.incrementAndGet(), WEBHOOK, trigger);
+    }
+
+    /**
+     * Starts recording the cost of a scheduled run, which must {@linkplain Event#finish() finish}.
+     * @param handler The scheduled method.
+     */
+    Event scheduled(String handler) {
+        Event event = new Event("run:" + runs.incrementAndGet(), SCHEDULED, null);
+        event.handledBy(handler, null);
+        return event;
+    }
+
+    private void log(Event event) {
+        int budget = SCHEDULED.equals(event.kind) ? scheduledCallBudget : callBudget;
+        DistributionSummary.builder(CALLS)
+                .description("The GitHub requests made for each event")
+                .tag("kind", event.kind)
+                .register(Metrics.globalRegistry)
+                .record(event.calls());
+        if (budget > 0 && event.calls() > budget) {
+            Counter.builder(OVER_BUDGET)
+                    .description("The events which made more GitHub requests than their budget")
+                    .tag("kind", event.kind)
+                    .register(Metrics.globalRegistry)
+                    .increment();
+            LOG.warn("API cost over budget of {} calls: {}", budget, event);
+        } else {
+            LOG.info("API cost: {}", event);
+        }
+    }
+}
@@ -1,15 +1,23 @@
 package org.bf2.arch.bot;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
 
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 
 /**
  * Config file for the bot.
  * Lives in {@code .github/bf2-arch-bot.yml}.
+ * The fields are package-private, so Jackson is told to bind them directly,
+ * both for {@code @ConfigFile} and for {@link ConfigCache}.
  */
+@JsonAutoDetect(fieldVisibility = JsonAutoDetect.Visibility.ANY)
 public class ArchBotConfig {
 
     /**
@@ -33,6 +41,54 @@ public class ArchBotConfig {
      */
     String publishedUrl = "https://architecture.appservices.tech";
 
+    /**
+     * Terms which records shouldn't use (such as "Actors" or "Personas"), which PR reviews point out.
+     */
+    List<SuspectTerm> suspectTerms = new ArrayList<>();
+
+    /**
+     * A term which records shouldn't use.
+     */
+    @JsonAutoDetect(fieldVisibility = JsonAutoDetect.Visibility.ANY)
+    static class SuspectTerm {
+        /**
+         * The term, which is matched as a whole word (or words), ignoring case.
+         */
+        String term;
+
+        /**
+         * Why the term shouldn't be used, or what to use instead.
+         */
+        String reason;
+
+        SuspectTerm() {
+        }
+
+        SuspectTerm(String term, String reason) {
+            this.term = term;
+            this.reason = reason;
+        }
+
+        @Override
+        public String toString() {
+            return "SuspectTerm(" +
+                    "term='" + term + '\'' +
+                    ", reason='" + reason + '\'' +
+                    ')';
+        }
+    }
+
+    /**
+     * @return A SHA-1 of all the settings, which changes whenever any of them does.
+     */
+    String fingerprint() {
+        try {
+            return Util.hex(MessageDigest.getInstance("SHA-1").digest(toString().getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
     @Override
     public String toString() {
         return "ArchBotConfig(" +
@@ -40,6 +96,7 @@ public class ArchBotConfig {
                 ", stalledDiscussionPollTimeMins=" + stalledDiscussionPollTimeMins +
                 ", recordCreationApprovers=" + recordCreationApprovers +
                 ", publishedUrl='" + publishedUrl + '\'' +
+                ", suspectTerms=" + suspectTerms +
                 ')';
     }
 }
@@ -16,8 +16,10 @@
  */
 package org.bf2.arch.bot;
 
+import javax.inject.Inject;
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -32,6 +34,7 @@ import io.quarkiverse.githubapp.ConfigFile;
 import io.quarkiverse.githubapp.event.IssueComment;
 import io.quarkiverse.githubapp.event.PullRequest;
 import org.bf2.arch.bot.model.record.RecordId;
+import org.bf2.arch.bot.model.record.RecordPaths;
 import org.bf2.arch.bot.model.record.RecordType;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.kohsuke.github.GHEventPayload;
@@ -48,6 +51,21 @@ public class ArchReviewStateMachineFlow {
     @ConfigProperty(name = ENABLE, defaultValue = "false")
     boolean enabled;
 
+    @Inject
+    PullRequestContext prContext;
+
+    @Inject
+    ReviewTallyStore reviewTallies;
+
+    @Inject
+    CommentCommands commentCommands;
+
+    @Inject
+    EvaluationCache evaluations;
+
+    @Inject
+    FlowRunner runner;
+
     /**
      * <pre>
      * WHEN
@@ -70,19 +88,31 @@ public class ArchReviewStateMachineFlow {
             @PullRequest.ReadyForReview
             @PullRequest.Edited
             GHEventPayload.PullRequest pullRequestPayload,
-            @ConfigFile(Util.CONFIG_REPO_PATH) ArchBotConfig config) throws IOException {
+            @ConfigFile(Util.CONFIG_REPO_PATH) ArchBotConfig config) throws IOException, URISyntaxException {
         if (!enabled) {
             LOG.debug("Ignoring event: disabled due to {}=false", ENABLE);
             return;
         }
-        GHPullRequest pullRequest = pullRequestPayload.getPullRequest();
-        if (!pullRequest.isDraft()
+        runner.run(pullRequestPayload, pullRequestPayload.getNumber(), "classifyAndMaybeReviewers",
+                () -> classify(pullRequestPayload, config));
+    }
+
+    private void classify(GHEventPayload.PullRequest pullRequestPayload, ArchBotConfig config) throws IOException {
+        if (!pullRequestPayload.getPullRequest().isDraft()
                 && !Util.isThisBot(config, pullRequestPayload.getSender())) {
+            GHPullRequest pullRequest = prContext.pullRequest(pullRequestPayload);
             LOG.info("Processing PR#{}", pullRequest.getId());
-            Set<String> existingLabels = Util.existingLabels(pullRequest);
+            Set<String> existingLabels = prContext.labels(pullRequest);
             LOG.info("PR#{}: existing labels {}", pullRequest.getId(), existingLabels);
             Set<String> labels = new HashSet<>(existingLabels);
-            EnumSet<RecordType> touchedRecords = touchesRecord(pullRequest);
+            // Edits which don't change the commits (e.g. of the title) can't change which records are touched
+            String key = EvaluationCache.key(EvaluationCache.CLASSIFICATION, pullRequest, null);
+            // The cached set is shared by every event about the PR, so can't be changed
+            Set<RecordType> touchedRecords = evaluations.get(key);
+            if (touchedRecords == null) {
+                touchedRecords = Collections.unmodifiableSet(touchesRecord(pullRequest));
+                evaluations.put(key, touchedRecords);
+            }
             LOG.info("PR#{} touches {}", pullRequest.getId(), touchedRecords);
             if (!touchedRecords.isEmpty()) {
                 labels.remove(Labels.TYPE_INFRA);
@@ -99,7 +129,7 @@ public class ArchReviewStateMachineFlow {
                             break;
                     }
                 });
-                if (pullRequest.getRequestedReviewers().isEmpty()) {
+                if (prContext.requestedReviewers(pullRequest).isEmpty()) {
                     labels.add(Labels.STATE_NEEDS_REVIEWERS);
                 } else {
                     labels.remove(Labels.STATE_NEEDS_REVIEWERS);
@@ -114,12 +144,12 @@ public class ArchReviewStateMachineFlow {
 
             if (!existingLabels.equals(labels)) {
                 LOG.info("PR#{}: updating labels {}", pullRequest.getId(), labels);
-                Util.setLabels(pullRequest, labels);
+                prContext.setLabels(pullRequest, labels);
             } else {
                 LOG.info("PR#{}: unchanged labels", pullRequest.getId());
             }
         } else {
-            LOG.info("Ignoring PR#{}", pullRequest.getId());
+            LOG.info("Ignoring PR#{}", pullRequestPayload.getPullRequest().getId());
         }
     }
 
@@ -128,17 +158,15 @@ public class ArchReviewStateMachineFlow {
      * @param pullRequest The pull request
      * @return true iff a record file is touched by the commits in the PR.
      */
-    EnumSet<RecordType> touchesRecord(GHPullRequest pullRequest) {
+    EnumSet<RecordType> touchesRecord(GHPullRequest pullRequest) throws IOException {
         EnumSet<RecordType> touchesRecord = EnumSet.noneOf(RecordType.class);
         var prNumber = pullRequest.getNumber();
-        for (var fileDetail : pullRequest.listFiles()) {
+        for (var fileDetail : prContext.files(pullRequest)) {
             String repoPath = fileDetail.getFilename();
             LOG.info("PR #{} modifies file {}", prNumber, repoPath);
-            for (var rt : RecordType.values()) {
-                RecordId recordId = rt.recordOf(repoPath);
-                if (recordId != null) {
-                    touchesRecord.add(rt);
-                }
+            RecordId recordId = RecordPaths.recordOf(repoPath);
+            if (recordId != null) {
+                touchesRecord.add(recordId.recordType());
             }
         }
         return touchesRecord;
@@ -146,9 +174,29 @@ public class ArchReviewStateMachineFlow {
 
 
     enum ReviewerDisposition {
-        ACCEPT,
-        REJECT,
-        DEFER
+        ACCEPT(0),
+        REJECT(2),
+        DEFER(1);
+
+        /** When a comment expresses more than one disposition, that with the lowest precedence is taken. */
+        final int precedence;
+
+        ReviewerDisposition(int precedence) {
+            this.precedence = precedence;
+        }
+    }
+
+    /**
+     * @return Whether an edit to a comment changed the disposition it expresses, which it might have if the payload
+     * doesn't say what the comment was before.
+     */
+    private boolean changesDisposition(GHEventPayload.IssueComment payload) {
+        var changes = payload.getChanges();
+        if (changes == null || changes.getBody() == null || changes.getBody().getFrom() == null) {
+            return true;
+        }
+        return ReviewTally.disposition(CommandParser.parse(changes.getBody().getFrom()))
+                != ReviewTally.disposition(commentCommands.of(payload.getComment()));
     }
 
     /**
@@ -158,60 +206,59 @@ public class ArchReviewStateMachineFlow {
      * THEN
      * 1. Check/Update the status matches the review outcome (accept, defer, reject)
      * 2. Remove "type: being-reviewed" and add "type: ready-for-merge"
+     *
+     * Edited and deleted comments are handled too, since they can change or withdraw a disposition.
      */
     public void readyForMerge(@IssueComment.Created
+                              @IssueComment.Edited
+                              @IssueComment.Deleted
                               GHEventPayload.IssueComment payload,
                               @ConfigFile(Util.CONFIG_REPO_PATH) ArchBotConfig config) throws IOException, URISyntaxException {
         if (!enabled) {
             LOG.debug("Ignoring event: disabled due to {}=false", ENABLE);
             return;
         }
+        runner.run(payload, payload.getIssue().getNumber(), "readyForMerge",
+                () -> tallyDispositions(payload, config));
+    }
+
+    private void tallyDispositions(GHEventPayload.IssueComment payload, ArchBotConfig config) throws IOException, URISyntaxException {
         GHIssue issue = payload.getIssue();
         if (!issue.isPullRequest()) {
             LOG.debug("Ignoring non-PR issue #{}", issue.getNumber());
             return;
         }
-        if (Util.isThisBot(config, payload.getComment().getUser())) {
-            LOG.debug("PR#{}: Ignoring my own comment", issue.getNumber());
+        boolean created = "created".equals(payload.getAction());
+        if ("edited".equals(payload.getAction()) && !changesDisposition(payload)) {
+            LOG.debug("PR#{}: Ignoring an edit which doesn't change a disposition", issue.getNumber());
             return;
         }
-        GHPullRequest pullRequest = Util.findPullRequest(issue);
-        if (pullRequest == null) {
+        GHPullRequest pullRequest = prContext.pullRequest(payload);
+        Map<String, ReviewerDisposition> dispositions = created
+                // Every comment is recorded, so the tally can tell whether it has missed any
+                ? reviewTallies.record(pullRequest, payload.getComment(), commentCommands)
+                : reviewTallies.rebuild(pullRequest, commentCommands);
+        // The sender is whoever created, edited or deleted the comment
+        if (Util.isThisBot(config, payload.getSender())) {
+            LOG.debug("PR#{}: Ignoring my own comment", issue.getNumber());
             return;
         }
 
-        Set<String> reviewers = pullRequest.getRequestedReviewers().stream().map(GHPerson::getLogin).collect(Collectors.toSet());
+        Set<String> reviewers = prContext.requestedReviewers(pullRequest).stream().map(GHPerson::getLogin).collect(Collectors.toSet());
 
         if (reviewers.isEmpty()) {
             LOG.debug("PR#{}: Ignoring because it has no reviewers", issue.getNumber());
             return;
         }
 
-        Map<String, ReviewerDisposition> outcomes = new HashMap<>();
-        for (var comment : issue.getComments()) {
-            String reviewer = comment.getUser().getLogin();
-            if (reviewers.contains(reviewer)) {
-                // TODO might want to check for these as words, not merely contains
-                if (comment.getBody().contains("/accept")) {
-                    LOG.debug("PR#{}: {} accepts the changes",
-                            issue.getNumber(),reviewer);
-                    outcomes.put(reviewer, ReviewerDisposition.ACCEPT);
-                } else if(comment.getBody().contains("/defer")) {
-                    LOG.debug("PR#{}: {} defers the changes",
-                            issue.getNumber(), reviewer);
-                    outcomes.put(reviewer, ReviewerDisposition.DEFER);
-                } else if (comment.getBody().contains("/reject")) {
-                    LOG.debug("PR#{}: {} rejects the changes",
-                            issue.getNumber(), reviewer);
-                    outcomes.put(reviewer, ReviewerDisposition.REJECT);
-                }
-            }
-        }
+        Map<String, ReviewerDisposition> outcomes = new HashMap<>(dispositions);
+        outcomes.keySet().retainAll(reviewers);
+        LOG.debug("PR#{}: reviewer dispositions {}", issue.getNumber(), outcomes);
         if (outcomes.keySet().equals(reviewers)) {
             // All reviewers have expressed a conclusion
             LOG.debug("PR#{}: All reviewers have now expressed their opinion",
                     issue.getNumber());
-            Set<String> labels = Util.existingLabels(pullRequest);
+            Set<String> labels = prContext.labels(pullRequest);
             if (new HashSet<>(outcomes.values()).size() == 1) {
                 // And they've all reached the same conclusion
                 LOG.debug("PR#{}: All reviewers have now the same opinion",
@@ -238,11 +285,11 @@ public class ArchReviewStateMachineFlow {
                         sb.append("    * ").append(user).append("\n");
                     }
                 }
-                issue.comment(sb.toString());
+                pullRequest.comment(sb.toString());
                 // Tag with split review
                 labels.add(Labels.NOTICE_SPLIT_REVIEW);
             }
-            Util.setLabels(pullRequest, labels);
+            prContext.setLabels(pullRequest, labels);
         } else {
             LOG.debug("PR#{}: Not all reviewers have expressed their opinion",
                     issue.getNumber());
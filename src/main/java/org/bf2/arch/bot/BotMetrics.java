@@ -0,0 +1,100 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bf2.arch.bot;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.util.List;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * Publishes the statistics the bot already keeps (and logs hourly) as metrics, so they're on the Quarkus
+ * metrics endpoint ({@code /q/metrics}) alongside those of {@link FlowMetrics} and {@link GitHubRequestMetrics}.
+ */
+@ApplicationScoped
+public class BotMetrics implements MeterBinder {
+
+    @Inject
+    GitHubClients clients;
+
+    @Inject
+    EvaluationCache evaluations;
+
+    @Inject
+    PrLocks prLocks;
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        HttpCacheStatistics cache = clients.cacheStatistics();
+        FunctionCounter.builder("arch_bot.github.cache.requests", cache, HttpCacheStatistics::hits)
+                .description("The GET requests to GitHub served from the HTTP cache")
+                .tag("result", "hit")
+                .register(registry);
+        FunctionCounter.builder("arch_bot.github.cache.requests", cache, HttpCacheStatistics::revalidations)
+                .description("The GET requests to GitHub served from the HTTP cache")
+                .tag("result", "revalidation")
+                .register(registry);
+        FunctionCounter.builder("arch_bot.github.cache.requests", cache, HttpCacheStatistics::misses)
+                .description("The GET requests to GitHub served from the HTTP cache")
+                .tag("result", "miss")
+                .register(registry);
+        Gauge.builder("arch_bot.github.cache.hit.ratio", cache, BotMetrics::hitRatio)
+                .description("The fraction of GET requests which didn't count against the rate limit")
+                .register(registry);
+
+        for (String kind : List.of(EvaluationCache.REVIEW, EvaluationCache.CLASSIFICATION)) {
+            EvaluationCache.Statistics statistics = evaluations.statistics(kind);
+            FunctionCounter.builder("arch_bot.evaluation.cache.lookups", statistics, EvaluationCache.Statistics::hits)
+                    .description("The lookups of PR evaluations")
+                    .tags("kind", kind, "result", "hit")
+                    .register(registry);
+            FunctionCounter.builder("arch_bot.evaluation.cache.lookups", statistics, EvaluationCache.Statistics::misses)
+                    .description("The lookups of PR evaluations")
+                    .tags("kind", kind, "result", "miss")
+                    .register(registry);
+            Gauge.builder("arch_bot.evaluation.cache.hit.ratio", statistics, EvaluationCache.Statistics::hitRate)
+                    .description("The fraction of lookups of PR evaluations which were hits")
+                    .tag("kind", kind)
+                    .register(registry);
+        }
+
+        GitHubRateLimiter rateLimiter = clients.rateLimiter();
+        FunctionCounter.builder("arch_bot.github.rate.limit.waits", rateLimiter, GitHubRateLimiter::waits)
+                .description("The times a request to GitHub waited because of the rate limits")
+                .register(registry);
+        FunctionCounter.builder("arch_bot.github.rate.limit.retries", rateLimiter, GitHubRateLimiter::retries)
+                .description("The requests to GitHub retried after being rate limited")
+                .register(registry);
+        FunctionCounter.builder("arch_bot.github.rate.limit.deferrals", rateLimiter, GitHubRateLimiter::deferrals)
+                .description("The polls put off to leave the rate limit for webhook flows")
+                .register(registry);
+
+        // How long they waited is the PrLocks.LOCK_WAIT timer
+        Gauge.builder("arch_bot.pr.lock.waiting", prLocks, PrLocks::waiting)
+                .description("The webhook deliveries waiting for another delivery about the same PR")
+                .register(registry);
+    }
+
+    private static double hitRatio(HttpCacheStatistics cache) {
+        long requests = cache.hits() + cache.revalidations() + cache.misses();
+        return requests == 0 ? 0 : (double) cache.saved() / requests;
+    }
+}
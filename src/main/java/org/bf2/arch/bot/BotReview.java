@@ -0,0 +1,139 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bf2.arch.bot;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import org.bf2.arch.bot.model.patch.FilePatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The comments which {@link PrReviewFlow} makes on the records changed by a PR, from all its rules,
+ * to be submitted as a single review.
+ *
+ * The body of the review ends with a fingerprint of its comments, in an HTML comment, so that a review with the same
+ * comments, on the same commit, can be recognised later and not submitted again
+ * (for example when the same PR event is delivered again, or when the PR gets a comment).
+ */
+class BotReview {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BotReview.class);
+
+    private static final String FINGERPRINT_PREFIX = "<!-- arch-bot-review: ";
+    private static final String FINGERPRINT_SUFFIX = " -->";
+
+    /**
+     * A comment on a line of a file.
+     */
+    static final class Comment {
+        final String path;
+        /** The position of the line in the file's patch. */
+        final int position;
+        final String body;
+
+        Comment(String path, int position, String body) {
+            this.path = path;
+            this.position = position;
+            this.body = body;
+        }
+
+        @Override
+        public String toString() {
+            return path + "@" + position + ": " + body;
+        }
+    }
+
+    private final List<Comment> comments = new ArrayList<>();
+
+    void comment(String body, String path, int position) {
+        comments.add(new Comment(path, position, body));
+    }
+
+    /**
+     * Comments on a line of a file, unless the position isn't a line of the file's patch,
+     * since GitHub rejects the whole review if any of its comments is outside the diff.
+     * @return Whether the comment was made.
+     */
+    boolean comment(String body, String path, FilePatch patch, int position) {
+        if (patch.lineAt(position) == null) {
+            LOG.debug("Not commenting on {}: position {} isn't in the patch", path, position);
+            return false;
+        }
+        comment(body, path, position);
+        return true;
+    }
+
+    List<Comment> comments() {
+        return comments;
+    }
+
+    boolean isEmpty() {
+        return comments.isEmpty();
+    }
+
+    /**
+     * @return A SHA-1 of the comments, which doesn't depend on the order they were made in.
+     */
+    String fingerprint() {
+        List<Comment> sorted = new ArrayList<>(comments);
+        sorted.sort(Comparator.<Comment, String>comparing(c -> c.path)
+                .thenComparingInt(c -> c.position)
+                .thenComparing(c -> c.body));
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            for (Comment comment : sorted) {
+                sha1.update(comment.toString().getBytes(StandardCharsets.UTF_8));
+                sha1.update((byte) 0);
+            }
+            return Util.hex(sha1.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return The body of the review, ending with its fingerprint.
+     */
+    String body() {
+        return "I found " + comments.size() + (comments.size() == 1 ? " thing" : " things")
+                + " in the changed records which might need looking at.\n\n"
+                + FINGERPRINT_PREFIX + fingerprint() + FINGERPRINT_SUFFIX;
+    }
+
+    /**
+     * @param reviewBody The body of a review.
+     * @return The fingerprint in the body of a review submitted by the bot, or null if there isn't one.
+     */
+    static String fingerprintOf(String reviewBody) {
+        if (reviewBody == null) {
+            return null;
+        }
+        int start = reviewBody.lastIndexOf(FINGERPRINT_PREFIX);
+        if (start == -1) {
+            return null;
+        }
+        start += FINGERPRINT_PREFIX.length();
+        int end = reviewBody.indexOf(FINGERPRINT_SUFFIX, start);
+        return end == -1 ? null : reviewBody.substring(start, end);
+    }
+}
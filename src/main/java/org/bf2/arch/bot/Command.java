@@ -0,0 +1,88 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bf2.arch.bot;
+
+import java.util.Locale;
+
+import org.bf2.arch.bot.ArchReviewStateMachineFlow.ReviewerDisposition;
+import org.bf2.arch.bot.model.record.RecordType;
+
+/**
+ * A slash command in a comment, as found by {@link CommandParser}.
+ */
+abstract class Command {
+
+    /** The line of the comment the command is on, counting from 1. */
+    final int line;
+
+    private Command(int line) {
+        this.line = line;
+    }
+
+    /**
+     * {@code /create adr} (or ap, or padr): create a draft record.
+     */
+    static final class Create extends Command {
+        final RecordType recordType;
+
+        Create(int line, RecordType recordType) {
+            super(line);
+            this.recordType = recordType;
+        }
+
+        @Override
+        public String toString() {
+            return "/create " + recordType;
+        }
+    }
+
+    /**
+     * {@code /supersede adr 123}: create a draft record which supersedes an existing one.
+     */
+    static final class Supersede extends Command {
+        final RecordType recordType;
+        final int num;
+
+        Supersede(int line, RecordType recordType, int num) {
+            super(line);
+            this.recordType = recordType;
+            this.num = num;
+        }
+
+        @Override
+        public String toString() {
+            return "/supersede " + recordType + " " + num;
+        }
+    }
+
+    /**
+     * {@code /accept}, {@code /defer} or {@code /reject}: a reviewer's conclusion about a PR.
+     */
+    static final class Disposition extends Command {
+        final ReviewerDisposition disposition;
+
+        Disposition(int line, ReviewerDisposition disposition) {
+            super(line);
+            this.disposition = disposition;
+        }
+
+        @Override
+        public String toString() {
+            return "/" + disposition.name().toLowerCase(Locale.ROOT);
+        }
+    }
+}
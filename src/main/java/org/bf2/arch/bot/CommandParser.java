@@ -0,0 +1,178 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bf2.arch.bot;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bf2.arch.bot.ArchReviewStateMachineFlow.ReviewerDisposition;
+import org.bf2.arch.bot.model.record.RecordType;
+
+/**
+ * Finds the slash commands in the body of a comment, in a single pass over it.
+ *
+ * A command is a {@code /} followed by a known command name, starting and ending at word boundaries
+ * (so neither {@code /acceptance} nor {@code https://example.com/accept} is a command),
+ * on any line of the comment. Its arguments are the rest of the words on that line.
+ * Commands with missing or invalid arguments are ignored, as are those quoted from other comments
+ * (on lines starting with {@code >}) or in fenced code blocks (between lines starting with {@code ```} or {@code ~~~}).
+ */
+final class CommandParser {
+
+    private CommandParser() {
+    }
+
+    /**
+     * @return The commands in the comment, in the order they appear.
+     */
+    static List<Command> parse(String body) {
+        List<Command> commands = new ArrayList<>(1);
+        int length = body.length();
+        int line = 1;
+        boolean inFence = false;
+        for (int i = 0; i < length; i++) {
+            if (i == 0 || body.charAt(i - 1) == '\n') {
+                int first = i;
+                while (first < length && (body.charAt(first) == ' ' || body.charAt(first) == '\t')) {
+                    first++;
+                }
+                boolean fence = body.startsWith("```", first) || body.startsWith("~~~", first);
+                if (fence) {
+                    inFence = !inFence;
+                }
+                int eol = endOfLine(body, i);
+                if ((fence || inFence || (first < length && body.charAt(first) == '>')) && eol > i) {
+                    // Skip to the newline, which is counted as usual
+                    i = eol - 1;
+                    continue;
+                }
+            }
+            char ch = body.charAt(i);
+            if (ch == '\n') {
+                line++;
+                continue;
+            }
+            if (ch != '/' || (i > 0 && isWordChar(body.charAt(i - 1)))) {
+                continue;
+            }
+            int nameStart = i + 1;
+            int nameEnd = nameStart;
+            while (nameEnd < length && (Character.isLetter(body.charAt(nameEnd)) || body.charAt(nameEnd) == '-')) {
+                nameEnd++;
+            }
+            if (nameEnd == nameStart || continuesWord(body, nameEnd)) {
+                continue;
+            }
+            Command command = command(body, nameStart, nameEnd, line);
+            if (command != null) {
+                commands.add(command);
+            }
+            i = nameEnd - 1;
+        }
+        return commands;
+    }
+
+    private static int endOfLine(String body, int from) {
+        int eol = body.indexOf('\n', from);
+        return eol == -1 ? body.length() : eol;
+    }
+
+    /**
+     * Characters which, next to a {@code /} or a command name, mean it's part of some other word (or a path or URL).
+     */
+    private static boolean isWordChar(char ch) {
+        return Character.isLetterOrDigit(ch) || ch == '_' || ch == '/' || ch == '.';
+    }
+
+    /**
+     * @return Whether the character at {@code i} continues the word before it.
+     * A full stop only does if it's followed by another word character (as in {@code /accept.md}),
+     * so a command can end a sentence.
+     */
+    private static boolean continuesWord(String body, int i) {
+        if (i >= body.length() || !isWordChar(body.charAt(i))) {
+            return false;
+        }
+        return body.charAt(i) != '.' || (i + 1 < body.length() && isWordChar(body.charAt(i + 1)));
+    }
+
+    private static Command command(String body, int nameStart, int nameEnd, int line) {
+        if (is(body, nameStart, nameEnd, "accept")) {
+            return new Command.Disposition(line, ReviewerDisposition.ACCEPT);
+        } else if (is(body, nameStart, nameEnd, "defer")) {
+            return new Command.Disposition(line, ReviewerDisposition.DEFER);
+        } else if (is(body, nameStart, nameEnd, "reject")) {
+            return new Command.Disposition(line, ReviewerDisposition.REJECT);
+        } else if (is(body, nameStart, nameEnd, "create")) {
+            List<String> args = args(body, nameEnd);
+            RecordType recordType = args.size() >= 1 ? recordType(args.get(0)) : null;
+            return recordType != null ? new Command.Create(line, recordType) : null;
+        } else if (is(body, nameStart, nameEnd, "supersede")) {
+            List<String> args = args(body, nameEnd);
+            RecordType recordType = args.size() >= 2 ? recordType(args.get(0)) : null;
+            int num = args.size() >= 2 ? number(args.get(1)) : -1;
+            return recordType != null && num >= 0 ? new Command.Supersede(line, recordType, num) : null;
+        }
+        return null;
+    }
+
+    private static boolean is(String body, int nameStart, int nameEnd, String name) {
+        return nameEnd - nameStart == name.length() && body.regionMatches(true, nameStart, name, 0, name.length());
+    }
+
+    /**
+     * @return The words following a command name, up to the end of its line.
+     */
+    private static List<String> args(String body, int from) {
+        List<String> args = new ArrayList<>(2);
+        int length = body.length();
+        int i = from;
+        while (i < length && body.charAt(i) != '\n') {
+            if (Character.isWhitespace(body.charAt(i))) {
+                i++;
+                continue;
+            }
+            int start = i;
+            while (i < length && !Character.isWhitespace(body.charAt(i))) {
+                i++;
+            }
+            args.add(body.substring(start, i));
+        }
+        return args;
+    }
+
+    private static RecordType recordType(String arg) {
+        for (RecordType recordType : RecordType.values()) {
+            if (recordType.name().equalsIgnoreCase(arg)) {
+                return recordType;
+            }
+        }
+        return null;
+    }
+
+    private static int number(String arg) {
+        int num = 0;
+        for (int i = 0; i < arg.length(); i++) {
+            int digit = arg.charAt(i) - '0';
+            if (digit < 0 || digit > 9 || num > (Integer.MAX_VALUE - digit) / 10) {
+                return -1;
+            }
+            num = num * 10 + digit;
+        }
+        return arg.isEmpty() ? -1 : num;
+    }
+}
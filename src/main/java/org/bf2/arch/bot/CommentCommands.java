@@ -0,0 +1,43 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bf2.arch.bot;
+
+import javax.enterprise.context.RequestScoped;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.kohsuke.github.GHIssueComment;
+
+/**
+ * The commands in the comments an event concerns, parsed once per event, however many flows handle it.
+ */
+@RequestScoped
+public class CommentCommands {
+
+    /** Keyed by comment id */
+    private final Map<Long, List<Command>> commands = new HashMap<>();
+
+    /**
+     * @return The commands in the comment, in the order they appear.
+     */
+    List<Command> of(GHIssueComment comment) {
+        return commands.computeIfAbsent(comment.getId(),
+                id -> Collections.unmodifiableList(CommandParser.parse(comment.getBody())));
+    }
+}
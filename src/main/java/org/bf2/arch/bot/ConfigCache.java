@@ -0,0 +1,117 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bf2.arch.bot;
+
+import javax.enterprise.context.ApplicationScoped;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.kohsuke.github.GHFileNotFoundException;
+import org.kohsuke.github.GHRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Loads the bot's config file ({@value Util#CONFIG_REPO_PATH} in the {@code .github} directory of the repository's
+ * default branch, as {@code @ConfigFile} does), only when a flow needs it,
+ * and keeps it for {@code bot.config.max-age-seconds}.
+ *
+ * So flows which can tell they have nothing to do from the event alone (a duplicate {@code /create},
+ * or a PR whose evaluation is cached) don't fetch the config at all,
+ * and those which do don't fetch it for every event.
+ * The configs returned are shared, so must not be changed.
+ */
+@ApplicationScoped
+public class ConfigCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ConfigCache.class);
+
+    static final String MAX_AGE_SECONDS = "bot.config.max-age-seconds";
+
+    static final String PATH = ".github/" + Util.CONFIG_REPO_PATH;
+
+    private static final ObjectMapper YAML = new ObjectMapper(new YAMLFactory())
+            .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+
+    @ConfigProperty(name = MAX_AGE_SECONDS, defaultValue = "60")
+    long maxAgeSeconds;
+
+    private static class Entry {
+        /** Null if the repository has no config file */
+        final ArchBotConfig config;
+        final long loadedNanos;
+
+        Entry(ArchBotConfig config, long loadedNanos) {
+            this.config = config;
+            this.loadedNanos = loadedNanos;
+        }
+    }
+
+    /** Keyed by the repository's full name */
+    private final Map<String, Entry> configs = new HashMap<>();
+
+    /**
+     * @return The config of the repository, or null if it doesn't have a config file.
+     */
+    ArchBotConfig config(GHRepository repo) throws IOException {
+        return config(repo.getFullName(), () -> repo);
+    }
+
+    /**
+     * Gets a repository, which might need a request to GitHub.
+     */
+    interface RepositorySource {
+        GHRepository get() throws IOException;
+    }
+
+    /**
+     * @param name The full name of the repository.
+     * @param repo The repository, which is only got if its config has to be loaded.
+     * @return The config of the repository, or null if it doesn't have a config file.
+     */
+    ArchBotConfig config(String name, RepositorySource repo) throws IOException {
+        long now = System.nanoTime();
+        synchronized (configs) {
+            Entry entry = configs.get(name);
+            if (entry != null && now - entry.loadedNanos < TimeUnit.SECONDS.toNanos(maxAgeSeconds)) {
+                return entry.config;
+            }
+        }
+        ArchBotConfig config = load(repo.get());
+        synchronized (configs) {
+            configs.put(name, new Entry(config, now));
+        }
+        return config;
+    }
+
+    private static ArchBotConfig load(GHRepository repo) throws IOException {
+        LOG.debug("Loading {} from {}", PATH, repo.getFullName());
+        try (InputStream in = repo.getFileContent(PATH).read()) {
+            return YAML.readValue(in, ArchBotConfig.class);
+        } catch (GHFileNotFoundException e) {
+            LOG.warn("{} has no {}", repo.getFullName(), PATH);
+            return null;
+        }
+    }
+}
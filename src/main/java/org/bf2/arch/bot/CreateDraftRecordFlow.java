@@ -1,17 +1,13 @@
 package org.bf2.arch.bot;
 
+import javax.inject.Inject;
 import java.io.IOException;
-import java.io.InputStream;
-import java.nio.charset.StandardCharsets;
+import java.net.URISyntaxException;
 import java.text.MessageFormat;
 import java.util.List;
-import java.util.Locale;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
-import io.quarkiverse.githubapp.ConfigFile;
 import io.quarkiverse.githubapp.event.IssueComment;
 import org.bf2.arch.bot.model.record.RecordPage;
 import org.bf2.arch.bot.model.record.RecordId;
@@ -19,16 +15,14 @@ import org.bf2.arch.bot.model.record.RecordType;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
-import org.kohsuke.github.GHBranch;
 import org.kohsuke.github.GHCommit;
-import org.kohsuke.github.GHContent;
 import org.kohsuke.github.GHEventPayload;
 import org.kohsuke.github.GHIssue;
 import org.kohsuke.github.GHPerson;
 import org.kohsuke.github.GHPullRequest;
 import org.kohsuke.github.GHRepository;
 import org.kohsuke.github.GHTree;
-import org.kohsuke.github.GHTreeEntry;
+import org.kohsuke.github.HttpException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -57,9 +51,6 @@ import org.slf4j.LoggerFactory;
  */
 public class CreateDraftRecordFlow {
 
-    public static final Pattern CMD_CREATE = Pattern.compile("/create +(?<recordType>p?adr|ap)", Pattern.CASE_INSENSITIVE);
-    public static final Pattern CMD_SUPERSEDE = Pattern.compile("/supersede +(?<recordType>p?adr|ap) +(?<num>[0-9]+)", Pattern.CASE_INSENSITIVE);
-
     private static final Logger LOG = LoggerFactory.getLogger(CreateDraftRecordFlow.class);
 
     public static final String ENABLE = "bot.enable.create-draft";
@@ -67,48 +58,94 @@ public class CreateDraftRecordFlow {
     @ConfigProperty(name = ENABLE, defaultValue = "false")
     boolean enabled;
 
+    /** How many ids to try before giving up, when the branches for them already exist */
+    static final int MAX_ALLOCATION_ATTEMPTS = 5;
+
+    private static final int HTTP_UNPROCESSABLE_ENTITY = 422;
+
+    @Inject
+    RecordIndex recordIndex;
+
+    @Inject
+    RecordIdAllocator idAllocator;
+
+    @Inject
+    RecordPageCache pageCache;
+
+    @Inject
+    CommentCommands commentCommands;
+
+    @Inject
+    IdempotencyStore idempotencyStore;
+
+    @Inject
+    FlowRunner runner;
+
+    @Inject
+    ConfigCache configCache;
+
+    @Inject
+    PullRequestContext prContext;
 
     /**
      * Creates a PR for a Draft ADR when an issue comment has {@code /create adr} (or ap, or padr),
      * or {@code /supersede adr 123}.
+     * A command is only acted on once, even if the event is delivered again, or the comment is edited
+     * without changing it (see {@link IdempotencyStore}), and the config is only loaded once it's been claimed.
      * @param commentPayload The payload
-     * @param config The config
      * @throws IOException From github, or parsing pages
      */
     public void onIssueComment(
             @IssueComment.Created
             @IssueComment.Edited
-            GHEventPayload.IssueComment commentPayload,
-            @ConfigFile(Util.CONFIG_REPO_PATH) ArchBotConfig config) throws IOException {
+            GHEventPayload.IssueComment commentPayload) throws IOException, URISyntaxException {
         if (!enabled) {
             LOG.debug("Ignoring event: disabled due to {}=false", ENABLE);
             return;
         }
+        // Only the first /create or /supersede in a comment is acted on
+        Command command = commentCommands.of(commentPayload.getComment()).stream()
+                .filter(c -> c instanceof Command.Create || c instanceof Command.Supersede)
+                .findFirst()
+                .orElse(null);
+        var issue = commentPayload.getIssue();
+        if (command == null) {
+            LOG.debug("Ignoring message on issue #{}: no commands", issue.getNumber());
+            return;
+        }
+        String key = IdempotencyStore.commentKey(commentPayload.getComment());
+        if (!idempotencyStore.claim(key)) {
+            LOG.info("Ignoring {} on issue #{}: already handled comment {}", command,
+                    issue.getNumber(), commentPayload.getComment().getId());
+            return;
+        }
+        try {
+            runner.run(commentPayload, issue.getNumber(), "onIssueComment", () -> handle(commentPayload, command));
+        } catch (IOException | URISyntaxException | RuntimeException e) {
+            // So that a redelivery, or the same comment again, can retry it
+            idempotencyStore.release(key);
+            throw e;
+        }
+
+        // TODO support /help
+        // TODO should we only respond on open issues?
+    }
+
+    private void handle(GHEventPayload.IssueComment commentPayload, Command command) throws IOException {
+        ArchBotConfig config = configCache.config(prContext.repository(commentPayload));
         if (config == null) {
             throw new IllegalStateException("Repo is missing config file");
         }
         LOG.debug("Config: {}", config);
-        boolean authorized = isAuthorized(commentPayload, config);
-        String body = commentPayload.getComment().getBody().trim();
-        Matcher createMatcher = CMD_CREATE.matcher(body);
-        if (createMatcher.matches()
-                && authorized) {
-            var recordType = RecordType.valueOf(createMatcher.group("recordType").toUpperCase(Locale.ROOT));
-            createDraft(config, commentPayload, recordType, -1);
+        if (!isAuthorized(commentPayload, config)) {
+            // The claim is kept: the same comment will never be authorized
+            LOG.debug("Ignoring {} on issue #{}: not authorized", command, commentPayload.getIssue().getNumber());
+        } else if (command instanceof Command.Create) {
+            createDraft(config, commentPayload, ((Command.Create) command).recordType, -1);
         } else {
-            Matcher supersedureMatcher = CMD_SUPERSEDE.matcher(body);
-            if (supersedureMatcher.matches()
-                    && authorized) {
-                var recordType = RecordType.valueOf(supersedureMatcher.group("recordType").toUpperCase(Locale.ROOT));
-                var supersedesRecord = Integer.parseInt(supersedureMatcher.group("num"));
-                createDraft(config, commentPayload, recordType, supersedesRecord);
-            } else {
-                LOG.debug("Ignoring message on issue #{}: {}", commentPayload.getIssue().getNumber(), body);
-            }
+            var supersede = (Command.Supersede) command;
+            createDraft(config, commentPayload, supersede.recordType, supersede.num);
         }
-
-        // TODO support /help
-        // TODO should we only respond on open issues?
     }
 
     private boolean isAuthorized(GHEventPayload.IssueComment commentPayload, ArchBotConfig config) throws IOException {
@@ -124,40 +161,65 @@ public class CreateDraftRecordFlow {
                              RecordType recordType,
                              int supersedesRecordNum) throws IOException {
 
-        var issue = commentPayload.getIssue();
+        var issue = prContext.issue(commentPayload);
         try {
-            var repo = issue.getRepository();
+            var repo = prContext.repository(commentPayload);
             LOG.debug("Creating {} in {}", recordType, repo);
             var defaultBranchName = repo.getDefaultBranch();
             var defaultBranch = repo.getBranch(defaultBranchName);
             LOG.debug("Using branch {} to find current max ID", defaultBranch.getName());
             var defaultBranchSha = defaultBranch.getSHA1();
             LOG.debug("Branch {} tip is {}", defaultBranch.getName(), defaultBranchSha);
-            // Allocate a new ADR id
-            var draftRecord = new RecordId(recordType, allocateId(repo, defaultBranchSha, recordType));
-
-            var tree = repo.createTree()
-                    .baseTree(defaultBranchSha);
-
-            // generate content from template
-            var draftRecordContent = draftContent(repo, defaultBranch,
-                    draftRecord,
-                    issue.getTitle(),
-                    recordAuthors(issue).collect(Collectors.toList()),
-                    recordTags(issue));
-            tree.add(draftRecord.repoPath(), draftRecordContent.toContentString(), false);
-
-            // update the supersede record
+            // Everything which doesn't depend on the id is fetched once, rather than on each attempt
+            var template = defaultBranchPage(repo, defaultBranchSha, new RecordId(recordType, 0));
+            if (template == null) {
+                throw new BotError(String.format("There is no %s template at %s", recordType, recordType.path(0)));
+            }
+            RecordId supersededRecord = null;
+            RecordPage supersededPage = null;
             if (supersedesRecordNum > 0) {
-                // update the superseded record content
-                var supersededRecord = new RecordId(recordType, supersedesRecordNum);
-                // TODO handle the case where the superseded record doesn't exist
-                var supersededPage = supersededContent(repo, defaultBranch, supersededRecord, draftRecord.num());
-                tree.add(supersededRecord.repoPath(), supersededPage.toContentString(), false);
+                supersededRecord = new RecordId(recordType, supersedesRecordNum);
+                supersededPage = supersededContent(repo, defaultBranchSha, supersededRecord);
+            }
+            var title = issue.getTitle();
+            var authors = recordAuthors(issue).collect(Collectors.toList());
+            var tags = recordTags(issue);
+
+            // Allocate a new ADR id, moving on to the next one if a concurrent /create got its branch in first
+            RecordId draftRecord;
+            String commitMessage;
+            String branchRef;
+            int attempts = 0;
+            do {
+                draftRecord = new RecordId(recordType, idAllocator.allocate(repo, defaultBranchSha, recordType));
+                try {
+                    var tree = repo.createTree()
+                            .baseTree(defaultBranchSha);
+
+                    // generate content from template
+                    var draftRecordContent = renderTemplate(draftRecord, title, authors, tags, template);
+                    tree.add(draftRecord.repoPath(), draftRecordContent.toContentString(), false);
+
+                    // update the superseded record content
+                    if (supersededRecord != null) {
+                        supersededPage.frontMatter.supersededBy = draftRecord.num();
+                        tree.add(supersededRecord.repoPath(), supersededPage.toContentString(), false);
+                    }
+
+                    commitMessage = String.format("%s: Create draft\n\nFixes #%d", draftRecord, issue.getNumber());
+                    branchRef = createCommit(draftRecord, repo, defaultBranchSha, commitMessage, tree.create());
+                } catch (IOException | RuntimeException e) {
+                    idAllocator.release(repo, recordType, draftRecord.num());
+                    throw e;
+                }
+                if (branchRef == null) {
+                    LOG.info("Branch for {} already exists, trying the next id", draftRecord);
+                }
+            } while (branchRef == null && ++attempts < MAX_ALLOCATION_ATTEMPTS);
+            if (branchRef == null) {
+                throw new BotError(String.format("Unable to allocate a %s id: the branches for the next %d ids already exist",
+                        recordType, MAX_ALLOCATION_ATTEMPTS));
             }
-
-            var commitMessage = String.format("%s: Create draft\n\nFixes #%d", draftRecord, issue.getNumber());
-            var branchRef = createCommit(draftRecord, repo, defaultBranchSha, commitMessage, tree.create());
 
             // Open a PR
             var pr = openPullRequest(repo, defaultBranchName, draftRecord, commitMessage, branchRef);
@@ -188,17 +250,19 @@ public class CreateDraftRecordFlow {
                 repo.getHtmlUrl(), repo.getDefaultBranch(), record.repoPath());
     }
 
+    /**
+     * @return The superseded record's page, with its status changed.
+     * Its {@code supersededBy} is set once the id of the new record is known.
+     */
     @NotNull
-    private static RecordPage supersededContent(GHRepository repo,
-                                                GHBranch defaultBranch,
-                                                RecordId supersededRecord,
-                                                int supersededBy) throws IOException {
-        var supersededPage = getPage(repo, defaultBranch, supersededRecord.repoPath());
+    private RecordPage supersededContent(GHRepository repo,
+                                         String defaultBranchSha,
+                                         RecordId supersededRecord) throws IOException {
+        var supersededPage = defaultBranchPage(repo, defaultBranchSha, supersededRecord);
         if (supersededPage == null) {
             throw new BotError(String.format("There is no %s with number %d", supersededRecord.recordType(), supersededRecord.num()));
         }
         supersededPage.frontMatter.status = "Superseded";
-        supersededPage.frontMatter.supersededBy = supersededBy;
         return supersededPage;
     }
 
@@ -236,6 +300,9 @@ public class CreateDraftRecordFlow {
     }
 
 
+    /**
+     * @return The name of the created branch, or null if the branch for the record already exists.
+     */
     private String createCommit(RecordId record,
                                 GHRepository repo,
                                 String defaultBranchSha,
@@ -247,43 +314,30 @@ public class CreateDraftRecordFlow {
                 .tree(tree.getSha()).create();
 
         var refName = String.format("refs/heads/create-%s", record);
-        repo.createRef(refName, commit.getSHA1());
-        return refName;
-    }
-
-    @NotNull
-    private RecordPage draftContent(GHRepository repo,
-                                    GHBranch defaultBranch,
-                                    RecordId record,
-                                    String title,
-                                    List<String> authors,
-                                    List<String> tags) throws IOException {
-        var templateRepoPath = record.recordType().path(0);
-        return renderTemplate(record,
-                title,
-                authors,
-                tags,
-                getPage(repo, defaultBranch, templateRepoPath));
-    }
-
-    @Nullable
-    static RecordPage getPage(GHRepository repo, GHBranch defaultBranch, String repoPath) throws IOException {
-        String content = getContent(repo, defaultBranch, repoPath);
-        if (content == null) {
-            return null;
+        try {
+            repo.createRef(refName, commit.getSHA1());
+        } catch (HttpException e) {
+            if (e.getResponseCode() == HTTP_UNPROCESSABLE_ENTITY) {
+                // The ref already exists
+                return null;
+            }
+            throw e;
         }
-        return RecordPage.fromContent(content);
+        return refName;
     }
 
+    /**
+     * Gets a page on the default branch using the {@link RecordIndex} and the {@link RecordPageCache},
+     * so that it's only downloaded if its blob has not been seen before.
+     * @return The page, or null if there's no such record on the default branch.
+     */
     @Nullable
-    static String getContent(GHRepository repo, GHBranch defaultBranch, String repoPath) throws IOException {
-        GHContent fileContent = repo.getFileContent(repoPath, defaultBranch.getSHA1());
-        if (fileContent == null) {
+    private RecordPage defaultBranchPage(GHRepository repo, String defaultBranchSha, RecordId record) throws IOException {
+        var entry = recordIndex.snapshot(repo, defaultBranchSha).records.get(record);
+        if (entry == null) {
             return null;
         }
-        try (InputStream read = fileContent.read()) {
-            return new String(read.readAllBytes(), StandardCharsets.UTF_8);
-        }
+        return pageCache.page(repo, entry.blobSha);
     }
 
     @NotNull
@@ -299,28 +353,4 @@ public class CreateDraftRecordFlow {
         recordPage.frontMatter.tags = tags;
         return recordPage;
     }
-
-    int allocateId(GHRepository repo, String commitSha, RecordType recordType) throws IOException {
-        var collect = collect(repo.getCommit(commitSha).getTree(), recordType);
-        var maxId = collect.stream().map(entry -> {
-            String path = entry.getPath();
-            LOG.debug("Path: {}", path);
-            try {
-                return Integer.parseInt(path);
-            } catch (NumberFormatException e) {
-                return -1;
-            }
-        }).max(Integer::compareTo);
-
-        LOG.debug("Max existing {} id {}", recordType, maxId);
-        var nextId = maxId.orElse(1) + 1;
-        LOG.debug("Next {} id {}", recordType, nextId);
-        return nextId;
-    }
-
-    List<GHTreeEntry> collect(GHTree root, RecordType recordType) throws IOException {
-        var recordEntries = root.getEntry(recordType.repoDir);
-        LOG.debug("{} entry: {}", recordType.repoDir, recordEntries);
-        return recordEntries.asTree().getTree();
-    }
 }
@@ -0,0 +1,112 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bf2.arch.bot;
+
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * The state kept for one repository by the incremental mode of {@link StalledDiscussionFlow}:
+ * the creation time of the newest review comment on each candidate PR,
+ * as of the time given by the {@linkplain #since() watermark}.
+ * Each scan only needs to list the review comments updated since the watermark.
+ *
+ * The watermark starts at the beginning of the stall window, so the review comments of a PR from before then
+ * are only known once they've been {@linkplain #recordAll(int, Optional) listed} for that PR.
+ * {@link #retain(Set)} forgets the PRs which are no longer candidates.
+ */
+class DiscussionWatermark {
+
+    private Instant since;
+
+    private final Map<Integer, Instant> lastReviewComment = new HashMap<>();
+
+    /** The PRs whose review comments have been listed, and which have none. */
+    private final Set<Integer> withoutReviewComments = new HashSet<>();
+
+    /**
+     * @param start When to start listing review comments from.
+     */
+    DiscussionWatermark(Instant start) {
+        this.since = start;
+    }
+
+    /**
+     * @return The time up to which review comments have been seen.
+     */
+    Instant since() {
+        return since;
+    }
+
+    /**
+     * Record a review comment, advancing the watermark to its update time.
+     * Comments may be recorded more than once, and in any order.
+     * @param prNumber The number of the PR the comment is on.
+     * @param createdAt When the comment was created.
+     * @param updatedAt When the comment was last updated.
+     */
+    void record(int prNumber, Instant createdAt, Instant updatedAt) {
+        lastReviewComment.merge(prNumber, createdAt, (a, b) -> a.isAfter(b) ? a : b);
+        withoutReviewComments.remove(prNumber);
+        if (updatedAt.isAfter(since)) {
+            since = updatedAt;
+        }
+    }
+
+    /**
+     * Record the result of listing all the review comments of a PR.
+     * @param prNumber The number of the PR.
+     * @param createdAt When its newest review comment was created, or empty if it has none.
+     */
+    void recordAll(int prNumber, Optional<Instant> createdAt) {
+        if (createdAt.isPresent()) {
+            lastReviewComment.merge(prNumber, createdAt.get(), (a, b) -> a.isAfter(b) ? a : b);
+        } else if (!lastReviewComment.containsKey(prNumber)) {
+            withoutReviewComments.add(prNumber);
+        }
+    }
+
+    /**
+     * @return Whether the newest review comment of the given PR (or that it has none) is known,
+     * at least well enough to tell whether it's before a threshold later than the watermark's start.
+     * A PR with a comment listed since the watermark started is known, because every comment created since
+     * then has been listed, and any other was created before then.
+     */
+    boolean knows(int prNumber) {
+        return lastReviewComment.containsKey(prNumber) || withoutReviewComments.contains(prNumber);
+    }
+
+    /**
+     * @return The creation time of the newest review comment on the given PR, if it has any.
+     */
+    Optional<Instant> lastReviewComment(int prNumber) {
+        return Optional.ofNullable(lastReviewComment.get(prNumber));
+    }
+
+    /**
+     * Forgets the PRs which are not in the given set.
+     * @param prNumbers The candidate PRs.
+     */
+    void retain(Set<Integer> prNumbers) {
+        lastReviewComment.keySet().retainAll(prNumbers);
+        withoutReviewComments.retainAll(prNumbers);
+    }
+}
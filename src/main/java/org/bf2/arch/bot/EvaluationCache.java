@@ -0,0 +1,191 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bf2.arch.bot;
+
+import javax.enterprise.context.ApplicationScoped;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.quarkus.scheduler.Scheduled;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.kohsuke.github.GHPullRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Remembers the results of evaluating a PR (such as the bot's review of it, or which types of record it touches),
+ * so they're not worked out again when nothing they depend on has changed.
+ *
+ * Results are keyed by the PR, its head and base SHAs and (when the result depends on it) the config,
+ * so a result is never stale: a push to the PR, a change to the branch it merges into, or a change to the config
+ * gives a new key. Other events, like comments on the PR or edits to its title, find the result already there.
+ * The number of results kept is bounded, the least recently used being dropped first.
+ */
+@ApplicationScoped
+public class EvaluationCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EvaluationCache.class);
+
+    /** The review {@link PrReviewFlow} made of a PR: the fingerprint of its comments, or "" if it had none. */
+    static final String REVIEW = "review";
+    /** The types of record a PR touches, as worked out by {@link ArchReviewStateMachineFlow#touchesRecord}. */
+    static final String CLASSIFICATION = "classification";
+
+    static final String MAX_RESULTS = "bot.evaluation-cache.max-results";
+
+    @ConfigProperty(name = MAX_RESULTS, defaultValue = "1024")
+    int maxResults;
+
+    private final Map<String, Object> results = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Object> eldest) {
+            return size() > maxResults;
+        }
+    };
+
+    /** The head and base SHAs each PR last had, keyed by {@code <owner>/<repo>#<number>}, bounded like the results */
+    private final Map<String, String[]> revisions = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String[]> eldest) {
+            return size() > maxResults;
+        }
+    };
+
+    /**
+     * The hits and misses for one kind of result.
+     */
+    static final class Statistics {
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+
+        long hits() {
+            return hits.sum();
+        }
+
+        long misses() {
+            return misses.sum();
+        }
+
+        /**
+         * @return The fraction of lookups which were hits, or 0 if there haven't been any.
+         */
+        double hitRate() {
+            long hits = hits();
+            long lookups = hits + misses();
+            return lookups == 0 ? 0 : (double) hits / lookups;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("hits=%d, misses=%d, hit rate=%.2f", hits(), misses(), hitRate());
+        }
+    }
+
+    /** Keyed by the kind of result */
+    private final Map<String, Statistics> statistics = new ConcurrentHashMap<>();
+
+    /**
+     * @param kind The kind of result, e.g. {@link #REVIEW}.
+     * @param pullRequest The PR.
+     * @param configFingerprint The {@linkplain ArchBotConfig#fingerprint() fingerprint of the config},
+     * or null if the result doesn't depend on the config.
+     * @return The key for the result of evaluating the PR as it is now.
+     */
+    static String key(String kind, GHPullRequest pullRequest, String configFingerprint) {
+        return key(kind, pullRequest.getRepository().getFullName(), pullRequest.getNumber(),
+                pullRequest.getHead().getSha(), pullRequest.getBase().getSha(), configFingerprint);
+    }
+
+    static String key(String kind, String repoFullName, int prNumber, String headSha, String baseSha,
+                      String configFingerprint) {
+        return kind + ":" + repoFullName + "#" + prNumber + "@" + headSha + ".." + baseSha
+                + (configFingerprint != null ? "/" + configFingerprint : "");
+    }
+
+    /**
+     * Notes the head and base SHAs of a PR, as given by an event about it,
+     * so that events which don't give them (like comments on the PR) can find its results without getting the PR.
+     */
+    void observe(GHPullRequest pullRequest) {
+        observe(pullRequest.getRepository().getFullName(), pullRequest.getNumber(),
+                pullRequest.getHead().getSha(), pullRequest.getBase().getSha());
+    }
+
+    void observe(String repoFullName, int prNumber, String headSha, String baseSha) {
+        synchronized (revisions) {
+            revisions.put(repoFullName + "#" + prNumber, new String[] {headSha, baseSha});
+        }
+    }
+
+    /**
+     * The key might be stale if the PR's base branch has moved since it was observed, since no event about the PR
+     * says so, but then the next event which does give the SHAs gets the result for the new ones.
+     * @return The key for the result of evaluating the PR as it was when last {@linkplain #observe observed},
+     * or null if it hasn't been.
+     */
+    String lastKey(String kind, String repoFullName, int prNumber, String configFingerprint) {
+        String[] revision;
+        synchronized (revisions) {
+            revision = revisions.get(repoFullName + "#" + prNumber);
+        }
+        return revision == null ? null : key(kind, repoFullName, prNumber, revision[0], revision[1], configFingerprint);
+    }
+
+    private static String kind(String key) {
+        return key.substring(0, key.indexOf(':'));
+    }
+
+    /**
+     * @return The result with the given key, or null if there isn't one.
+     */
+    @SuppressWarnings("unchecked")
+    <T> T get(String key) {
+        Object result;
+        synchronized (results) {
+            result = results.get(key);
+        }
+        Statistics stats = statistics(kind(key));
+        if (result != null) {
+            LOG.debug("Evaluation cache hit for {}", key);
+            stats.hits.increment();
+        } else {
+            stats.misses.increment();
+        }
+        return (T) result;
+    }
+
+    /**
+     * @param result The result, which mustn't be changed once it's been added.
+     */
+    void put(String key, Object result) {
+        synchronized (results) {
+            results.put(key, result);
+        }
+    }
+
+    Statistics statistics(String kind) {
+        return statistics.computeIfAbsent(kind, k -> new Statistics());
+    }
+
+    @Scheduled(every = "1h")
+    void logStatistics() {
+        LOG.info("Evaluation cache: {}", new TreeMap<>(statistics));
+    }
+}
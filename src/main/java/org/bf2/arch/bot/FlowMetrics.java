@@ -0,0 +1,111 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bf2.arch.bot;
+
+import java.util.concurrent.Callable;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Times the flow handlers, and keeps track of which handler the current thread is working for,
+ * so that {@link GitHubRequestMetrics} can attribute the GitHub requests it makes to it.
+ *
+ * The timings are recorded in {@link Metrics#globalRegistry}, to which Quarkus adds its registries,
+ * as {@value #FLOW_DURATION} histograms tagged with the {@code handler}.
+ */
+final class FlowMetrics {
+
+    static final String FLOW_DURATION = "arch_bot.flow.duration";
+
+    /** The flow of work not done for any handler */
+    static final String NO_FLOW = "none";
+
+    private static final ThreadLocal<String> CURRENT = new ThreadLocal<>();
+
+    private FlowMetrics() {
+    }
+
+    /**
+     * The timing of one call of a handler, which must be {@linkplain #close() closed} on the thread it started on.
+     */
+    static final class Timing implements AutoCloseable {
+        private final String handler;
+        private final String previous;
+        private final Timer.Sample sample;
+
+        private Timing(String handler) {
+            this.handler = handler;
+            this.previous = CURRENT.get();
+            this.sample = Timer.start(Metrics.globalRegistry);
+            CURRENT.set(handler);
+        }
+
+        @Override
+        public void close() {
+            sample.stop(Timer.builder(FLOW_DURATION)
+                    .description("The time taken by the flow handlers")
+                    .tag("handler", handler)
+                    .publishPercentileHistogram()
+                    .register(Metrics.globalRegistry));
+            if (previous != null) {
+                CURRENT.set(previous);
+            } else {
+                CURRENT.remove();
+            }
+        }
+    }
+
+    /**
+     * Starts timing a handler: {@code try (var timing = FlowMetrics.time("files")) { ... }}
+     * @param handler The name of the handler method.
+     */
+    static Timing time(String handler) {
+        return new Timing(handler);
+    }
+
+    /**
+     * @return The handler the current thread is working for, or {@link #NO_FLOW}.
+     */
+    static String current() {
+        String handler = CURRENT.get();
+        return handler != null ? handler : NO_FLOW;
+    }
+
+    /**
+     * @return The given task, which will work for the current handler on whichever thread it runs.
+     */
+    static <T> Callable<T> inCurrentFlow(Callable<T> task) {
+        String handler = CURRENT.get();
+        if (handler == null) {
+            return task;
+        }
+        return () -> {
+            String previous = CURRENT.get();
+            CURRENT.set(handler);
+            try {
+                return task.call();
+            } finally {
+                if (previous != null) {
+                    CURRENT.set(previous);
+                } else {
+                    CURRENT.remove();
+                }
+            }
+        };
+    }
+}
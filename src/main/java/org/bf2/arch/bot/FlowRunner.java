@@ -0,0 +1,113 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bf2.arch.bot;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.RequestScoped;
+import javax.inject.Inject;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.kohsuke.github.GHEventPayload;
+
+/**
+ * Runs the flows' work on a PR or issue for a webhook delivery, in the async observer the extension
+ * dispatched the delivery to, holding the PR's {@linkplain PrLocks lock}.
+ *
+ * Failures are rethrown, so they reach the extension's error handler.
+ * The work is {@linkplain FlowMetrics timed}, including writing the labels it changed in the {@link PullRequestContext},
+ * and the GitHub requests it makes are recorded against the delivery in the {@link ApiCostLedger},
+ * whose cost is logged once every flow has handled it.
+ */
+@RequestScoped
+public class FlowRunner {
+
+    @Inject
+    PrLocks locks;
+
+    @Inject
+    ApiCostLedger costLedger;
+
+    @Inject
+    PullRequestContext prContext;
+
+    private ApiCostLedger.Event cost;
+
+    /**
+     * Some work of a flow.
+     */
+    @FunctionalInterface
+    interface Task {
+        void run() throws IOException, URISyntaxException;
+    }
+
+    /**
+     * Runs some work on a PR or issue, once no other delivery is working on it.
+     * @param payload The payload of the delivery being handled.
+     * @param number The number of the PR or issue, in the payload's repository.
+     * @param flow The name of the handler doing the work, for logging and {@linkplain FlowMetrics metrics}.
+     */
+    void run(GHEventPayload payload, int number, String flow, Task task) throws IOException, URISyntaxException {
+        String key = PrLocks.key(payload.getRepository(), number);
+        if (cost == null) {
+            cost = costLedger.webhook(trigger(payload));
+        }
+        cost.handledBy(flow, key);
+        ReentrantLock lock = locks.lock(key);
+        try (var scope = cost.enter(); var timing = FlowMetrics.time(flow)) {
+            task.run();
+            prContext.flush();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The event and action of the payload, as GitHub names them, e.g. {@code issue_comment.created}.
+     */
+    static String trigger(GHEventPayload payload) {
+        String name = payload.getClass().getSimpleName();
+        StringBuilder event = new StringBuilder(name.length() + 4);
+        for (int i = 0; i < name.length(); i++) {
+            char ch = name.charAt(i);
+            if (Character.isUpperCase(ch)) {
+                if (i > 0) {
+                    event.append('_');
+                }
+                event.append(Character.toLowerCase(ch));
+            } else {
+                event.append(ch);
+            }
+        }
+        return payload.getAction() != null ? event + "." + payload.getAction() : event.toString();
+    }
+
+    /**
+     * @return The cost of the delivery so far, or null if no work has been run for it.
+     */
+    ApiCostLedger.Event cost() {
+        return cost;
+    }
+
+    @PreDestroy
+    void finish() {
+        if (cost != null) {
+            cost.finish();
+        }
+    }
+}
@@ -0,0 +1,344 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bf2.arch.bot;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.quarkiverse.githubapp.runtime.config.GitHubAppRuntimeConfig;
+import io.quarkiverse.githubapp.runtime.signing.JwtTokenCreator;
+import io.quarkus.scheduler.Scheduled;
+import okhttp3.Cache;
+import okhttp3.CacheControl;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import org.bf2.arch.bot.GitHubRateLimiter.Priority;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.kohsuke.github.GHAppInstallationToken;
+import org.kohsuke.github.GitHub;
+import org.kohsuke.github.GitHubBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Builds GitHub clients for an installation of the app, both for the flows which run outside of a webhook
+ * delivery and (via {@link PullRequestContext}) for those the github-app framework calls.
+ *
+ * Unlike {@code GitHubService.getInstallationClient()} the clients built here renew their installation
+ * token as it nears expiry, so they can be held onto for the life of the application.
+ * This class can also make plain REST and GraphQL requests for those parts of the GitHub API which
+ * the {@code github-api} client does not expose.
+ *
+ * All the requests for an installation go through an on-disk HTTP cache, so repeated GETs of the same
+ * resource are sent as conditional requests ({@code If-None-Match}/{@code If-Modified-Since}),
+ * and a {@code 304 Not Modified} response doesn't count against the installation's rate limit.
+ *
+ * The requests are scheduled by a {@link GitHubRateLimiter}, so the installation stays within its rate limits.
+ * Clients for webhook flows have {@link Priority#INTERACTIVE} priority, and those for polling
+ * {@link Priority#BACKGROUND} priority.
+ */
+@ApplicationScoped
+public class GitHubClients {
+
+    private static final Logger LOG = LoggerFactory.getLogger(GitHubClients.class);
+
+    /** Same lifetime as the github-app framework uses for its JWTs. */
+    private static final long JWT_TTL_SECONDS = 540;
+
+    /** Renew installation tokens this long before GitHub says they expire. */
+    private static final Duration TOKEN_RENEWAL_MARGIN = Duration.ofMinutes(5);
+
+    private static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
+
+    /** Always revalidate cached responses, rather than trusting GitHub's {@code max-age=60}. */
+    static final CacheControl REVALIDATE = new CacheControl.Builder().maxAge(0, TimeUnit.SECONDS).build();
+
+    static final String CACHE_DIRECTORY = "bot.github.cache.directory";
+    static final String CACHE_MAX_SIZE = "bot.github.cache.max-size";
+    static final String WRITE_INTERVAL_MS = "bot.github.write-interval-ms";
+    static final String BACKGROUND_RESERVE = "bot.github.background-reserve";
+    static final String MAX_WAIT_SECONDS = "bot.github.max-wait-seconds";
+
+    private final Map<Long, GHAppInstallationToken> tokens = new ConcurrentHashMap<>();
+
+    private final ObjectMapper mapper = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    /** One per installation, each with its own cache. */
+    private final Map<Long, OkHttpClient> httpClients = new ConcurrentHashMap<>();
+
+    /** Keyed by priority and installation; each shares the cache of the installation's client. */
+    private final Map<String, OkHttpClient> scheduledHttpClients = new ConcurrentHashMap<>();
+
+    final HttpCacheStatistics cacheStatistics = new HttpCacheStatistics();
+
+    final GitHubRateLimiter rateLimiter = new GitHubRateLimiter();
+
+    private final GitHubRequestMetrics requestMetrics = new GitHubRequestMetrics();
+
+    @ConfigProperty(name = CACHE_DIRECTORY)
+    Optional<String> cacheDirectory;
+
+    /** In bytes, per installation. Zero disables the cache. */
+    @ConfigProperty(name = CACHE_MAX_SIZE, defaultValue = "52428800")
+    long cacheMaxSize;
+
+    /** The minimum time between requests which create content, to stay under GitHub's secondary rate limits. */
+    @ConfigProperty(name = WRITE_INTERVAL_MS, defaultValue = "1000")
+    long writeIntervalMillis;
+
+    /** The fraction of each rate limit which polling leaves for webhook flows. */
+    @ConfigProperty(name = BACKGROUND_RESERVE, defaultValue = "0.2")
+    double backgroundReserve;
+
+    /** The longest a request waits to be sent (or retried) because of the rate limits. */
+    @ConfigProperty(name = MAX_WAIT_SECONDS, defaultValue = "300")
+    long maxWaitSeconds;
+
+    @Inject
+    GitHubAppRuntimeConfig appConfig;
+
+    @Inject
+    JwtTokenCreator jwtTokenCreator;
+
+    @PostConstruct
+    void configureRateLimiter() {
+        rateLimiter.writeIntervalMillis = writeIntervalMillis;
+        rateLimiter.backgroundReserve = backgroundReserve;
+        rateLimiter.maxWaitMillis = TimeUnit.SECONDS.toMillis(maxWaitSeconds);
+    }
+
+    /**
+     * @return A client authenticated as the given installation, for interactive work.
+     */
+    public GitHub installationClient(long installationId) throws IOException {
+        return installationClient(installationId, Priority.INTERACTIVE);
+    }
+
+    /**
+     * @return A client authenticated as the given installation, whose requests have the given priority.
+     */
+    public GitHub installationClient(long installationId, Priority priority) throws IOException {
+        return new GitHubBuilder()
+                .withEndpoint(appConfig.instanceEndpoint)
+                .withConnector(new OkHttp3GitHubConnector(httpClient(installationId, priority)))
+                .withAuthorizationProvider(() -> "token " + installationToken(installationId))
+                .build();
+    }
+
+    OkHttpClient httpClient(long installationId, Priority priority) {
+        return scheduledHttpClients.computeIfAbsent(priority + ":" + installationId,
+                key -> httpClient(installationId).newBuilder()
+                        .addInterceptor(rateLimiter.interceptor(installationId, priority))
+                        .build());
+    }
+
+    OkHttpClient httpClient(long installationId) {
+        return httpClients.computeIfAbsent(installationId, this::createHttpClient);
+    }
+
+    private OkHttpClient createHttpClient(long installationId) {
+        OkHttpClient.Builder builder = new OkHttpClient.Builder()
+                .addInterceptor(requestMetrics)
+                .addInterceptor(cacheStatistics);
+        if (cacheMaxSize > 0) {
+            File directory = new File(cacheDirectory.orElse(System.getProperty("java.io.tmpdir") + "/arch-bot-http-cache"),
+                    Long.toString(installationId));
+            LOG.info("Caching GitHub responses for installation {} in {}", installationId, directory);
+            builder.cache(new Cache(directory, cacheMaxSize))
+                    .addNetworkInterceptor(GitHubClients::ignoreAuthorizationVary);
+        }
+        return builder.build();
+    }
+
+    /**
+     * GitHub responses {@code Vary} by {@code Authorization}, so by default a cached response could not
+     * be used once the installation token had been renewed. Every request through a given cache uses
+     * the same installation's token, so it's safe to ignore the {@code Authorization} header.
+     */
+    private static Response ignoreAuthorizationVary(Interceptor.Chain chain) throws IOException {
+        Response response = chain.proceed(chain.request());
+        String vary = response.header("Vary");
+        if (vary == null) {
+            return response;
+        }
+        String rewritten = Arrays.stream(vary.split(","))
+                .map(String::trim)
+                .filter(header -> !header.equalsIgnoreCase("Authorization"))
+                .collect(Collectors.joining(", "));
+        return rewritten.isEmpty() ? response.newBuilder().removeHeader("Vary").build()
+                : response.newBuilder().header("Vary", rewritten).build();
+    }
+
+    HttpCacheStatistics cacheStatistics() {
+        return cacheStatistics;
+    }
+
+    GitHubRateLimiter rateLimiter() {
+        return rateLimiter;
+    }
+
+    @Scheduled(every = "1h")
+    void logCacheStatistics() {
+        LOG.info("GitHub HTTP cache: {}, {} requests saved", cacheStatistics, cacheStatistics.saved());
+        LOG.info("GitHub rate limits: {}", rateLimiter);
+    }
+
+    /**
+     * @return Whether polling for the given installation should be put off until its rate limit resets,
+     * to leave the rest of the limit for webhook flows.
+     */
+    boolean shouldDeferBackground(long installationId) {
+        return rateLimiter.shouldDefer(installationId);
+    }
+
+    /**
+     * GETs every page of a REST resource, following the {@code Link: <...>; rel="next"} response headers.
+     * @param installationId The installation to authenticate as.
+     * @param priority The priority of the requests.
+     * @param pathAndQuery The path (and query string) of the resource, relative to the API endpoint,
+     * e.g. {@code /repos/foo/bar/pulls/comments?sort=created}.
+     * @param type The array type to map each page to.
+     * @return The items from all the pages, in the order GitHub returned them.
+     */
+    <T> List<T> getAllPages(long installationId, Priority priority, String pathAndQuery, Class<T[]> type)
+            throws IOException {
+        List<T> result = new ArrayList<>();
+        String url = appConfig.instanceEndpoint + pathAndQuery;
+        while (url != null) {
+            LOG.debug("GET {}", url);
+            Request request = new Request.Builder()
+                    .url(url)
+                    .header("Authorization", "token " + installationToken(installationId))
+                    .header("Accept", "application/vnd.github.v3+json")
+                    .cacheControl(REVALIDATE)
+                    .build();
+            try (Response response = httpClient(installationId, priority).newCall(request).execute()) {
+                ResponseBody body = response.body();
+                if (!response.isSuccessful() || body == null) {
+                    throw new IOException("GET " + url + " failed with status " + response.code());
+                }
+                result.addAll(Arrays.asList(mapper.readValue(body.byteStream(), type)));
+                url = Util.nextLink(response.header("Link"));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Executes a GraphQL query.
+     * @param installationId The installation to authenticate as.
+     * @param priority The priority of the request.
+     * @param query The query document.
+     * @param variables The values of the query's variables.
+     * @return The {@code data} of the response.
+     * @throws IOException If the request failed, or the response has {@code errors}.
+     */
+    JsonNode graphql(long installationId, Priority priority, String query, Map<String, Object> variables)
+            throws IOException {
+        Map<String, Object> document = new HashMap<>();
+        document.put("query", query);
+        document.put("variables", variables);
+        String url = graphqlEndpoint(appConfig.instanceEndpoint);
+        LOG.debug("POST {}", url);
+        Request request = new Request.Builder()
+                .url(url)
+                .header("Authorization", "bearer " + installationToken(installationId))
+                .post(RequestBody.create(JSON, mapper.writeValueAsBytes(document)))
+                .build();
+        try (Response response = httpClient(installationId, priority).newCall(request).execute()) {
+            ResponseBody body = response.body();
+            if (!response.isSuccessful() || body == null) {
+                throw new IOException("POST " + url + " failed with status " + response.code());
+            }
+            JsonNode result = mapper.readTree(body.byteStream());
+            if (result.hasNonNull("errors")) {
+                throw new IOException("GraphQL query failed: " + result.get("errors"));
+            }
+            return result.get("data");
+        }
+    }
+
+    /**
+     * @return The GraphQL endpoint corresponding to the given REST endpoint.
+     * For GitHub Enterprise the REST API is at {@code /api/v3} and the GraphQL one at {@code /api/graphql}.
+     */
+    static String graphqlEndpoint(String restEndpoint) {
+        if (restEndpoint.endsWith("/api/v3")) {
+            return restEndpoint.substring(0, restEndpoint.length() - "/v3".length()) + "/graphql";
+        }
+        return restEndpoint + "/graphql";
+    }
+
+    String installationToken(long installationId) throws IOException {
+        try {
+            // Computed under the map's lock, so concurrent callers share one new token rather than each create one
+            return tokens.compute(installationId, (id, token) -> {
+                try {
+                    if (token != null
+                            && token.getExpiresAt().toInstant().minus(TOKEN_RENEWAL_MARGIN).isAfter(Instant.now())) {
+                        return token;
+                    }
+                    LOG.debug("Creating installation token for installation {}", id);
+                    return createInstallationToken(id);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }).getToken();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    GHAppInstallationToken createInstallationToken(long installationId) throws IOException {
+        String jwt;
+        try {
+            jwt = jwtTokenCreator.createJwtToken(appConfig.appId, appConfig.privateKey, JWT_TTL_SECONDS);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Unable to generate the JWT token", e);
+        }
+        GitHub application = new GitHubBuilder()
+                .withEndpoint(appConfig.instanceEndpoint)
+                .withJwtToken(jwt)
+                .build();
+        return application.getApp().getInstallationById(installationId).createToken().create();
+    }
+}
@@ -0,0 +1,354 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bf2.arch.bot;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Schedules the requests made to GitHub for each installation of the app, so they stay within its rate limits,
+ * rather than failing once they've been exceeded.
+ *
+ * <ul>
+ *     <li>The primary limits are tracked from the {@code X-RateLimit-*} headers of GitHub's responses,
+ *     separately for the {@code core}, {@code search} and {@code graphql} resources.</li>
+ *     <li>Requests have a {@link Priority}. Webhook flows are {@link Priority#INTERACTIVE}, and always go first:
+ *     {@link Priority#BACKGROUND} requests (those of the stalled discussion poll) wait while there are interactive
+ *     requests in flight, are spread out over the rest of the rate limit window once the remaining budget gets low,
+ *     and wait for the window to reset rather than use the last {@linkplain #backgroundReserve part of the budget}.
+ *     {@link #shouldDefer(long)} tells a poll not to start at all.</li>
+ *     <li>Requests which create content ({@code POST}, {@code PATCH}, {@code PUT} and {@code DELETE}) are paced at
+ *     least {@linkplain #writeIntervalMillis an interval} apart, as GitHub recommends,
+ *     to stay under its secondary rate limits.</li>
+ *     <li>A request which is rate limited anyway (a {@code 403} or {@code 429} with {@code Retry-After},
+ *     or no remaining budget) is retried once, after waiting as long as GitHub asks (up to {@link #maxWaitMillis}).</li>
+ * </ul>
+ */
+class GitHubRateLimiter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(GitHubRateLimiter.class);
+
+    private static final int HTTP_FORBIDDEN = 403;
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    /** How often a background request checks whether the interactive requests have finished. */
+    private static final long YIELD_MILLIS = 100;
+
+    enum Priority {
+        /** Work done in response to a person, such as handling a webhook */
+        INTERACTIVE,
+        /** Polling, which can wait */
+        BACKGROUND
+    }
+
+    /**
+     * The state of the rate limit of one resource, for one installation.
+     */
+    static final class Budget {
+        /** -1 until known */
+        volatile int limit = -1;
+        /** -1 until known */
+        volatile int remaining = -1;
+        /** When the window resets, in milliseconds since the epoch */
+        volatile long resetMillis;
+
+        synchronized void update(Response networkResponse) {
+            String limit = networkResponse.header("X-RateLimit-Limit");
+            String remaining = networkResponse.header("X-RateLimit-Remaining");
+            String reset = networkResponse.header("X-RateLimit-Reset");
+            try {
+                if (limit != null && remaining != null && reset != null) {
+                    this.limit = Integer.parseInt(limit.trim());
+                    this.remaining = Integer.parseInt(remaining.trim());
+                    this.resetMillis = Long.parseLong(reset.trim()) * 1000;
+                }
+            } catch (NumberFormatException e) {
+                LOG.debug("Ignoring malformed rate limit headers {}/{}/{}", remaining, limit, reset);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return remaining + "/" + limit;
+        }
+    }
+
+    /**
+     * The state of one installation.
+     */
+    private static final class Installation {
+        /** Keyed by resource */
+        final Map<String, Budget> budgets = new ConcurrentHashMap<>();
+        final AtomicInteger interactiveInFlight = new AtomicInteger();
+        /** When the last write was sent, in milliseconds since the epoch */
+        long lastWriteMillis;
+    }
+
+    /** The minimum time between writes, in milliseconds. */
+    volatile long writeIntervalMillis;
+    /** The fraction of each rate limit which background requests leave for interactive ones. */
+    volatile double backgroundReserve;
+    /** The longest a request will wait, in milliseconds. */
+    volatile long maxWaitMillis;
+
+    private final Map<Long, Installation> installations = new ConcurrentHashMap<>();
+    private final LongSupplier clock;
+
+    private final LongAdder waits = new LongAdder();
+    private final LongAdder waitedMillis = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder deferrals = new LongAdder();
+
+    GitHubRateLimiter() {
+        this(System::currentTimeMillis);
+    }
+
+    GitHubRateLimiter(LongSupplier clock) {
+        this.clock = clock;
+    }
+
+    private Installation installation(long installationId) {
+        return installations.computeIfAbsent(installationId, k -> new Installation());
+    }
+
+    /**
+     * @return The budget of the given resource ({@code core}, {@code search} or {@code graphql}) for the installation.
+     */
+    Budget budget(long installationId, String resource) {
+        return installation(installationId).budgets.computeIfAbsent(resource, k -> new Budget());
+    }
+
+    /**
+     * @return The rate limit resource a request counts against.
+     */
+    static String resource(Request request) {
+        String path = request.url().encodedPath();
+        if (path.endsWith("/graphql")) {
+            return "graphql";
+        } else if (path.startsWith("/search/") || path.contains("/api/v3/search/")) {
+            return "search";
+        }
+        return "core";
+    }
+
+    /**
+     * @return An interceptor which schedules the requests of an installation with the given priority.
+     */
+    Interceptor interceptor(long installationId, Priority priority) {
+        return chain -> intercept(chain, installationId, priority);
+    }
+
+    /**
+     * @return Whether background work for the installation should be put off until later,
+     * because what's left of its {@code core} budget is reserved for interactive work.
+     */
+    boolean shouldDefer(long installationId) {
+        Budget budget = budget(installationId, "core");
+        boolean defer = belowReserve(budget) && clock.getAsLong() < budget.resetMillis;
+        if (defer) {
+            deferrals.increment();
+            LOG.info("Deferring background work for installation {}: {} requests left", installationId, budget);
+        }
+        return defer;
+    }
+
+    private boolean belowReserve(Budget budget) {
+        return budget.limit > 0 && budget.remaining <= reserve(budget);
+    }
+
+    private int reserve(Budget budget) {
+        return (int) Math.ceil(budget.limit * backgroundReserve);
+    }
+
+    private Response intercept(Interceptor.Chain chain, long installationId, Priority priority) throws IOException {
+        Installation installation = installation(installationId);
+        Request request = chain.request();
+        Budget budget = budget(installationId, resource(request));
+        if (priority == Priority.INTERACTIVE) {
+            installation.interactiveInFlight.incrementAndGet();
+        }
+        try {
+            if (priority == Priority.BACKGROUND) {
+                yieldToInteractive(installation);
+                paceBackground(budget);
+            } else if (budget.remaining == 0) {
+                sleepUntil(budget.resetMillis);
+            }
+            if (isWrite(request)) {
+                paceWrite(installation);
+            }
+            Response response = proceed(chain, request, budget);
+            long retryAt = retryAt(response, budget);
+            if (retryAt >= 0) {
+                LOG.info("Rate limited {} {}: retrying in {}ms", request.method(), request.url().encodedPath(),
+                        retryAt - clock.getAsLong());
+                response.close();
+                retries.increment();
+                sleepUntil(retryAt);
+                if (isWrite(request)) {
+                    paceWrite(installation);
+                }
+                response = proceed(chain, request, budget);
+            }
+            return response;
+        } finally {
+            if (priority == Priority.INTERACTIVE) {
+                installation.interactiveInFlight.decrementAndGet();
+            }
+        }
+    }
+
+    private static Response proceed(Interceptor.Chain chain, Request request, Budget budget) throws IOException {
+        Response response = chain.proceed(request);
+        // Responses served from the cache have stale headers, and didn't count against the limit
+        Response networkResponse = response.networkResponse();
+        if (networkResponse != null) {
+            budget.update(networkResponse);
+        }
+        return response;
+    }
+
+    /**
+     * @return When to retry a rate limited request, in milliseconds since the epoch,
+     * or -1 if it wasn't rate limited.
+     */
+    private long retryAt(Response response, Budget budget) {
+        if (response.code() != HTTP_FORBIDDEN && response.code() != HTTP_TOO_MANY_REQUESTS) {
+            return -1;
+        }
+        String retryAfter = response.header("Retry-After");
+        if (retryAfter != null) {
+            try {
+                // Secondary rate limit
+                return clock.getAsLong() + TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter.trim()));
+            } catch (NumberFormatException e) {
+                return clock.getAsLong() + TimeUnit.MINUTES.toMillis(1);
+            }
+        }
+        if ("0".equals(response.header("X-RateLimit-Remaining"))) {
+            // Primary rate limit
+            return budget.resetMillis;
+        }
+        // Just forbidden
+        return -1;
+    }
+
+    /**
+     * @return Whether the request creates or changes content, which GitHub's secondary rate limits apply to.
+     */
+    static boolean isWrite(Request request) {
+        switch (request.method()) {
+            case "POST":
+            case "PATCH":
+            case "PUT":
+            case "DELETE":
+                // GraphQL queries are POSTed, but don't create content
+                return !request.url().encodedPath().endsWith("/graphql");
+            default:
+                return false;
+        }
+    }
+
+    private void paceWrite(Installation installation) throws InterruptedIOException {
+        synchronized (installation) {
+            sleepUntil(installation.lastWriteMillis + writeIntervalMillis);
+            installation.lastWriteMillis = clock.getAsLong();
+        }
+    }
+
+    private void yieldToInteractive(Installation installation) throws InterruptedIOException {
+        long deadline = clock.getAsLong() + maxWaitMillis;
+        while (installation.interactiveInFlight.get() > 0 && clock.getAsLong() < deadline) {
+            sleep(YIELD_MILLIS);
+        }
+    }
+
+    /**
+     * Below twice the reserve, background requests are spread out evenly over the rest of the window.
+     * Below the reserve they wait for the window to reset.
+     */
+    private void paceBackground(Budget budget) throws InterruptedIOException {
+        int reserve = reserve(budget);
+        int remaining = budget.remaining;
+        if (budget.limit <= 0 || remaining > 2 * reserve) {
+            return;
+        }
+        long now = clock.getAsLong();
+        if (remaining <= reserve) {
+            LOG.info("Background request waiting for the rate limit to reset: {} requests left", budget);
+            sleepUntil(budget.resetMillis);
+        } else {
+            sleepUntil(now + Math.max(0, budget.resetMillis - now) / (remaining - reserve));
+        }
+    }
+
+    private void sleepUntil(long millis) throws InterruptedIOException {
+        sleep(Math.min(millis - clock.getAsLong(), maxWaitMillis));
+    }
+
+    /**
+     * Overridden in tests.
+     */
+    void sleep(long millis) throws InterruptedIOException {
+        if (millis <= 0) {
+            return;
+        }
+        waits.increment();
+        waitedMillis.add(millis);
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to send a request to GitHub");
+        }
+    }
+
+    long waits() {
+        return waits.sum();
+    }
+
+    long retries() {
+        return retries.sum();
+    }
+
+    long deferrals() {
+        return deferrals.sum();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("waits=").append(waits())
+                .append(" (").append(waitedMillis.sum()).append("ms)")
+                .append(", retries=").append(retries())
+                .append(", deferrals=").append(deferrals());
+        installations.forEach((id, installation) -> sb.append(", installation ").append(id).append(' ')
+                .append(installation.budgets));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bf2.arch.bot;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Records every request {@link GitHubClients} makes to GitHub in {@link Metrics#globalRegistry}:
+ * <ul>
+ *     <li>{@value #REQUESTS}: the count and latency of the requests, tagged with the {@code method},
+ *     the {@code endpoint} (the path, with the owner, repo, numbers and so on replaced by placeholders),
+ *     the {@code status}, how the HTTP {@code cache} served it, and the {@code flow} it was made for
+ *     (see {@link FlowMetrics}).</li>
+ *     <li>{@value #LABEL_WRITES}: the requests which added or removed the labels of an issue or PR,
+ *     tagged with the {@code flow}.</li>
+ * </ul>
+ * It also records each request against the current event of the {@link ApiCostLedger}
+ * (or, if it was served from the HTTP cache without going to GitHub, just the cache hit).
+ */
+class GitHubRequestMetrics implements Interceptor {
+
+    static final String REQUESTS = "arch_bot.github.requests";
+    static final String LABEL_WRITES = "arch_bot.github.label.writes";
+
+    private static final Pattern NUMBER = Pattern.compile("[0-9]+");
+    private static final Pattern SHA = Pattern.compile("[0-9a-f]{40}");
+
+    /** Segments followed by a name, e.g. {@code /labels/state: draft} */
+    private static final Set<String> NAMED = Set.of("labels", "branches", "users", "orgs", "teams", "collaborators");
+    /** Segments followed by a path of any length, e.g. {@code /contents/_adr/12/index.adoc} */
+    private static final Set<String> PATHS = Set.of("contents", "compare");
+
+    private static final Pattern LABELS = Pattern.compile("/repos/\\{owner}/\\{repo}/issues/\\{number}/labels(/\\{name})?");
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        String endpoint = endpoint(request.url().encodedPath());
+        String flow = FlowMetrics.current();
+        ApiCostLedger.Event event = ApiCostLedger.current();
+        long start = System.nanoTime();
+        String status = "IO_ERROR";
+        String cache = "none";
+        try {
+            Response response = chain.proceed(request);
+            status = Integer.toString(response.code());
+            if ("GET".equals(request.method())) {
+                cache = cache(response);
+            }
+            return response;
+        } finally {
+            long nanos = System.nanoTime() - start;
+            if (event == null) {
+                // Not working for any event
+            } else if ("hit".equals(cache)) {
+                event.recordCacheHit();
+            } else {
+                event.record(request.method(), endpoint, GitHubRateLimiter.isWrite(request), nanos);
+            }
+            Timer.builder(REQUESTS)
+                    .description("The requests made to GitHub")
+                    .tag("method", request.method())
+                    .tag("endpoint", endpoint)
+                    .tag("status", status)
+                    .tag("cache", cache)
+                    .tag("flow", flow)
+                    .register(Metrics.globalRegistry)
+                    .record(nanos, TimeUnit.NANOSECONDS);
+            if (!"GET".equals(request.method()) && LABELS.matcher(endpoint).matches()) {
+                Counter.builder(LABEL_WRITES)
+                        .description("The requests which changed the labels of an issue or PR")
+                        .tag("flow", flow)
+                        .register(Metrics.globalRegistry)
+                        .increment();
+            }
+        }
+    }
+
+    /**
+     * @return How the response was served, in the terms of {@link HttpCacheStatistics}.
+     */
+    private static String cache(Response response) {
+        Response networkResponse = response.networkResponse();
+        if (networkResponse == null) {
+            return "hit";
+        } else if (networkResponse.code() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            return "revalidation";
+        }
+        return "miss";
+    }
+
+    /**
+     * @return The path of a request, with the parts which identify a particular resource replaced by placeholders,
+     * so there are few enough of them to tag metrics with.
+     * E.g. {@code /repos/foo/bar/pulls/12/files} is {@code /repos/{owner}/{repo}/pulls/{number}/files}.
+     */
+    static String endpoint(String path) {
+        if (path.startsWith("/api/v3/")) {
+            // GitHub Enterprise
+            path = path.substring("/api/v3".length());
+        } else if (path.equals("/api/graphql")) {
+            return "/graphql";
+        }
+        String[] segments = path.split("/");
+        StringBuilder sb = new StringBuilder();
+        for (int i = 1; i < segments.length; i++) {
+            String segment = segments[i];
+            String previous = segments[i - 1];
+            sb.append('/');
+            if (i == 2 && "repos".equals(previous)) {
+                sb.append("{owner}");
+            } else if (i == 3 && "repos".equals(segments[1])) {
+                sb.append("{repo}");
+            } else if (PATHS.contains(previous) || (i >= 5 && "git".equals(segments[i - 2]))) {
+                // E.g. /git/refs/heads/main
+                sb.append("{path}");
+                break;
+            } else if (NAMED.contains(previous)) {
+                sb.append("{name}");
+            } else if (NUMBER.matcher(segment).matches()) {
+                sb.append("{number}");
+            } else if (SHA.matcher(segment).matches()) {
+                sb.append("{sha}");
+            } else {
+                sb.append(segment);
+            }
+        }
+        return sb.length() == 0 ? "/" : sb.toString();
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bf2.arch.bot;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.concurrent.atomic.LongAdder;
+
+import okhttp3.Interceptor;
+import okhttp3.Response;
+
+/**
+ * Counts how the HTTP response cache of {@link GitHubClients} served each GET request:
+ * <ul>
+ *     <li>hits were served from the cache without a request to GitHub,</li>
+ *     <li>revalidations were conditional requests answered with {@code 304 Not Modified},
+ *     which GitHub does not count against the rate limit,</li>
+ *     <li>misses were answered with a full response.</li>
+ * </ul>
+ */
+class HttpCacheStatistics implements Interceptor {
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder revalidations = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Response response = chain.proceed(chain.request());
+        if ("GET".equals(chain.request().method())) {
+            Response networkResponse = response.networkResponse();
+            if (networkResponse == null) {
+                hits.increment();
+            } else if (networkResponse.code() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                revalidations.increment();
+            } else {
+                misses.increment();
+            }
+        }
+        return response;
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long revalidations() {
+        return revalidations.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return The number of requests which did not count against the rate limit because of the cache.
+     */
+    long saved() {
+        return hits() + revalidations();
+    }
+
+    @Override
+    public String toString() {
+        return "hits=" + hits() + ", revalidations=" + revalidations() + ", misses=" + misses();
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bf2.arch.bot;
+
+import javax.enterprise.context.ApplicationScoped;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.kohsuke.github.GHIssueComment;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Remembers which comments have already been acted on,
+ * so that an action with side effects (such as {@code /create adr}) is done at most once for each,
+ * however many times GitHub delivers the event.
+ *
+ * GitHub redelivers an event when a delivery times out,
+ * and a comment can reach a flow as both {@code created} and {@code edited} events.
+ * The delivery id isn't available to the flows, but every delivery of a comment has its id and body,
+ * so an action is keyed on the comment id plus a SHA-1 of the comment's body:
+ * an edit which changes the body is a new request.
+ * A claim is released if the action fails, so that the request can be retried.
+ *
+ * The keys are kept in memory and in a file, so they survive restarts.
+ * Each claim and release is appended to the file, which is only rewritten (atomically) once it has grown to
+ * twice {@code bot.idempotency.max-keys} lines.
+ * Only the most recent keys ({@code bot.idempotency.max-keys} of them) are kept, which is plenty,
+ * since GitHub only redelivers recent events.
+ */
+@ApplicationScoped
+public class IdempotencyStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(IdempotencyStore.class);
+
+    static final String DIRECTORY = "bot.idempotency.directory";
+    static final String MAX_KEYS = "bot.idempotency.max-keys";
+
+    /** Prefixes a key which has been released, in the file */
+    private static final String RELEASED = "-";
+
+    @ConfigProperty(name = DIRECTORY)
+    Optional<String> directory;
+
+    @ConfigProperty(name = MAX_KEYS, defaultValue = "4096")
+    int maxKeys;
+
+    /** In the order they were claimed, oldest first; null until read from the file */
+    private LinkedHashSet<String> keys;
+
+    /** The number of lines in the file */
+    private int lines;
+
+    /**
+     * @return The key for a comment, as its body is now.
+     */
+    static String commentKey(GHIssueComment comment) {
+        return commentKey(comment.getId(), comment.getBody());
+    }
+
+    static String commentKey(long commentId, String body) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(String.valueOf(body).getBytes(StandardCharsets.UTF_8));
+            return "comment:" + commentId + ":" + Util.hex(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Claims the right to act on a request.
+     * @param key The key of the request.
+     * @return true iff the key had not been claimed before, in which case it is now,
+     * and the caller should act; false if the request is a duplicate, which the caller should ignore.
+     */
+    synchronized boolean claim(String key) throws IOException {
+        Set<String> claimed = keys();
+        if (!claimed.add(key)) {
+            LOG.debug("Already claimed {}", key);
+            return false;
+        }
+        trim(claimed);
+        append(key);
+        return true;
+    }
+
+    /**
+     * Releases a claim, after acting on the request failed, so that it can be retried.
+     * @param key The key of the request.
+     */
+    synchronized void release(String key) throws IOException {
+        if (keys().remove(key)) {
+            append(RELEASED + key);
+        }
+    }
+
+    private void trim(Set<String> claimed) {
+        var it = claimed.iterator();
+        while (claimed.size() > maxKeys) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    private Set<String> keys() {
+        if (keys == null) {
+            keys = new LinkedHashSet<>();
+            lines = 0;
+            Path path = path();
+            try {
+                for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+                    lines++;
+                    if (line.startsWith(RELEASED)) {
+                        keys.remove(line.substring(RELEASED.length()));
+                    } else if (!line.isEmpty()) {
+                        keys.add(line);
+                    }
+                }
+                trim(keys);
+            } catch (NoSuchFileException e) {
+                // Nothing claimed yet
+            } catch (IOException e) {
+                LOG.warn("Ignoring unreadable idempotency keys {}", path, e);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Records a change to the keys, which have already been changed in memory.
+     */
+    private void append(String line) throws IOException {
+        if (lines >= 2 * maxKeys) {
+            compact();
+            return;
+        }
+        Path path = path();
+        Files.createDirectories(path.getParent());
+        Files.write(path, List.of(line), StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        lines++;
+    }
+
+    /**
+     * Rewrites the file with just the keys which are claimed now.
+     */
+    private void compact() throws IOException {
+        Path path = path();
+        Files.createDirectories(path.getParent());
+        // Write to a temporary file, so a crash never leaves partial keys
+        Path tmp = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+        try {
+            Files.write(tmp, keys, StandardCharsets.UTF_8);
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        lines = keys.size();
+    }
+
+    private Path path() {
+        return Paths.get(directory.orElse(System.getProperty("java.io.tmpdir") + "/arch-bot-idempotency"))
+                .resolve("keys");
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bf2.arch.bot;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import okhttp3.CacheControl;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import org.kohsuke.github.connector.GitHubConnector;
+import org.kohsuke.github.connector.GitHubConnectorRequest;
+import org.kohsuke.github.connector.GitHubConnectorResponse;
+
+/**
+ * Sends the requests of a {@code GitHub} client through an {@link OkHttpClient}.
+ *
+ * {@code github-api}'s own {@code OkHttpGitHubConnector} needs OkHttp 4, but Quarkus provides OkHttp 3,
+ * with which it fails to send any request with a body.
+ * Like that connector, every request revalidates any cached response, rather than trusting its {@code max-age}.
+ */
+class OkHttp3GitHubConnector implements GitHubConnector {
+
+    /** The methods which OkHttp requires to have a body, even an empty one. */
+    private static final Set<String> BODY_REQUIRED = Set.of("POST", "PUT", "PATCH");
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final OkHttpClient client;
+
+    OkHttp3GitHubConnector(OkHttpClient client) {
+        this.client = client;
+    }
+
+    @Override
+    public GitHubConnectorResponse send(GitHubConnectorRequest request) throws IOException {
+        Request.Builder builder = new Request.Builder().url(request.url());
+        for (Map.Entry<String, List<String>> header : request.allHeaders().entrySet()) {
+            if (header.getValue() != null) {
+                builder.header(header.getKey(), String.join(",", header.getValue()));
+            }
+        }
+        if (request.header("Cache-Control") == null) {
+            builder.cacheControl(GitHubClients.REVALIDATE);
+        }
+        RequestBody body = null;
+        if (request.hasBody() || BODY_REQUIRED.contains(request.method())) {
+            byte[] content = EMPTY;
+            if (request.hasBody()) {
+                try (InputStream in = request.body()) {
+                    content = in.readAllBytes();
+                }
+            }
+            String contentType = request.contentType();
+            body = RequestBody.create(contentType != null ? MediaType.parse(contentType) : null, content);
+        }
+        builder.method(request.method(), body);
+        return new OkHttp3Response(request, client.newCall(builder.build()).execute());
+    }
+
+    private static class OkHttp3Response extends GitHubConnectorResponse {
+
+        private final Response response;
+
+        OkHttp3Response(GitHubConnectorRequest request, Response response) {
+            super(request, response.code(), response.headers().toMultimap());
+            this.response = response;
+        }
+
+        @Override
+        public InputStream bodyStream() throws IOException {
+            ResponseBody body = response.body();
+            return body != null ? wrapStream(body.byteStream()) : null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            response.close();
+        }
+    }
+}
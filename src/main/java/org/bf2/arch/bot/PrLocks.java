@@ -0,0 +1,102 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bf2.arch.bot;
+
+import javax.enterprise.context.ApplicationScoped;
+import java.util.concurrent.locks.ReentrantLock;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.kohsuke.github.GHRepository;
+
+/**
+ * Serializes the flows' work on each PR or issue.
+ *
+ * The extension already dispatches each webhook delivery asynchronously, and two deliveries about the same PR
+ * (an {@code edited} quickly followed by a comment, say) can be handled at the same time on different threads.
+ * The flows read the PR's labels and then change them, so they hold the PR's lock while they do.
+ *
+ * There are a fixed number of locks ({@code bot.pr-locks.stripes}), chosen by the {@linkplain #key key}
+ * of the PR, so memory doesn't grow with the number of PRs seen. They are fair,
+ * so deliveries about one PR are handled in the order their threads got to them.
+ * The time each delivery waits, from being dispatched to starting its work, is recorded in
+ * {@link Metrics#globalRegistry} as the {@value #LOCK_WAIT} histogram.
+ */
+@ApplicationScoped
+public class PrLocks {
+
+    static final String STRIPES = "bot.pr-locks.stripes";
+
+    static final String LOCK_WAIT = "arch_bot.pr.lock.wait";
+
+    @ConfigProperty(name = STRIPES, defaultValue = "64")
+    int stripes;
+
+    private ReentrantLock[] locks;
+
+    /**
+     * @return The key of the given PR or issue (which share numbers).
+     */
+    static String key(GHRepository repository, int number) {
+        return repository.getFullName() + "#" + number;
+    }
+
+    private synchronized ReentrantLock stripe(String key) {
+        if (locks == null) {
+            locks = new ReentrantLock[stripes];
+            for (int i = 0; i < stripes; i++) {
+                locks[i] = new ReentrantLock(true);
+            }
+        }
+        return locks[Math.floorMod(key.hashCode(), stripes)];
+    }
+
+    /**
+     * Waits for the lock of a PR or issue, which must be {@linkplain ReentrantLock#unlock() unlocked} afterwards.
+     * @param key The {@linkplain #key key} of the PR or issue.
+     * @return The lock.
+     */
+    ReentrantLock lock(String key) {
+        ReentrantLock lock = stripe(key);
+        if (lock.isHeldByCurrentThread()) {
+            // Another flow of the same delivery, which has already waited
+            lock.lock();
+            return lock;
+        }
+        Timer.Sample sample = Timer.start(Metrics.globalRegistry);
+        lock.lock();
+        sample.stop(Timer.builder(LOCK_WAIT)
+                .description("The time webhook deliveries waited for another delivery about the same PR")
+                .publishPercentileHistogram()
+                .register(Metrics.globalRegistry));
+        return lock;
+    }
+
+    /**
+     * @return The (approximate) number of threads waiting for a lock.
+     */
+    synchronized int waiting() {
+        int waiting = 0;
+        if (locks != null) {
+            for (ReentrantLock lock : locks) {
+                waiting += lock.getQueueLength();
+            }
+        }
+        return waiting;
+    }
+}
@@ -1,26 +1,25 @@
 package org.bf2.arch.bot;
 
+import javax.inject.Inject;
 import java.io.IOException;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.EnumSet;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Locale;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 import io.quarkiverse.githubapp.event.IssueComment;
 import io.quarkiverse.githubapp.event.PullRequest;
 import org.bf2.arch.bot.model.record.RecordId;
-import org.bf2.arch.bot.model.record.RecordType;
+import org.bf2.arch.bot.model.record.RecordPaths;
 import org.bf2.arch.bot.model.patch.FilePatch;
 import org.bf2.arch.bot.model.patch.Line;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
-import org.kohsuke.github.GHCommitPointer;
 import org.kohsuke.github.GHDirection;
 import org.kohsuke.github.GHEventPayload;
 import org.kohsuke.github.GHIssue;
@@ -28,7 +27,9 @@ import org.kohsuke.github.GHIssueState;
 import org.kohsuke.github.GHPerson;
 import org.kohsuke.github.GHPullRequest;
 import org.kohsuke.github.GHPullRequestQueryBuilder;
+import org.kohsuke.github.GHPullRequestReview;
 import org.kohsuke.github.GHPullRequestReviewBuilder;
+import org.kohsuke.github.GHPullRequestReviewEvent;
 import org.kohsuke.github.GHRepository;
 import org.kohsuke.github.GitHub;
 import org.slf4j.Logger;
@@ -49,6 +50,24 @@ public class PrReviewFlow {
     @ConfigProperty(name = ENABLE, defaultValue = "false")
     boolean enabled;
 
+    @Inject
+    RecordIndex recordIndex;
+
+    @Inject
+    RecordPageCache pageCache;
+
+    @Inject
+    PullRequestContext prContext;
+
+    @Inject
+    EvaluationCache evaluations;
+
+    @Inject
+    ConfigCache configCache;
+
+    @Inject
+    FlowRunner runner;
+
     /**
      * When a PR that touches an ADR is marked ready for review:
      * 1. Bot adds "needs-reviewers" label
@@ -112,41 +131,41 @@ public class PrReviewFlow {
     }
 
     public void onPullRequestOpened(@PullRequest.Opened
-                                    GHEventPayload.PullRequest pullRequest) throws IOException {
+                                    GHEventPayload.PullRequest pullRequest) throws IOException, URISyntaxException {
         if (!enabled) {
             LOG.debug("Ignoring event: disabled due to {}=false", ENABLE);
             return;
         }
         if (!pullRequest.getPullRequest().isDraft()) {
             LOG.debug("ReadyForReview PR #{} opened", pullRequest.getNumber());
-            files(pullRequest.getPullRequest());
+            review(pullRequest);
         } else {
             LOG.debug("Draft PR #{} opened", pullRequest.getNumber());
         }
     }
 
     public void onPullRequestEdited(@PullRequest.Edited
-                                    GHEventPayload.PullRequest pullRequest) throws IOException {
+                                    GHEventPayload.PullRequest pullRequest) throws IOException, URISyntaxException {
         if (!enabled) {
             LOG.debug("Ignoring event: disabled due to {}=false", ENABLE);
             return;
         }
         if (!pullRequest.getPullRequest().isDraft()) {
             LOG.debug("ReadyForReview PR #{} edited", pullRequest.getNumber());
-            files(pullRequest.getPullRequest());
+            review(pullRequest);
         } else {
             LOG.debug("Draft PR #{} edited", pullRequest.getNumber());
         }
     }
 
     public void onPullRequestReadyForReview(@PullRequest.ReadyForReview
-                                     GHEventPayload.PullRequest pullRequest) throws IOException {
+                                     GHEventPayload.PullRequest pullRequest) throws IOException, URISyntaxException {
         if (!enabled) {
             LOG.debug("Ignoring event: disabled due to {}=false", ENABLE);
             return;
         }
         LOG.debug("PR #{} ReadyForReview", pullRequest.getNumber());
-        files(pullRequest.getPullRequest());
+        review(pullRequest);
     }
 
     public void onPullRequestComment(@IssueComment.Created
@@ -156,175 +175,197 @@ public class PrReviewFlow {
             return;
         }
         GHIssue issue = comment.getIssue();
-        GHPullRequest pullRequest = Util.findPullRequest(issue);
-        if (pullRequest != null) {
-            files(pullRequest);
+        if (issue.isPullRequest()) {
+            runner.run(comment, issue.getNumber(), "files", () -> {
+                ArchBotConfig config = config(comment);
+                // Comments don't change the PR, so there's no need to get it if it's been reviewed as it last was
+                String key = evaluations.lastKey(EvaluationCache.REVIEW, comment.getRepository().getFullName(),
+                        issue.getNumber(), fingerprint(config));
+                if (key != null && evaluations.get(key) != null) {
+                    LOG.debug("PR #{}: already reviewed as it last was", issue.getNumber());
+                    return;
+                }
+                GHPullRequest pullRequest = prContext.pullRequest(comment);
+                if (pullRequest != null) {
+                    files(pullRequest, config);
+                }
+            });
+        }
+    }
+
+    /**
+     * Pushes to the PR aren't reviewed until an event which asks for a review, but its new commits are noted,
+     * so that a comment in the meantime doesn't find the review of the old ones.
+     */
+    public void onPullRequestSynchronize(@PullRequest.Synchronize
+                                         GHEventPayload.PullRequest pullRequest) {
+        if (!enabled) {
+            LOG.debug("Ignoring event: disabled due to {}=false", ENABLE);
+            return;
         }
+        evaluations.observe(pullRequest.getPullRequest());
+    }
+
+    private void review(GHEventPayload.PullRequest payload) throws IOException, URISyntaxException {
+        evaluations.observe(payload.getPullRequest());
+        runner.run(payload, payload.getNumber(), "files",
+                () -> files(prContext.pullRequest(payload), config(payload)));
+    }
+
+    /**
+     * @return The config of the event's repository, which is only loaded once there's a PR to review.
+     */
+    private ArchBotConfig config(GHEventPayload payload) throws IOException {
+        return configCache.config(payload.getRepository().getFullName(), () -> prContext.repository(payload));
+    }
+
+    private static String fingerprint(ArchBotConfig config) {
+        return config != null ? config.fingerprint() : null;
     }
 
-    private List<RecordId> modifiedRecords(GHPullRequest pullRequest) {
+    private List<RecordId> modifiedRecords(GHPullRequest pullRequest) throws IOException {
         var result = new ArrayList<RecordId>();
         var prNumber = pullRequest.getNumber();
-        for (var fileDetail : pullRequest.listFiles()) {
+        for (var fileDetail : prContext.files(pullRequest)) {
             String repoPath = fileDetail.getFilename();
             LOG.debug("PR #{} modifies file {}", prNumber, repoPath);
-            for (var rt : RecordType.values()) {
-                RecordId recordId = rt.recordOf(repoPath);
-                if (recordId != null) {
-                    result.add(recordId);
-                }
+            RecordId recordId = RecordPaths.recordOf(repoPath);
+            if (recordId != null) {
+                result.add(recordId);
             }
         }
         return result;
     }
 
-    private void files(GHPullRequest pullRequest) throws IOException {
+    private void files(GHPullRequest pullRequest, ArchBotConfig config) throws IOException {
         var prNumber = pullRequest.getNumber();
-        for (var fileDetail : pullRequest.listFiles()) {
+        // The review only depends on the PR's commits, what it merges into, and the config
+        String key = EvaluationCache.key(EvaluationCache.REVIEW, pullRequest, fingerprint(config));
+        evaluations.observe(pullRequest);
+        if (evaluations.get(key) != null) {
+            LOG.debug("PR #{}: already reviewed as it is now", prNumber);
+            return;
+        }
+        TerminologyLinter terminology = TerminologyLinter.forTerms(config != null ? config.suspectTerms : List.of());
+        BotReview review = new BotReview();
+        for (var fileDetail : prContext.files(pullRequest)) {
             String repoPath = fileDetail.getFilename();
             LOG.debug("PR #{} modifies file {}", prNumber, repoPath);
-            for (var rt : RecordType.values()) {
-                RecordId recordId = rt.recordOf(repoPath);
-                if (recordId != null) {
-                    // TODO replace with ArchReviewStateMachineFlow.touchesRecord
-
-                    // Do we consume the diff directly
-                    // Or should we apply the diff, build a pre- and post- PR version of the Page
-                    // and particularly the FrontMatter and see how the FrontMatter change?
-                    GHRepository ourRepo = pullRequest.getBase().getRepository();
-                    String defaultBranch = ourRepo.getDefaultBranch();
-                    var basePage = CreateDraftRecordFlow.getPage(ourRepo, ourRepo.getBranch(defaultBranch), repoPath);
-
-                    GHCommitPointer head = pullRequest.getHead();
-                    var theirRepo = head.getRepository();
-                    var headPage = CreateDraftRecordFlow.getPage(ourRepo, theirRepo.getBranch(head.getRef()), repoPath);
-
-                    GHPullRequestReviewBuilder review = pullRequest.createReview();
-                    FilePatch filePatch = FilePatch.parsePatch(fileDetail.getPatch());
-
-                    if (basePage.frontMatter.status.equals(headPage.frontMatter.status)) {
-                        LOG.debug("PR #{} does not change the status: {}", prNumber,
-                                basePage.frontMatter.status);
-                    } else {
-                        LOG.debug("PR #{} changes the status {} -> {}", prNumber,
-                                basePage.frontMatter.status, headPage.frontMatter.status);
-                        Optional<FilePatch.LineMatch> first = filePatch.linesMatching(
-                                EnumSet.of(Line.Type.ADD),
-                                Pattern.compile("^status:.*$")).findFirst();
-                        int statusLineNumber = first.map(FilePatch.LineMatch::patchLineNum).orElse(1);
-
-                        // Validate the status
-                        List<String> statuses = List.of("Draft", "Accepted", "Superseded", "Rejected", "Deferred");
-                        if (!statuses.contains(headPage.frontMatter.status)) {
-                            review.comment("Status must be one of " + statuses, fileDetail.getFilename(), statusLineNumber);
-                        }
+            RecordId recordId = RecordPaths.recordOf(repoPath);
+            if (recordId == null) {
+                continue;
+            }
+            // TODO replace with ArchReviewStateMachineFlow.touchesRecord
+
+            // Do we consume the diff directly
+            // Or should we apply the diff, build a pre- and post- PR version of the Page
+            // and particularly the FrontMatter and see how the FrontMatter change?
+            GHRepository ourRepo = pullRequest.getBase().getRepository();
+            String baseStatus = recordIndex.frontMatter(ourRepo, recordId)
+                    .map(frontMatter -> frontMatter.status)
+                    .orElse(null);
+
+            if ("removed".equals(fileDetail.getStatus())) {
+                LOG.debug("PR #{} removes {}", prNumber, recordId);
+                continue;
+            }
+            // The PR's head commits are in our repo too (as refs/pull/N/head), so this works for forks
+            var headPage = pageCache.page(ourRepo, fileDetail.getSha());
+
+            FilePatch filePatch = FilePatch.parsePatch(fileDetail.getPatch());
+
+            if (Objects.equals(baseStatus, headPage.frontMatter.status)) {
+                LOG.debug("PR #{} does not change the status: {}", prNumber,
+                        baseStatus);
+            } else {
+                LOG.debug("PR #{} changes the status {} -> {}", prNumber,
+                        baseStatus, headPage.frontMatter.status);
+                Optional<FilePatch.LineMatch> first = filePatch.linesMatching(
+                        EnumSet.of(Line.Type.ADD),
+                        Pattern.compile("^status:.*$")).findFirst();
+                // The comments can only go on the status line if the PR changes it
+                int statusPosition = first.map(FilePatch.LineMatch::patchLineNum).orElse(-1);
+
+                // Validate the status
+                List<String> statuses = List.of("Draft", "Accepted", "Superseded", "Rejected", "Deferred");
+                if (!statuses.contains(headPage.frontMatter.status)) {
+                    review.comment("Status must be one of " + statuses, fileDetail.getFilename(), filePatch, statusPosition);
+                }
 
-                        // Validate the status transition (e.g. Draft -> Superseded, or Accepted -> Rejected)
-                        switch (headPage.frontMatter.status) {
-                            case "Deferred":
-                            case "Accepted":
-                            case "Rejected":
-                                if (!"Draft".equals(basePage.frontMatter.status)) {
-                                    review.comment("Suspect state transition", fileDetail.getFilename(), statusLineNumber);
-                                }
-                                break;
-                            case "Superseded":
-                                if (!"Accepted".equals(basePage.frontMatter.status)) {
-                                    review.comment("Suspect state transition", fileDetail.getFilename(), statusLineNumber);
-                                }
-                                break;
+                // Validate the status transition (e.g. Draft -> Superseded, or Accepted -> Rejected)
+                switch (headPage.frontMatter.status) {
+                    case "Deferred":
+                    case "Accepted":
+                    case "Rejected":
+                        if (!"Draft".equals(baseStatus)) {
+                            review.comment("Suspect state transition", fileDetail.getFilename(), filePatch, statusPosition);
                         }
-                    }
-
-                    // TODO Validate that there's a github label for each tag
-                    // TODO Check for undefined abbrevs, and add comment
-                    // TODO Check for suspect terminology
-                    // TODO Check about sentence per line?
-
+                        break;
+                    case "Superseded":
+                        if (!"Accepted".equals(baseStatus)) {
+                            review.comment("Suspect state transition", fileDetail.getFilename(), filePatch, statusPosition);
+                        }
+                        break;
+                }
+            }
 
+            Set<String> definedAcronyms = AcronymLinter.definedAcronyms(headPage.frontMatter.title, headPage.bodyContent);
+            for (AcronymLinter.Finding finding : AcronymLinter.undefinedAcronyms(filePatch, definedAcronyms)) {
+                LOG.debug("PR #{} uses undefined acronym {}", prNumber, finding);
+                review.comment("`" + finding.acronym + "` isn't defined in this record. "
+                        + "Please define it where it's first used, "
+                        + "e.g. as \"Three Letter Acronym (TLA)\" or \"TLA (Three Letter Acronym)\".",
+                        fileDetail.getFilename(), filePatch, finding.position);
+            }
 
-                }
+            for (TerminologyLinter.Finding finding : terminology.suspectTerms(filePatch)) {
+                LOG.debug("PR #{} uses suspect term {}", prNumber, finding);
+                review.comment("Please avoid \"" + finding.used + "\""
+                        + (finding.term.reason != null ? ": " + finding.term.reason : "."),
+                        fileDetail.getFilename(), filePatch, finding.position);
             }
+
+            // TODO Validate that there's a github label for each tag
+            // TODO Check about sentence per line?
         }
+        submit(pullRequest, review, config);
+        evaluations.put(key, review.isEmpty() ? "" : review.fingerprint());
     }
 
-
-    /** Heuristic code to identify undefined acronyms/initialisms */
-    public static void main(String[] args) {
-
-        // TODO, but need to handle line numbers, or search again after the fact for the first occurrance
-
-        Pattern acronymPattern = Pattern.compile("[A-Z0-9]{2,}");
-        Set<String> definedAcronyms = new HashSet<>(Set.of("OK"));
-
-        // Assume explained abbreviations look like either:
-        // a) Three Letter Abbreviation (TLA)
-        // b) TLA (Three letter abbreviation)
-        // Further assume that parentheses are always balanced
-        // Then we're looking for acronyms which are not directly enclosed in parens (a)
-        // And are not followed by an open bracket (b)
-
-        //
-
-        String text = "WOOT. This is some text with a Three Letter Abbreviation (TLA).\n" +
-                "And some more stuff. It's OK to mention TLA again here.\n" +
-                "But later on I might use 3LA (3 letter abbreviation), which is also fine.\n" +
-                "So long as I don't use FLA and not define it. WDYT?";
-
-//        var p = Pattern.compile("(?<![(A-Z0-9])([A-Z0-9]{2,})(?!\\s*\\()");
-//        var m = p.matcher(text);
-//        while (m.find()) {
-//            System.out.println(m.group(1));
-//        }
-
-        String[] words = text.split("\\W+");
-        for (int i = 0; i < words.length; i++) {
-            String word = words[i];
-            System.out.println(word);
-            Matcher acronymMatcher = acronymPattern.matcher(word);
-            if (acronymMatcher.matches()) {
-                String acronym = word;
-                if (!definedAcronyms.contains(acronym)) {
-                    boolean expansionFollows = true;
-                    boolean expansionPreceeds = true;
-                    for (int j = 0; j < acronym.length(); j++) {
-                        if (i + j + 1 < words.length) {
-                            String a = words[i + j + 1].substring(0, 1).toUpperCase(Locale.ROOT);
-                            String b = acronym.substring(j, j + 1).toUpperCase(Locale.ROOT);
-                            if (!a.equals(b)) {
-                                expansionFollows = false;
-                                break;
-                            }
-                        } else {
-                            expansionFollows = false;
-                            break;
-                        }
-                    }
-                    if (!expansionFollows) {
-                        for (int j = 0; j < acronym.length(); j++) {
-                            if (i - acronym.length() + j >= 0) {
-                                String a = words[i - acronym.length() + j].substring(0, 1).toUpperCase(Locale.ROOT);
-                                String b = acronym.substring(j, j + 1).toUpperCase(Locale.ROOT);
-                                if (!a.equals(b)) {
-                                    expansionPreceeds = false;
-                                    break;
-                                }
-                            } else {
-                                expansionPreceeds = false;
-                                break;
-                            }
-                        }
-                    }
-
-                    if (expansionFollows || expansionPreceeds) {
-                        definedAcronyms.add(acronym);
-                    } else {
-                        System.err.println("Acronym undefined at this point " + acronym);
-                    }
-                }
+    /**
+     * Submits the comments from all the records changed by the PR as a single review, on the PR's head commit,
+     * unless there aren't any, or the bot has already submitted a review with the same comments on that commit.
+     */
+    private void submit(GHPullRequest pullRequest, BotReview review, ArchBotConfig config) throws IOException {
+        var prNumber = pullRequest.getNumber();
+        if (review.isEmpty()) {
+            LOG.debug("PR #{}: nothing to review", prNumber);
+            return;
+        }
+        // Without it, the bot's previous reviews can't be recognised, so it would review again for every event
+        if (config == null || config.botUserLogin == null) {
+            throw new IllegalStateException("PR #" + prNumber + ": can't review without botUserLogin in "
+                    + Util.CONFIG_REPO_PATH);
+        }
+        String headSha = pullRequest.getHead().getSha();
+        String fingerprint = review.fingerprint();
+        for (GHPullRequestReview previous : prContext.reviews(pullRequest)) {
+            if (headSha.equals(previous.getCommitId())
+                    && fingerprint.equals(BotReview.fingerprintOf(previous.getBody()))
+                    && previous.getUser() != null
+                    && config.botUserLogin.equals(previous.getUser().getLogin())) {
+                LOG.debug("PR #{}: already reviewed {} with the same comments", prNumber, headSha);
+                return;
             }
         }
+        LOG.debug("PR #{}: reviewing {} with {} comments", prNumber, headSha, review.comments().size());
+        GHPullRequestReviewBuilder builder = pullRequest.createReview()
+                .commitId(headSha)
+                .event(GHPullRequestReviewEvent.COMMENT)
+                .body(review.body());
+        for (BotReview.Comment comment : review.comments()) {
+            builder.comment(comment.body, comment.path, comment.position);
+        }
+        builder.create();
     }
-
-
 }
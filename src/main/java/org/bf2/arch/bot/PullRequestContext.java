@@ -0,0 +1,229 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bf2.arch.bot;
+
+import javax.enterprise.context.RequestScoped;
+import javax.inject.Inject;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.kohsuke.github.GHEventPayload;
+import org.kohsuke.github.GHIssue;
+import org.kohsuke.github.GHPullRequest;
+import org.kohsuke.github.GHPullRequestFileDetail;
+import org.kohsuke.github.GHPullRequestReview;
+import org.kohsuke.github.GHRepository;
+import org.kohsuke.github.GHUser;
+import org.kohsuke.github.GitHub;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The data about the pull requests an event concerns which the flows need, fetched at most once per event.
+ *
+ * A single webhook delivery is dispatched to every flow which observes it (for example a {@code pull_request.opened}
+ * event goes to both {@link ArchReviewStateMachineFlow} and {@link PrReviewFlow}),
+ * all within the same request context, so this bean lives for exactly one delivery.
+ * Each piece of data is only fetched the first time a flow asks for it.
+ *
+ * Changes to labels are also collected, and written once the flow making them has finished its work
+ * (see {@link #flush()}), as the labels to add and remove, rather than replacing all the labels.
+ */
+@RequestScoped
+public class PullRequestContext {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PullRequestContext.class);
+
+    /**
+     * The data about one PR.
+     */
+    private static class Data {
+        GHPullRequest pullRequest;
+        List<GHPullRequestFileDetail> files;
+        Set<String> labels;
+        /** The labels the flows want the PR to have, if they've changed them. */
+        Set<String> wantedLabels;
+        List<GHUser> requestedReviewers;
+        List<GHPullRequestReview> reviews;
+    }
+
+    @Inject
+    GitHubClients clients;
+
+    /** The payloads of the event bound to the installation's client, keyed by the framework's payload */
+    private final Map<GHEventPayload, GHEventPayload> payloads = new IdentityHashMap<>();
+
+    /** Keyed by {@code <owner>/<repo>#<pr number>} */
+    private final Map<String, Data> pullRequests = new HashMap<>();
+
+    private Data data(GHPullRequest pullRequest) {
+        return pullRequests.computeIfAbsent(key(pullRequest.getRepository().getFullName(), pullRequest.getNumber()), k -> {
+            Data data = new Data();
+            data.pullRequest = pullRequest;
+            return data;
+        });
+    }
+
+    private static String key(String repoFullName, int prNumber) {
+        return repoFullName + "#" + prNumber;
+    }
+
+    /**
+     * The objects in a payload belong to the github-app framework's client, whose requests are neither cached nor
+     * rate limited like those of {@link GitHubClients}' clients, so the payload is bound to the installation's
+     * client instead. That's done by reading the payload again, without any requests to GitHub.
+     * @return The payload, bound to the installation's client, at most once per event.
+     */
+    @SuppressWarnings("unchecked")
+    private <T extends GHEventPayload> T bound(T payload) throws IOException {
+        T bound = (T) payloads.get(payload);
+        if (bound == null) {
+            String json = GitHub.getMappingObjectWriter().writeValueAsString(payload);
+            bound = (T) clients.installationClient(payload.getInstallation().getId())
+                    .parseEventPayload(new StringReader(json), payload.getClass());
+            payloads.put(payload, bound);
+        }
+        return bound;
+    }
+
+    /**
+     * @return The repository of the event.
+     */
+    GHRepository repository(GHEventPayload payload) throws IOException {
+        return bound(payload).getRepository();
+    }
+
+    /**
+     * @return The pull request of the event.
+     */
+    GHPullRequest pullRequest(GHEventPayload.PullRequest payload) throws IOException {
+        GHPullRequest pullRequest = bound(payload).getPullRequest();
+        return data(pullRequest).pullRequest;
+    }
+
+    /**
+     * @return The pull request the comment is on, fetched at most once, or null if the issue is not a PR issue.
+     */
+    GHPullRequest pullRequest(GHEventPayload.IssueComment payload) throws IOException {
+        GHIssue issue = issue(payload);
+        if (!issue.isPullRequest()) {
+            return null;
+        }
+        Data data = pullRequests.get(key(repository(payload).getFullName(), issue.getNumber()));
+        if (data != null) {
+            return data.pullRequest;
+        }
+        // The payload only has the issue
+        GHPullRequest pullRequest = repository(payload).getPullRequest(issue.getNumber());
+        data(pullRequest);
+        return pullRequest;
+    }
+
+    /**
+     * @return The issue the comment is on.
+     */
+    GHIssue issue(GHEventPayload.IssueComment payload) throws IOException {
+        return bound(payload).getIssue();
+    }
+
+    /**
+     * @return The files changed by the PR.
+     */
+    List<GHPullRequestFileDetail> files(GHPullRequest pullRequest) throws IOException {
+        Data data = data(pullRequest);
+        if (data.files == null) {
+            LOG.debug("PR#{}: listing files", pullRequest.getNumber());
+            data.files = Collections.unmodifiableList(pullRequest.listFiles().toList());
+        }
+        return data.files;
+    }
+
+    /**
+     * @return The names of the PR's labels, including the changes made by earlier flows,
+     * which the caller is free to change.
+     */
+    Set<String> labels(GHPullRequest pullRequest) {
+        Data data = data(pullRequest);
+        if (data.labels == null) {
+            data.labels = Util.existingLabels(data.pullRequest);
+        }
+        return new HashSet<>(data.wantedLabels != null ? data.wantedLabels : data.labels);
+    }
+
+    /**
+     * Changes the labels of the PR to the given labels, once the event has been handled.
+     * @param labels The labels, usually those returned by {@link #labels(GHPullRequest)} with some added or removed.
+     */
+    void setLabels(GHPullRequest pullRequest, Set<String> labels) {
+        Data data = data(pullRequest);
+        if (data.labels == null) {
+            data.labels = Util.existingLabels(data.pullRequest);
+        }
+        data.wantedLabels = new HashSet<>(labels);
+    }
+
+    /**
+     * Writes the changes the flows made to the labels of each PR, as a single call to add labels and a call
+     * to remove each label, skipping PRs whose labels end up unchanged.
+     * The {@link FlowRunner} does this at the end of each flow's work, so the writes are attributed to the flow,
+     * and a failure reaches the extension's error handler.
+     */
+    void flush() throws IOException {
+        for (Data data : pullRequests.values()) {
+            if (data.wantedLabels == null) {
+                continue;
+            }
+            Set<String> wanted = data.wantedLabels;
+            // Not retried by later flows if it fails: the failure goes to the error handler
+            data.wantedLabels = null;
+            if (!Util.changeLabels(data.pullRequest, data.labels, wanted)) {
+                LOG.debug("PR#{}: unchanged labels", data.pullRequest.getNumber());
+            }
+            data.labels = wanted;
+        }
+    }
+
+    /**
+     * @return The users whose review of the PR has been requested.
+     */
+    List<GHUser> requestedReviewers(GHPullRequest pullRequest) throws IOException {
+        Data data = data(pullRequest);
+        if (data.requestedReviewers == null) {
+            data.requestedReviewers = Collections.unmodifiableList(data.pullRequest.getRequestedReviewers());
+        }
+        return data.requestedReviewers;
+    }
+
+    /**
+     * @return The reviews of the PR.
+     */
+    List<GHPullRequestReview> reviews(GHPullRequest pullRequest) throws IOException {
+        Data data = data(pullRequest);
+        if (data.reviews == null) {
+            LOG.debug("PR#{}: listing reviews", pullRequest.getNumber());
+            data.reviews = Collections.unmodifiableList(pullRequest.listReviews().toList());
+        }
+        return data.reviews;
+    }
+}
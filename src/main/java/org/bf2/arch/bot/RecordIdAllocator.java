@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bf2.arch.bot;
+
+import javax.enterprise.context.ApplicationScoped;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.bf2.arch.bot.model.record.RecordType;
+import org.kohsuke.github.GHRepository;
+import org.kohsuke.github.GHTreeEntry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Allocates the ids of new records.
+ *
+ * The max existing id of each record type is cached for the latest default-branch commit it was computed for,
+ * so it's usually only computed (from the record type's directory tree) once per commit.
+ * Ids handed out are reserved until they're seen on the default branch, or released,
+ * so concurrent {@code /create} commands get different ids.
+ */
+@ApplicationScoped
+public class RecordIdAllocator {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RecordIdAllocator.class);
+
+    /**
+     * The allocations of one record type in one repository, which is locked to reserve an id.
+     */
+    private static class Allocations {
+        /** The default-branch commit {@link #maxId} was computed for, or null */
+        String commitSha;
+        int maxId;
+        final TreeSet<Integer> reserved = new TreeSet<>();
+    }
+
+    /** Keyed by {@code <owner>/<repo>/<record type>} */
+    private final Map<String, Allocations> allocations = new HashMap<>();
+
+    /**
+     * Reserves the next id for a record of the given type.
+     * The record type's directory tree is fetched without holding any lock,
+     * so allocations in other repositories, or of other types, are never held up by it.
+     * @param repo The repository
+     * @param commitSha The commit on the default branch to allocate relative to.
+     * @param recordType The type of record
+     * @return The id, which won't be returned again until it's {@linkplain #release released}.
+     */
+    int allocate(GHRepository repo, String commitSha, RecordType recordType) throws IOException {
+        Allocations allocations = allocations(repo, recordType);
+        Integer maxId = null;
+        synchronized (allocations) {
+            if (commitSha.equals(allocations.commitSha)) {
+                maxId = allocations.maxId;
+            }
+        }
+        if (maxId == null) {
+            maxId = maxExistingId(repo, commitSha, recordType);
+        }
+        synchronized (allocations) {
+            allocations.commitSha = commitSha;
+            allocations.maxId = maxId;
+            TreeSet<Integer> reservations = allocations.reserved;
+            // Reservations which have reached the default branch don't need to be held any more
+            reservations.headSet(maxId, true).clear();
+            var nextId = (reservations.isEmpty() ? maxId : reservations.last()) + 1;
+            reservations.add(nextId);
+            LOG.debug("Next {} id {} (reserved {})", recordType, nextId, reservations);
+            return nextId;
+        }
+    }
+
+    /**
+     * Releases an id returned by {@link #allocate}, which didn't get used.
+     */
+    void release(GHRepository repo, RecordType recordType, int id) {
+        Allocations allocations = allocations(repo, recordType);
+        synchronized (allocations) {
+            allocations.reserved.remove(id);
+        }
+    }
+
+    private Allocations allocations(GHRepository repo, RecordType recordType) {
+        synchronized (this.allocations) {
+            return this.allocations.computeIfAbsent(repo.getFullName() + "/" + recordType, k -> new Allocations());
+        }
+    }
+
+    private static int maxExistingId(GHRepository repo, String commitSha, RecordType recordType) throws IOException {
+        // Only fetch the record type's directory, not the whole root tree
+        var entries = repo.getTree(commitSha + ":" + recordType.repoDir).getTree();
+        var maxId = entries.stream()
+                .map(GHTreeEntry::getPath)
+                .map(path -> {
+                    LOG.debug("Path: {}", path);
+                    try {
+                        return Integer.parseInt(path);
+                    } catch (NumberFormatException e) {
+                        return -1;
+                    }
+                }).max(Integer::compareTo)
+                .orElse(1);
+        LOG.debug("Max existing {} id at {} is {}", recordType, commitSha, maxId);
+        return maxId;
+    }
+}
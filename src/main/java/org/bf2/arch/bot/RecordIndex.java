@@ -0,0 +1,310 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bf2.arch.bot;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.bf2.arch.bot.model.record.RecordFrontMatter;
+import org.bf2.arch.bot.model.record.RecordId;
+import org.bf2.arch.bot.model.record.RecordPage;
+import org.bf2.arch.bot.model.record.RecordPaths;
+import org.bf2.arch.bot.model.record.RecordType;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.kohsuke.github.GHCommit;
+import org.kohsuke.github.GHCompare;
+import org.kohsuke.github.GHContent;
+import org.kohsuke.github.GHEventPayload;
+import org.kohsuke.github.GHFileNotFoundException;
+import org.kohsuke.github.GHRepository;
+import org.kohsuke.github.GHTree;
+import org.kohsuke.github.GHTreeEntry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An in-memory index of the records (ADRs, APs and PADRs) on the default branch of each repository,
+ * giving the blob SHA and front matter of each record.
+ *
+ * The index of a repository is built from a single recursive tree fetch the first time it's needed,
+ * and then kept up to date from the push events for the default branch, so flows which need
+ * base-branch record metadata don't need to fetch record pages one at a time
+ * (see {@link RecordIndexFlow}).
+ * In case push events are missed, or not delivered at all, an index older than
+ * {@code bot.record-index.max-age-seconds} is revalidated against the head of the default branch.
+ * When the index is behind a commit it's advanced from the comparison of the two commits, which gives the blob
+ * SHAs of the changed files, and it's only rebuilt if that's not possible (e.g. after a force push).
+ * The front matter of a record is only read (by blob SHA, via the {@link RecordPageCache}) the first time it's asked for.
+ */
+@ApplicationScoped
+public class RecordIndex {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RecordIndex.class);
+
+    /** Pushes which change more records than this rebuild the index from the tree, rather than fetch each record. */
+    static final int MAX_INCREMENTAL_CHANGES = 20;
+
+    /** GitHub lists at most this many files in a comparison, so one with this many might be missing some. */
+    static final int MAX_COMPARE_FILES = 300;
+
+    /**
+     * A record, as of some commit.
+     */
+    static class Entry {
+        final RecordId recordId;
+        final String blobSha;
+        private volatile RecordFrontMatter frontMatter;
+
+        Entry(RecordId recordId, String blobSha, RecordFrontMatter frontMatter) {
+            this.recordId = recordId;
+            this.blobSha = blobSha;
+            this.frontMatter = frontMatter;
+        }
+    }
+
+    /**
+     * The records of a repository as of a given commit.
+     */
+    static class Snapshot {
+        final String commitSha;
+        final Map<RecordId, Entry> records;
+        /** When the commit was last known to be the head of the default branch. */
+        private volatile long validatedAt;
+
+        Snapshot(String commitSha, Map<RecordId, Entry> records) {
+            this.commitSha = commitSha;
+            this.records = Collections.unmodifiableMap(records);
+            this.validatedAt = System.currentTimeMillis();
+        }
+    }
+
+    @Inject
+    RecordPageCache pageCache;
+
+    /** How long an index is used without checking the head of the default branch, in seconds. */
+    @ConfigProperty(name = "bot.record-index.max-age-seconds", defaultValue = "300")
+    long maxAgeSeconds;
+
+    /** Keyed by the full name of the repository */
+    private final Map<String, Snapshot> snapshots = new ConcurrentHashMap<>();
+
+    /**
+     * @return The records on the repository's default branch, as of the given commit on that branch.
+     */
+    Snapshot snapshot(GHRepository repo, String defaultBranchSha) throws IOException {
+        Snapshot snapshot = snapshots.get(repo.getFullName());
+        if (snapshot == null) {
+            snapshot = bootstrap(repo, defaultBranchSha);
+        } else if (snapshot.commitSha.equals(defaultBranchSha)) {
+            snapshot.validatedAt = System.currentTimeMillis();
+        } else {
+            snapshot = advance(repo, snapshot, defaultBranchSha);
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return The records on the repository's default branch, as of the latest commit pushed to it,
+     * or, if no push has been seen for a while, as of the head of the branch.
+     */
+    Snapshot snapshot(GHRepository repo) throws IOException {
+        Snapshot snapshot = snapshots.get(repo.getFullName());
+        if (snapshot == null
+                || System.currentTimeMillis() - snapshot.validatedAt >= TimeUnit.SECONDS.toMillis(maxAgeSeconds)) {
+            // The branch is revalidated with a conditional request, so this is usually a 304
+            snapshot = snapshot(repo, repo.getBranch(repo.getDefaultBranch()).getSHA1());
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return The front matter of the given record on the default branch of the repository,
+     * or empty if the record doesn't exist on the default branch.
+     */
+    Optional<RecordFrontMatter> frontMatter(GHRepository repo, RecordId recordId) throws IOException {
+        Entry entry = snapshot(repo).records.get(recordId);
+        if (entry == null) {
+            return Optional.empty();
+        }
+        RecordFrontMatter frontMatter = entry.frontMatter;
+        if (frontMatter == null) {
+            LOG.debug("Reading front matter of {} from blob {}", recordId, entry.blobSha);
+            frontMatter = pageCache.page(repo, entry.blobSha).frontMatter;
+            entry.frontMatter = frontMatter;
+        }
+        return Optional.of(frontMatter);
+    }
+
+    /**
+     * Updates the index of a repository when commits are pushed to its default branch.
+     * If the push doesn't follow on from the indexed commit (for example because an event was missed,
+     * or it was a force push) the index is rebuilt.
+     */
+    void update(GHEventPayload.Push push) throws IOException {
+        GHRepository repo = push.getRepository();
+        if (!push.getRef().equals("refs/heads/" + repo.getDefaultBranch())) {
+            LOG.debug("Ignoring push to {} of {}", push.getRef(), repo.getFullName());
+            return;
+        }
+        Snapshot snapshot = snapshots.get(repo.getFullName());
+        if (snapshot == null) {
+            LOG.debug("Ignoring push to {}: not yet indexed", repo.getFullName());
+            return;
+        }
+        if (push.isDeleted()) {
+            snapshots.remove(repo.getFullName());
+            return;
+        }
+        if (push.isForced() || !snapshot.commitSha.equals(push.getBefore())) {
+            LOG.debug("Push to {} doesn't follow {}: rebuilding the index", repo.getFullName(), snapshot.commitSha);
+            bootstrap(repo, push.getHead());
+            return;
+        }
+
+        Set<String> changed = new LinkedHashSet<>();
+        Set<String> removed = new LinkedHashSet<>();
+        for (var commit : push.getCommits()) {
+            for (String path : commit.getAdded()) {
+                removed.remove(path);
+                changed.add(path);
+            }
+            for (String path : commit.getModified()) {
+                changed.add(path);
+            }
+            for (String path : commit.getRemoved()) {
+                changed.remove(path);
+                removed.add(path);
+            }
+        }
+        changed.removeIf(path -> RecordPaths.recordOf(path) == null);
+        removed.removeIf(path -> RecordPaths.recordOf(path) == null);
+        if (changed.size() + removed.size() > MAX_INCREMENTAL_CHANGES) {
+            bootstrap(repo, push.getHead());
+            return;
+        }
+
+        Map<RecordId, Entry> records = new HashMap<>(snapshot.records);
+        for (String path : removed) {
+            records.remove(RecordPaths.recordOf(path));
+        }
+        for (String path : changed) {
+            RecordId recordId = RecordPaths.recordOf(path);
+            try {
+                GHContent content = repo.getFileContent(path, push.getHead());
+                byte[] bytes;
+                try (InputStream read = content.read()) {
+                    bytes = read.readAllBytes();
+                }
+                pageCache.put(content.getSha(), bytes);
+                RecordFrontMatter frontMatter = RecordPage.fromContent(new String(bytes, StandardCharsets.UTF_8)).frontMatter;
+                records.put(recordId, new Entry(recordId, content.getSha(), frontMatter));
+            } catch (GHFileNotFoundException e) {
+                // Added, then removed, by later commits in the same push
+                records.remove(recordId);
+            }
+        }
+        LOG.debug("Updated index of {} to {}: {} changed, {} removed",
+                repo.getFullName(), push.getHead(), changed, removed);
+        snapshots.put(repo.getFullName(), new Snapshot(push.getHead(), records));
+    }
+
+    /**
+     * Advances the index of a repository to a later commit, using the files changed between the two.
+     * The index is rebuilt if the commit doesn't follow on from the indexed one,
+     * or if too many files changed to list them all.
+     */
+    private Snapshot advance(GHRepository repo, Snapshot snapshot, String commitSha) throws IOException {
+        GHCompare compare = repo.getCompare(snapshot.commitSha, commitSha);
+        GHCommit.File[] files = compare.getFiles();
+        if (compare.getStatus() != GHCompare.Status.ahead || files == null || files.length >= MAX_COMPARE_FILES) {
+            LOG.debug("{} is {} of {} in {}: rebuilding the index",
+                    commitSha, compare.getStatus(), snapshot.commitSha, repo.getFullName());
+            return bootstrap(repo, commitSha);
+        }
+        Map<RecordId, Entry> records = new HashMap<>(snapshot.records);
+        int changes = 0;
+        for (GHCommit.File file : files) {
+            if (file.getPreviousFilename() != null) {
+                RecordId previous = RecordPaths.recordOf(file.getPreviousFilename());
+                if (previous != null && records.remove(previous) != null) {
+                    changes++;
+                }
+            }
+            RecordId recordId = RecordPaths.recordOf(file.getFileName());
+            if (recordId == null) {
+                continue;
+            }
+            changes++;
+            if ("removed".equals(file.getStatus())) {
+                records.remove(recordId);
+            } else {
+                // The front matter is read lazily, like after a rebuild
+                records.put(recordId, new Entry(recordId, file.getSha(), null));
+            }
+        }
+        LOG.debug("Advanced index of {} from {} to {}: {} records changed",
+                repo.getFullName(), snapshot.commitSha, commitSha, changes);
+        Snapshot advanced = new Snapshot(commitSha, records);
+        snapshots.put(repo.getFullName(), advanced);
+        return advanced;
+    }
+
+    private Snapshot bootstrap(GHRepository repo, String commitSha) throws IOException {
+        LOG.debug("Indexing records of {} at {}", repo.getFullName(), commitSha);
+        Map<RecordId, Entry> records = new HashMap<>();
+        GHTree tree = repo.getTreeRecursive(commitSha, 1);
+        if (!tree.isTruncated()) {
+            addRecords(records, tree, "");
+        } else {
+            LOG.debug("Tree of {} at {} was truncated: fetching the record directories separately",
+                    repo.getFullName(), commitSha);
+            for (RecordType recordType : RecordType.values()) {
+                try {
+                    addRecords(records, repo.getTreeRecursive(commitSha + ":" + recordType.repoDir, 1),
+                            recordType.repoDir + "/");
+                } catch (GHFileNotFoundException e) {
+                    LOG.debug("{} has no {} directory", repo.getFullName(), recordType.repoDir);
+                }
+            }
+        }
+        Snapshot snapshot = new Snapshot(commitSha, records);
+        snapshots.put(repo.getFullName(), snapshot);
+        return snapshot;
+    }
+
+    private static void addRecords(Map<RecordId, Entry> records, GHTree tree, String pathPrefix) {
+        for (GHTreeEntry treeEntry : tree.getTree()) {
+            if ("blob".equals(treeEntry.getType())) {
+                RecordId recordId = RecordPaths.recordOf(pathPrefix + treeEntry.getPath());
+                if (recordId != null) {
+                    records.put(recordId, new Entry(recordId, treeEntry.getSha(), null));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bf2.arch.bot;
+
+import javax.inject.Inject;
+import java.io.IOException;
+
+import io.quarkiverse.githubapp.event.Push;
+import org.kohsuke.github.GHEventPayload;
+
+/**
+ * Flow for keeping the {@link RecordIndex} up to date as commits are pushed to the default branch.
+ */
+public class RecordIndexFlow {
+
+    @Inject
+    RecordIndex recordIndex;
+
+    public void onPush(@Push GHEventPayload.Push push) throws IOException {
+        recordIndex.update(push);
+    }
+}
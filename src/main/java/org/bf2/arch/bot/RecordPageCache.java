@@ -0,0 +1,147 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bf2.arch.bot;
+
+import javax.enterprise.context.ApplicationScoped;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+import org.bf2.arch.bot.model.record.RecordPage;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.kohsuke.github.GHRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A cache of record pages (and templates), keyed by the SHA of their git blob.
+ * Content addressed by blob SHA never changes, so entries never need to be invalidated.
+ *
+ * There are two tiers: a bounded, least-recently-used, in-heap map of parsed pages,
+ * backed by a directory of raw blobs which survives restarts.
+ * Blobs read back from disk are checked against their SHA, and fetched again if they don't match.
+ */
+@ApplicationScoped
+public class RecordPageCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RecordPageCache.class);
+
+    static final String DIRECTORY = "bot.record-cache.directory";
+    static final String MAX_PAGES = "bot.record-cache.max-pages";
+
+    @ConfigProperty(name = DIRECTORY)
+    Optional<String> directory;
+
+    @ConfigProperty(name = MAX_PAGES, defaultValue = "256")
+    int maxPages;
+
+    private final Map<String, RecordPage> pages = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, RecordPage> eldest) {
+            return size() > maxPages;
+        }
+    };
+
+    /**
+     * @param repo The repository the blob is in.
+     * @param blobSha The SHA of the blob.
+     * @return The page, which the caller is free to change.
+     */
+    RecordPage page(GHRepository repo, String blobSha) throws IOException {
+        RecordPage page;
+        synchronized (pages) {
+            page = pages.get(blobSha);
+        }
+        if (page == null) {
+            page = RecordPage.fromContent(new String(blob(repo, blobSha), StandardCharsets.UTF_8));
+            synchronized (pages) {
+                pages.put(blobSha, page);
+            }
+        }
+        return page.copy();
+    }
+
+    /**
+     * Adds a blob whose content the caller already has.
+     */
+    void put(String blobSha, byte[] content) throws IOException {
+        write(blobSha, content);
+    }
+
+    private byte[] blob(GHRepository repo, String blobSha) throws IOException {
+        Path path = path(blobSha);
+        try {
+            byte[] content = Files.readAllBytes(path);
+            if (blobSha.equals(gitBlobSha(content))) {
+                return content;
+            }
+            LOG.warn("Cached blob {} is corrupt, fetching it again", path);
+        } catch (NoSuchFileException e) {
+            // Not cached
+        }
+        LOG.debug("Fetching blob {} from {}", blobSha, repo.getFullName());
+        byte[] content;
+        try (InputStream read = repo.readBlob(blobSha)) {
+            content = read.readAllBytes();
+        }
+        write(blobSha, content);
+        return content;
+    }
+
+    private void write(String blobSha, byte[] content) throws IOException {
+        Path path = path(blobSha);
+        Files.createDirectories(path.getParent());
+        // Write to a temporary file, so a concurrent read, or a crash, never sees a partial blob
+        Path tmp = Files.createTempFile(path.getParent(), blobSha, ".tmp");
+        try {
+            Files.write(tmp, content);
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private Path path(String blobSha) {
+        Path root = Paths.get(directory.orElse(System.getProperty("java.io.tmpdir") + "/arch-bot-blobs"));
+        // Fan out like .git/objects, so no directory gets too big
+        return root.resolve(blobSha.substring(0, 2)).resolve(blobSha.substring(2));
+    }
+
+    /**
+     * @return The SHA git would give a blob with the given content.
+     */
+    static String gitBlobSha(byte[] content) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            sha1.update(("blob " + content.length + "\0").getBytes(StandardCharsets.US_ASCII));
+            byte[] digest = sha1.digest(content);
+            return Util.hex(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
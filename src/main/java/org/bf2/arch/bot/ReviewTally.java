@@ -0,0 +1,82 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bf2.arch.bot;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import org.bf2.arch.bot.ArchReviewStateMachineFlow.ReviewerDisposition;
+
+/**
+ * The dispositions ({@code /accept}, {@code /defer} or {@code /reject}) expressed in the comments on a PR,
+ * as of the comment given by the {@linkplain #lastCommentId watermark}.
+ * It's kept up to date one comment at a time by {@link ArchReviewStateMachineFlow#readyForMerge},
+ * so the comments on the PR only need to be listed when there's no tally for the PR (see {@link ReviewTallyStore}).
+ */
+class ReviewTally {
+
+    /** The id of the latest comment recorded. Comment ids increase over time. */
+    @JsonProperty
+    long lastCommentId;
+
+    /** The number of comments recorded. */
+    @JsonProperty
+    int comments;
+
+    /** The latest disposition of each commenter who has expressed one, keyed by login. */
+    @JsonProperty
+    final Map<String, ReviewerDisposition> dispositions = new TreeMap<>();
+
+    /**
+     * Records a comment, if it's newer than the watermark.
+     * Comments older than the watermark (for example redelivered ones) are ignored,
+     * since they can't change the latest disposition of their author.
+     * @param commands The commands in the comment.
+     * @return true iff the comment was recorded.
+     */
+    boolean record(long commentId, String login, List<Command> commands) {
+        if (commentId <= lastCommentId) {
+            return false;
+        }
+        lastCommentId = commentId;
+        comments++;
+        ReviewerDisposition disposition = disposition(commands);
+        if (disposition != null) {
+            dispositions.put(login, disposition);
+        }
+        return true;
+    }
+
+    /**
+     * @return The disposition expressed by a comment's commands, or null if it doesn't express one.
+     * A comment which somehow expresses more than one is taken to accept, then to defer, then to reject.
+     */
+    static ReviewerDisposition disposition(List<Command> commands) {
+        ReviewerDisposition result = null;
+        for (Command command : commands) {
+            if (command instanceof Command.Disposition) {
+                ReviewerDisposition disposition = ((Command.Disposition) command).disposition;
+                if (result == null || disposition.precedence < result.precedence) {
+                    result = disposition;
+                }
+            }
+        }
+        return result;
+    }
+}
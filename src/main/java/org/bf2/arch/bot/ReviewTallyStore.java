@@ -0,0 +1,172 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bf2.arch.bot;
+
+import javax.enterprise.context.ApplicationScoped;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.kohsuke.github.GHIssue;
+import org.kohsuke.github.GHIssueComment;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the {@link ReviewTally} of each PR, in memory and in a local directory, so it survives restarts.
+ *
+ * A tally is only rebuilt from all the comments on the PR when there isn't one,
+ * when it has recorded a different number of comments than the PR has (because events were missed while the bot
+ * was down, or comments were deleted), or when a comment with a disposition has been edited or deleted.
+ * Only the most recently used tallies are kept in memory; the others are read back from their files when needed.
+ *
+ * Events about the same PR are handled one at a time (see {@link FlowRunner}), so only the map of tallies is locked,
+ * and the tallies of different PRs are updated and written concurrently.
+ */
+@ApplicationScoped
+public class ReviewTallyStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ReviewTallyStore.class);
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    static final String DIRECTORY = "bot.review-tally.directory";
+    static final String MAX_TALLIES = "bot.review-tally.max-tallies";
+
+    @ConfigProperty(name = DIRECTORY)
+    Optional<String> directory;
+
+    @ConfigProperty(name = MAX_TALLIES, defaultValue = "1024")
+    int maxTallies;
+
+    /** Keyed by {@code <owner>/<repo>#<pr number>} */
+    private final Map<String, ReviewTally> tallies = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ReviewTally> eldest) {
+            return size() > maxTallies;
+        }
+    };
+
+    /**
+     * Records a new comment on a PR in its tally.
+     * @param issue The PR's issue, as of the comment.
+     * @param comment The comment.
+     * @param commands The commands in the event's comments, so no comment is parsed more than once per event.
+     * @return A copy of the dispositions expressed on the PR, keyed by login.
+     */
+    Map<String, ArchReviewStateMachineFlow.ReviewerDisposition> record(GHIssue issue, GHIssueComment comment,
+                                                                    CommentCommands commands) throws IOException {
+        String key = key(issue);
+        ReviewTally tally;
+        synchronized (tallies) {
+            tally = tallies.get(key);
+        }
+        if (tally == null) {
+            tally = read(issue);
+        }
+        // A redelivered comment doesn't change the tally, so it needn't be written again
+        boolean changed = false;
+        if (tally != null) {
+            changed = tally.record(comment.getId(), comment.getUser().getLogin(), commands.of(comment));
+            if (tally.comments != issue.getCommentsCount()) {
+                LOG.debug("PR#{}: tally has {} comments, but the PR has {}",
+                        issue.getNumber(), tally.comments, issue.getCommentsCount());
+                tally = null;
+            }
+        }
+        if (tally == null) {
+            tally = build(issue, commands);
+            changed = true;
+        }
+        return update(issue, key, tally, changed);
+    }
+
+    /**
+     * Rebuilds the tally of a PR from all its comments, after one of them has been edited or deleted,
+     * which might have changed or withdrawn a disposition the tally has recorded.
+     * @param issue The PR's issue.
+     * @param commands The commands in the event's comments.
+     * @return A copy of the dispositions expressed on the PR, keyed by login.
+     */
+    Map<String, ArchReviewStateMachineFlow.ReviewerDisposition> rebuild(GHIssue issue,
+                                                                     CommentCommands commands) throws IOException {
+        return update(issue, key(issue), build(issue, commands), true);
+    }
+
+    private Map<String, ArchReviewStateMachineFlow.ReviewerDisposition> update(GHIssue issue, String key,
+            ReviewTally tally, boolean changed) throws IOException {
+        synchronized (tallies) {
+            tallies.put(key, tally);
+        }
+        if (changed) {
+            write(issue, tally);
+        }
+        return new HashMap<>(tally.dispositions);
+    }
+
+    private static String key(GHIssue issue) {
+        return issue.getRepository().getFullName() + "#" + issue.getNumber();
+    }
+
+    private static ReviewTally build(GHIssue issue, CommentCommands commands) throws IOException {
+        LOG.debug("PR#{}: rebuilding the review tally from all the comments", issue.getNumber());
+        ReviewTally tally = new ReviewTally();
+        for (GHIssueComment comment : issue.getComments()) {
+            tally.record(comment.getId(), comment.getUser().getLogin(), commands.of(comment));
+        }
+        // Comments are listed in the order they were created, so every one will have been recorded
+        return tally;
+    }
+
+    private ReviewTally read(GHIssue issue) throws IOException {
+        Path path = path(issue);
+        try {
+            return MAPPER.readValue(Files.readAllBytes(path), ReviewTally.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            LOG.warn("Ignoring unreadable review tally {}", path, e);
+            return null;
+        }
+    }
+
+    private void write(GHIssue issue, ReviewTally tally) throws IOException {
+        Path path = path(issue);
+        Files.createDirectories(path.getParent());
+        // Write to a temporary file, so a crash never leaves a partial tally
+        Path tmp = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+        try {
+            Files.write(tmp, MAPPER.writeValueAsBytes(tally));
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private Path path(GHIssue issue) {
+        Path root = Paths.get(directory.orElse(System.getProperty("java.io.tmpdir") + "/arch-bot-review-tallies"));
+        return root.resolve(issue.getRepository().getFullName()).resolve(issue.getNumber() + ".json");
+    }
+}
@@ -16,21 +16,40 @@
  */
 package org.bf2.arch.bot;
 
+import javax.annotation.PreDestroy;
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.URISyntaxException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import io.quarkiverse.githubapp.runtime.github.GitHubService;
+import com.fasterxml.jackson.annotation.JsonProperty;
 import io.quarkus.scheduler.Scheduled;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.kohsuke.github.GHDirection;
 import org.kohsuke.github.GHIssue;
 import org.kohsuke.github.GHIssueSearchBuilder;
 import org.kohsuke.github.GHPullRequest;
+import org.kohsuke.github.GHRepository;
 import org.kohsuke.github.GitHub;
+import org.kohsuke.github.PagedSearchIterable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -39,6 +58,26 @@ public class StalledDiscussionFlow {
 
     private static final Logger LOG = LoggerFactory.getLogger(StalledDiscussionFlow.class);
     public static final String ENABLE = "bot.enable.stalled-discussion";
+    public static final String MODE = "bot.stalled-discussion.mode";
+    public static final String CONCURRENCY = "bot.stalled-discussion.concurrency";
+
+    /** How long a PR can go without being discussed before its discussion is considered stalled. */
+    static final Duration STALL_WINDOW = Duration.ofMillis(24*40*60*1000L);
+
+    enum Mode {
+        /** List the review comments of each candidate PR on every scan. */
+        FULL,
+        /**
+         * Keep track of the review comments seen so far, and list only those added since the last scan.
+         * Gives the same results as {@link #FULL}.
+         */
+        INCREMENTAL,
+        /**
+         * Find the candidate PRs and when they were last discussed with a single GraphQL query,
+         * falling back to {@link #INCREMENTAL} if the query fails.
+         */
+        GRAPHQL
+    }
 
     @ConfigProperty(name = "bot.installation.id")
     Long installationId;
@@ -49,24 +88,56 @@ public class StalledDiscussionFlow {
     @ConfigProperty(name = "repository.path")
     String repositoryPath;
 
-    private Date lastRan = new Date(0);
+    @ConfigProperty(name = MODE, defaultValue = "full")
+    Mode mode;
+
+    /**
+     * The maximum number of PRs to evaluate at the same time.
+     */
+    @ConfigProperty(name = CONCURRENCY, defaultValue = "4")
+    int concurrency;
+
+    /** Keyed by repository path */
+    private final Map<String, DiscussionWatermark> watermarks = new HashMap<>();
+
+    @Inject
+    ApiCostLedger costLedger;
+
+    @Inject
+    PrLocks prLocks;
 
+    GitHubClients clients;
     GitHub client;
+    ExecutorService executor;
     //ArchBotConfig config;
 
     @Inject
-    void init(GitHubService service) {
+    void init(GitHubClients clients) throws IOException {
         if (!enabled) {
             LOG.debug("Ignoring init: disabled due to {}=false", ENABLE);
         } else if (installationId != null) {
             // TODO parameterise this installationId
-            client = service.getInstallationClient(installationId);
+            this.clients = clients;
+            client = clients.installationClient(installationId, GitHubRateLimiter.Priority.BACKGROUND);
             // TODO load the config
+            AtomicInteger threadNum = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(Math.max(1, concurrency), runnable -> {
+                Thread thread = new Thread(runnable, "stalled-discussion-" + threadNum.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
         } else {
             throw new RuntimeException("installation id is requied");
         }
     }
 
+    @PreDestroy
+    void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
 
 
     /**
@@ -89,89 +160,273 @@ public class StalledDiscussionFlow {
      * If the PR has been opened for > Y hours then "stalled-discussion"
      */
     // TODO similar method as this, but for OVERDUE
-    @Scheduled(every="60s")
+    @Scheduled(every="60s", concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
     public void checkForStalledDiscussions() throws IOException {
         if (!enabled) {
             LOG.debug("Ignoring scheduled trigger: disabled due to {}=false", ENABLE);
             return;
         }
+        if (clients.shouldDeferBackground(installationId)) {
+            // Try again on the next trigger, rather than run out of rate limit half way through
+            return;
+        }
+        ApiCostLedger.Event cost = costLedger.scheduled("checkForStalledDiscussions");
+        try (var scope = cost.enter(); var timing = FlowMetrics.time("checkForStalledDiscussions")) {
+            check();
+        } finally {
+            cost.finish();
+        }
+    }
+
+    /**
+     * Evaluates a PR on the executor, for the current flow and cost ledger event.
+     */
+    private Future<?> submit(Callable<?> evaluation) {
+        return executor.submit(ApiCostLedger.inCurrentEvent(FlowMetrics.inCurrentFlow(evaluation)));
+    }
+
+    private void check() throws IOException {
         long now = System.currentTimeMillis();
-        long thresh = now - 24*40*60*1000L;
-        LOG.info("Checking for stalled discussions");
+        long thresh = now - STALL_WINDOW.toMillis();
+        LOG.info("Checking for stalled discussions ({} mode)", mode);
         // TODO need a parameter for this installation id
 
-        var results = client.searchIssues()
-                .isOpen()
-                .q("repo:" + repositoryPath)
-                .q("is:pr")
-                // multiple labels in a label query term => OR, see https://github.com/github/feedback/discussions/4507
-                // whereas multiple label query terms => AND
-                .q("label:\"" + Labels.STATE_NEEDS_REVIEWERS + "\",\"" + Labels.STATE_BEING_REVIEWED + "\"")
-                .q("-label:\"" + Labels.NOTICE_OVERDUE + "\"")
+        if (mode == Mode.GRAPHQL) {
+            List<StalledDiscussionQuery.Candidate> candidates = null;
+            try {
+                candidates = new StalledDiscussionQuery(clients, installationId)
+                        .candidates(String.join(" ", searchTerms()) + " sort:updated-asc", Instant.ofEpochMilli(thresh));
+            } catch (IOException e) {
+                LOG.warn("GraphQL query failed, falling back to the REST API", e);
+            }
+            if (candidates != null) {
+                checkCandidates(candidates, thresh);
+                return;
+            }
+        }
+
+        var search = client.searchIssues();
+        searchTerms().forEach(search::q);
+        var results = search
                 .sort(GHIssueSearchBuilder.Sort.UPDATED)
                 .order(GHDirection.ASC)
                 .list();
         LOG.info("Top-level query found {} PRs", results.getTotalCount());
-        int processed = 0;
+        if (mode == Mode.FULL) {
+            checkFully(results, thresh);
+        } else {
+            checkIncrementally(results, thresh);
+        }
+    }
+
+    /**
+     * @return The search terms for the open PRs whose discussion might stall.
+     */
+    private List<String> searchTerms() {
+        return List.of("is:open",
+                "repo:" + repositoryPath,
+                "is:pr",
+                // multiple labels in a label query term => OR, see https://github.com/github/feedback/discussions/4507
+                // whereas multiple label query terms => AND
+                "label:\"" + Labels.STATE_NEEDS_REVIEWERS + "\",\"" + Labels.STATE_BEING_REVIEWED + "\"",
+                "-label:\"" + Labels.NOTICE_OVERDUE + "\"");
+    }
+
+    /**
+     * Labels the PRs found by the GraphQL query, whose discussion has stalled.
+     */
+    private void checkCandidates(List<StalledDiscussionQuery.Candidate> candidates, long thresh) throws IOException {
+        LOG.info("GraphQL query found {} PRs not discussed since {}", candidates.size(), new Date(thresh));
+        GHRepository repository = null;
+        List<Future<?>> evaluations = new ArrayList<>();
+        for (var candidate : candidates) {
+            LOG.info("PR#{}: Last discussed {}", candidate.number, candidate.lastDiscussed());
+            if (candidate.labels.contains(Labels.NOTICE_STALLED_DISCUSSION)) {
+                LOG.debug("PR#{}: already has {} label", candidate.number, Labels.NOTICE_STALLED_DISCUSSION);
+                continue;
+            }
+            if (repository == null) {
+                repository = client.getRepository(repositoryPath);
+            }
+            GHRepository repo = repository;
+            evaluations.add(submit(() -> {
+                markStalled(repo.getPullRequest(candidate.number));
+                return null;
+            }));
+        }
+        awaitAll(evaluations);
+    }
+
+    /**
+     * Judges each PR by its last review comment, like {@link #checkFully(PagedSearchIterable, long)},
+     * but uses the repository-wide listing of review comments, so that a scan costs one call for
+     * the review comments added since the last scan, plus the search, plus a call to label each newly stalled PR.
+     * The comments of a PR from before the watermark started are listed the first time they matter.
+     */
+    private void checkIncrementally(PagedSearchIterable<GHIssue> results, long thresh) throws IOException {
+        Instant cutoff = Instant.ofEpochMilli(thresh);
+        DiscussionWatermark watermark = watermarks.computeIfAbsent(repositoryPath, k -> new DiscussionWatermark(cutoff));
+        updateWatermark(watermark);
+        Set<Integer> candidates = new HashSet<>();
+        List<Future<?>> evaluations = new ArrayList<>();
         for (GHIssue issue : results) {
-//            if () {
-//                lastRan = new Date();
-//                break;
-//            }
-            processed++;
-            try {
-                GHPullRequest pullRequest = Util.findPullRequest(issue);
-                if (pullRequest == null) {
-                    LOG.info("Issue#{} is not a PR, ignoring", issue.getNumber());
-                    continue;
-                }
-                // TODO calling listReviewComments() like this is inefficient
-                // we're really interested in them in created sort
-                // and since the last time we ran
-                // those are supported by the github API
-                // https://docs.github.com/en/rest/pulls/comments#list-review-comments-in-a-repository
-                // but the client doesn't expose them
-                Date lastCommentDate;
-                var mostRecent = pullRequest.listReviewComments().toList().stream()
-//                        .filter(pr -> {
-//                            try {
-//                                return !Util.isThisBot(config, pr.getUser());
-//                            } catch (IOException e) {
-//                                return true;
-//                            }
-//                        })
-                        .map(comment -> {
-                            try {
-                                LOG.info("Comment: {}", comment.getBody());
-                                LOG.info("User: {}", comment.getUser().getLogin());
-                                return comment.getCreatedAt();
-                            } catch (IOException e) {
-                                return new Date(0);
-                            }
-                        }).max(Date::compareTo);
-
-                lastCommentDate = mostRecent.orElseGet(() -> {
+            candidates.add(issue.getNumber());
+            if (issue.getLabels().stream().anyMatch(label -> Labels.NOTICE_STALLED_DISCUSSION.equals(label.getName()))) {
+                LOG.debug("PR#{}: already has {} label", issue.getNumber(), Labels.NOTICE_STALLED_DISCUSSION);
+                continue;
+            }
+            if (!watermark.knows(issue.getNumber()) && issue.getUpdatedAt().getTime() >= thresh) {
+                // Whether it's stalled depends on whether it has older comments
+                watermark.recordAll(issue.getNumber(), lastReviewComment(issue.getNumber()));
+            }
+            // When the comments aren't known the PR was updated before the threshold, and so were its comments
+            Date lastCommentDate = watermark.lastReviewComment(issue.getNumber())
+                    .map(Date::from)
+                    .orElse(issue.getUpdatedAt());
+            LOG.info("PR#{}: Last comment time {}", issue.getNumber(), lastCommentDate);
+            if (lastCommentDate.getTime() < thresh) {
+                evaluations.add(submit(() -> {
+                    GHPullRequest pullRequest = Util.findPullRequest(issue);
+                    if (pullRequest == null) {
+                        LOG.info("Issue#{} is not a PR, ignoring", issue.getNumber());
+                    } else {
+                        markStalled(pullRequest);
+                    }
+                    return null;
+                }));
+            }
+        }
+        watermark.retain(candidates);
+        awaitAll(evaluations);
+    }
+
+    /**
+     * Lists all the review comments of a PR.
+     * @return When the newest was created, or empty if it has none.
+     */
+    private Optional<Instant> lastReviewComment(int prNumber) throws IOException {
+        var comments = clients.getAllPages(installationId, GitHubRateLimiter.Priority.BACKGROUND,
+                String.format("/repos/%s/pulls/%d/comments?per_page=100", repositoryPath, prNumber),
+                RepositoryReviewComment[].class);
+        return comments.stream()
+                .map(comment -> Instant.parse(comment.createdAt))
+                .max(Instant::compareTo);
+    }
+
+    /**
+     * Lists the review comments in the repository which have been updated since the watermark
+     * and records them in it.
+     * See https://docs.github.com/en/rest/pulls/comments#list-review-comments-in-a-repository
+     */
+    private void updateWatermark(DiscussionWatermark watermark) throws IOException {
+        String since = DateTimeFormatter.ISO_INSTANT.format(watermark.since());
+        var comments = clients.getAllPages(installationId, GitHubRateLimiter.Priority.BACKGROUND,
+                String.format("/repos/%s/pulls/comments?sort=created&direction=asc&per_page=100&since=%s",
+                        repositoryPath, since),
+                RepositoryReviewComment[].class);
+        LOG.info("Found {} review comments updated since {}", comments.size(), since);
+        for (var comment : comments) {
+            watermark.record(Util.prNumber(comment.pullRequestUrl),
+                    Instant.parse(comment.createdAt),
+                    Instant.parse(comment.updatedAt));
+        }
+    }
+
+    /**
+     * The parts of a review comment in the response from
+     * {@code GET /repos/{owner}/{repo}/pulls/comments} (or {@code .../pulls/{number}/comments}) which we need.
+     */
+    static class RepositoryReviewComment {
+        @JsonProperty("pull_request_url")
+        String pullRequestUrl;
+        @JsonProperty("created_at")
+        String createdAt;
+        @JsonProperty("updated_at")
+        String updatedAt;
+    }
+
+    private void checkFully(PagedSearchIterable<GHIssue> results, long thresh) throws IOException {
+        List<Future<?>> evaluations = new ArrayList<>();
+        for (GHIssue issue : results) {
+            evaluations.add(submit(() -> {
+                checkFully(issue, thresh);
+                return null;
+            }));
+        }
+        awaitAll(evaluations);
+    }
+
+    private void checkFully(GHIssue issue, long thresh) throws IOException, URISyntaxException {
+        GHPullRequest pullRequest = Util.findPullRequest(issue);
+        if (pullRequest == null) {
+            LOG.info("Issue#{} is not a PR, ignoring", issue.getNumber());
+            return;
+        }
+        // Calling listReviewComments() like this is inefficient, see checkIncrementally()
+        Date lastCommentDate;
+        var mostRecent = pullRequest.listReviewComments().toList().stream()
+//                .filter(pr -> {
+//                    try {
+//                        return !Util.isThisBot(config, pr.getUser());
+//                    } catch (IOException e) {
+//                        return true;
+//                    }
+//                })
+                .map(comment -> {
                     try {
-                        return pullRequest.getUpdatedAt();
+                        LOG.info("Comment: {}", comment.getBody());
+                        LOG.info("User: {}", comment.getUser().getLogin());
+                        return comment.getCreatedAt();
                     } catch (IOException e) {
-                        try {
-                            return pullRequest.getCreatedAt();
-                        } catch (IOException ex) {
-                            return new Date(0);
-                        }
+                        return new Date(0);
                     }
-                });
-                LOG.info("PR#{}: Last comment time {}", pullRequest.getNumber(), lastCommentDate);
-
-                if (lastCommentDate.getTime() < thresh) {
-                    LOG.info("PR#{}: adding {} label", pullRequest.getNumber(), Labels.NOTICE_STALLED_DISCUSSION);
-                    Set<String> labels = Util.existingLabels(pullRequest);
-                    labels.add(Labels.NOTICE_STALLED_DISCUSSION);
-                    Util.setLabels(pullRequest, labels);
+                }).max(Date::compareTo);
+
+        lastCommentDate = mostRecent.orElseGet(() -> {
+            try {
+                return pullRequest.getUpdatedAt();
+            } catch (IOException e) {
+                try {
+                    return pullRequest.getCreatedAt();
+                } catch (IOException ex) {
+                    return new Date(0);
+                }
+            }
+        });
+        LOG.info("PR#{}: Last comment time {}", pullRequest.getNumber(), lastCommentDate);
+
+        if (lastCommentDate.getTime() < thresh) {
+            markStalled(pullRequest);
+        }
+    }
+
+    private void markStalled(GHPullRequest pullRequest) throws IOException {
+        LOG.info("PR#{}: adding {} label", pullRequest.getNumber(), Labels.NOTICE_STALLED_DISCUSSION);
+        Util.updateLabels(prLocks, pullRequest, labels -> labels.add(Labels.NOTICE_STALLED_DISCUSSION));
+    }
+
+    /**
+     * Waits for all the given PR evaluations to finish. A failure to evaluate one PR does not prevent
+     * the evaluation of the others, but is rethrown once they've all finished.
+     */
+    private static void awaitAll(List<Future<?>> evaluations) throws IOException {
+        IOException failure = null;
+        for (Future<?> evaluation : evaluations) {
+            try {
+                evaluation.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while evaluating PRs");
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = new IOException("Failed to evaluate PR", e.getCause());
+                } else {
+                    failure.addSuppressed(e.getCause());
                 }
-            } catch (URISyntaxException | IOException e) {
-                throw new RuntimeException(e);
             }
         }
+        if (failure != null) {
+            throw failure;
+        }
     }
 }
@@ -0,0 +1,188 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bf2.arch.bot;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Finds the PRs which might have stalled discussions using a single (paginated) GraphQL query.
+ * Each page gives, for each PR, the times of its latest review comment (across all its review threads),
+ * issue comment and review,
+ * which the REST API needs a search, plus a couple of calls per PR, to find.
+ */
+class StalledDiscussionQuery {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StalledDiscussionQuery.class);
+
+    /**
+     * The number of review threads of each PR to look at.
+     * A reply can make any thread the most recently discussed, so we need the latest comment of every one.
+     */
+    static final int MAX_THREADS = 100;
+
+    static final String QUERY = "query($searchQuery: String!, $cursor: String) {\n" +
+            "  search(query: $searchQuery, type: ISSUE, first: 50, after: $cursor) {\n" +
+            "    pageInfo { hasNextPage endCursor }\n" +
+            "    nodes {\n" +
+            "      ... on PullRequest {\n" +
+            "        number\n" +
+            "        updatedAt\n" +
+            "        labels(first: 50) { nodes { name } }\n" +
+            "        comments(last: 1) { nodes { createdAt } }\n" +
+            "        reviews(last: 1) { nodes { submittedAt } }\n" +
+            "        reviewThreads(first: " + MAX_THREADS + ") {\n" +
+            "          pageInfo { hasNextPage }\n" +
+            "          nodes { comments(last: 1) { nodes { createdAt } } }\n" +
+            "        }\n" +
+            "      }\n" +
+            "    }\n" +
+            "  }\n" +
+            "}\n";
+
+    /**
+     * A PR found by the query.
+     */
+    static class Candidate {
+        final int number;
+        final Instant updatedAt;
+        final Set<String> labels;
+        final Instant lastReviewComment;
+        final Instant lastIssueComment;
+        final Instant lastReview;
+
+        Candidate(int number, Instant updatedAt, Set<String> labels,
+                  Instant lastReviewComment, Instant lastIssueComment, Instant lastReview) {
+            this.number = number;
+            this.updatedAt = updatedAt;
+            this.labels = labels;
+            this.lastReviewComment = lastReviewComment;
+            this.lastIssueComment = lastIssueComment;
+            this.lastReview = lastReview;
+        }
+
+        /**
+         * @return The time of the latest review comment, issue comment or review,
+         * or the time the PR was last updated if it has none of those.
+         */
+        Instant lastDiscussed() {
+            Instant result = null;
+            for (Instant instant : new Instant[]{lastReviewComment, lastIssueComment, lastReview}) {
+                if (instant != null && (result == null || instant.isAfter(result))) {
+                    result = instant;
+                }
+            }
+            return result != null ? result : updatedAt;
+        }
+    }
+
+    private final GitHubClients clients;
+    private final long installationId;
+
+    StalledDiscussionQuery(GitHubClients clients, long installationId) {
+        this.clients = clients;
+        this.installationId = installationId;
+    }
+
+    /**
+     * Pages through all the PRs matching the given search, returning those last discussed before the given time.
+     * A PR can be updated without being discussed (e.g. by a push), so paging can't stop at the first PR updated
+     * since then.
+     * @param searchQuery The search.
+     * @param discussedBefore Only PRs last discussed before this time are returned.
+     * @return The PRs
+     */
+    List<Candidate> candidates(String searchQuery, Instant discussedBefore) throws IOException {
+        List<Candidate> result = new ArrayList<>();
+        String cursor = null;
+        do {
+            Map<String, Object> variables = new HashMap<>();
+            variables.put("searchQuery", searchQuery);
+            variables.put("cursor", cursor);
+            JsonNode search = clients.graphql(installationId, GitHubRateLimiter.Priority.BACKGROUND, QUERY, variables).get("search");
+            for (JsonNode node : search.get("nodes")) {
+                if (!node.hasNonNull("number")) {
+                    // Not a PR
+                    continue;
+                }
+                Candidate candidate = candidate(node);
+                Instant lastDiscussed = candidate.lastDiscussed();
+                LOG.debug("PR#{}: last discussed {}", candidate.number, lastDiscussed);
+                if (lastDiscussed.isBefore(discussedBefore)) {
+                    result.add(candidate);
+                }
+            }
+            JsonNode pageInfo = search.get("pageInfo");
+            cursor = pageInfo.get("hasNextPage").asBoolean() ? pageInfo.get("endCursor").asText() : null;
+        } while (cursor != null);
+        return result;
+    }
+
+    private static Candidate candidate(JsonNode pr) {
+        Set<String> labels = new HashSet<>();
+        for (JsonNode label : pr.path("labels").path("nodes")) {
+            labels.add(label.get("name").asText());
+        }
+        Instant updatedAt = Instant.parse(pr.get("updatedAt").asText());
+        return new Candidate(pr.get("number").asInt(),
+                updatedAt,
+                labels,
+                lastReviewComment(pr, updatedAt),
+                instant(lastNode(pr.path("comments")).path("createdAt")),
+                instant(lastNode(pr.path("reviews")).path("submittedAt")));
+    }
+
+    /**
+     * @return The time of the latest comment in any of the PR's review threads, or null if it has none.
+     * If the PR has more threads than we asked for then the PR's update time, which can't be earlier,
+     * so that we never consider a PR to be stalled because its latest thread was missed.
+     */
+    private static Instant lastReviewComment(JsonNode pr, Instant updatedAt) {
+        JsonNode threads = pr.path("reviewThreads");
+        if (threads.path("pageInfo").path("hasNextPage").asBoolean()) {
+            LOG.debug("PR#{}: more than {} review threads, using its update time", pr.get("number"), MAX_THREADS);
+            return updatedAt;
+        }
+        Instant result = null;
+        for (JsonNode thread : threads.path("nodes")) {
+            Instant createdAt = instant(lastNode(thread.path("comments")).path("createdAt"));
+            if (createdAt != null && (result == null || createdAt.isAfter(result))) {
+                result = createdAt;
+            }
+        }
+        return result;
+    }
+
+    private static JsonNode lastNode(JsonNode connection) {
+        JsonNode nodes = connection.path("nodes");
+        return nodes.path(nodes.size() - 1);
+    }
+
+    private static Instant instant(JsonNode node) {
+        return node.isTextual() ? Instant.parse(node.asText()) : null;
+    }
+}
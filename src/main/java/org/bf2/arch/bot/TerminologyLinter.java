@@ -0,0 +1,271 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bf2.arch.bot;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.bf2.arch.bot.model.patch.FilePatch;
+import org.bf2.arch.bot.model.patch.Line;
+
+/**
+ * Finds the suspect terms (see {@link ArchBotConfig#suspectTerms}) which a PR adds to a record.
+ *
+ * The terms are compiled into an Aho-Corasick automaton, which finds all the terms in a line in a single pass
+ * over it, so the cost of checking a patch depends on the size of its added lines, and not on the number of terms.
+ * Compiling the automaton is linear in the total length of the terms, and happens once for each distinct
+ * list of terms (see {@link #forTerms(List)}), rather than on each event.
+ */
+final class TerminologyLinter {
+
+    /** The number of compiled term lists to keep: there's one list per repository's config, and it rarely changes */
+    private static final int MAX_COMPILED = 8;
+
+    /** Keyed by the SHA-1 of the terms */
+    private static final Map<String, TerminologyLinter> COMPILED = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, TerminologyLinter> eldest) {
+            return size() > MAX_COMPILED;
+        }
+    };
+
+    /**
+     * A suspect term used.
+     */
+    static final class Finding {
+        final ArchBotConfig.SuspectTerm term;
+        /** The text of the term, as it was used. */
+        final String used;
+        /** The position of the line it's first used on. */
+        final int position;
+
+        Finding(ArchBotConfig.SuspectTerm term, String used, int position) {
+            this.term = term;
+            this.used = used;
+            this.position = position;
+        }
+
+        @Override
+        public String toString() {
+            return used + "@" + position;
+        }
+    }
+
+    /** The terms, indexed by term number */
+    private final ArchBotConfig.SuspectTerm[] terms;
+    /** For each term number, the length of the (folded) term */
+    private final int[] termLengths;
+
+    // The automaton: state 0 is the root.
+
+    /** For each state, the characters it has transitions on, ascending */
+    private final char[][] transitionChars;
+    /** For each state, the states its transitions go to, in the same order as its characters */
+    private final int[][] transitionStates;
+    /** For each state, the state for the longest proper suffix of its text which is also a prefix of a term */
+    private final int[] failures;
+    /** For each state, the number of the term its text is, or -1 */
+    private final int[] outputs;
+    /** For each state, the nearest state along its failures which is a term, or -1 */
+    private final int[] outputLinks;
+
+    private TerminologyLinter(List<ArchBotConfig.SuspectTerm> termList) {
+        List<TreeMap<Character, Integer>> trie = new ArrayList<>();
+        trie.add(new TreeMap<>());
+        List<Integer> trieOutputs = new ArrayList<>();
+        trieOutputs.add(-1);
+        List<ArchBotConfig.SuspectTerm> accepted = new ArrayList<>();
+        List<Integer> lengths = new ArrayList<>();
+        for (ArchBotConfig.SuspectTerm term : termList) {
+            if (term == null || term.term == null || term.term.isBlank()) {
+                continue;
+            }
+            String text = term.term.strip();
+            int state = 0;
+            for (int i = 0; i < text.length(); i++) {
+                char ch = fold(text.charAt(i));
+                Integer next = trie.get(state).get(ch);
+                if (next == null) {
+                    next = trie.size();
+                    trie.add(new TreeMap<>());
+                    trieOutputs.add(-1);
+                    trie.get(state).put(ch, next);
+                }
+                state = next;
+            }
+            // The first of any duplicates wins
+            if (trieOutputs.get(state) == -1) {
+                trieOutputs.set(state, accepted.size());
+                accepted.add(term);
+                lengths.add(text.length());
+            }
+        }
+
+        int numStates = trie.size();
+        terms = accepted.toArray(new ArchBotConfig.SuspectTerm[0]);
+        termLengths = lengths.stream().mapToInt(Integer::intValue).toArray();
+        transitionChars = new char[numStates][];
+        transitionStates = new int[numStates][];
+        outputs = new int[numStates];
+        for (int s = 0; s < numStates; s++) {
+            TreeMap<Character, Integer> transitions = trie.get(s);
+            transitionChars[s] = new char[transitions.size()];
+            transitionStates[s] = new int[transitions.size()];
+            int t = 0;
+            for (Map.Entry<Character, Integer> entry : transitions.entrySet()) {
+                transitionChars[s][t] = entry.getKey();
+                transitionStates[s][t] = entry.getValue();
+                t++;
+            }
+            outputs[s] = trieOutputs.get(s);
+        }
+
+        // Breadth first, so the failure of a state is always computed before the states below it
+        failures = new int[numStates];
+        outputLinks = new int[numStates];
+        outputLinks[0] = -1;
+        Deque<Integer> queue = new ArrayDeque<>();
+        for (int child : transitionStates[0]) {
+            failures[child] = 0;
+            outputLinks[child] = -1;
+            queue.add(child);
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.remove();
+            for (int t = 0; t < transitionChars[state].length; t++) {
+                char ch = transitionChars[state][t];
+                int child = transitionStates[state][t];
+                int failure = failures[state];
+                int next;
+                while ((next = transition(failure, ch)) == -1 && failure != 0) {
+                    failure = failures[failure];
+                }
+                failures[child] = next == -1 ? 0 : next;
+                outputLinks[child] = outputs[failures[child]] != -1 ? failures[child] : outputLinks[failures[child]];
+                queue.add(child);
+            }
+        }
+    }
+
+    /**
+     * @param terms The suspect terms.
+     * @return A linter for the terms, compiled the first time the same terms are seen.
+     */
+    static TerminologyLinter forTerms(List<ArchBotConfig.SuspectTerm> terms) {
+        String sha = sha(terms);
+        synchronized (COMPILED) {
+            return COMPILED.computeIfAbsent(sha, k -> new TerminologyLinter(terms));
+        }
+    }
+
+    private static String sha(List<ArchBotConfig.SuspectTerm> terms) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            for (ArchBotConfig.SuspectTerm term : terms) {
+                if (term != null) {
+                    sha1.update(String.valueOf(term.term).getBytes(StandardCharsets.UTF_8));
+                    sha1.update((byte) 0);
+                    sha1.update(String.valueOf(term.reason).getBytes(StandardCharsets.UTF_8));
+                    sha1.update((byte) 0);
+                }
+            }
+            byte[] digest = sha1.digest();
+            return Util.hex(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return The number of distinct terms.
+     */
+    int size() {
+        return terms.length;
+    }
+
+    /**
+     * @param patch The patch of a record.
+     * @return The suspect terms used in the added lines of the patch,
+     * each with the position of the first line it's used on, in the order they're first used.
+     */
+    List<Finding> suspectTerms(FilePatch patch) {
+        List<Finding> findings = new ArrayList<>();
+        if (terms.length == 0) {
+            return findings;
+        }
+        boolean[] found = new boolean[terms.length];
+        for (int position = 0; position < patch.positions(); position++) {
+            Line line = patch.lineAt(position);
+            if (line != null && line.type() == Line.Type.ADD) {
+                scan(line.chars(), position, found, findings);
+            }
+        }
+        return findings;
+    }
+
+    private void scan(CharSequence chars, int position, boolean[] found, List<Finding> findings) {
+        int length = chars.length();
+        int state = 0;
+        for (int i = 0; i < length; i++) {
+            char ch = fold(chars.charAt(i));
+            int next;
+            while ((next = transition(state, ch)) == -1 && state != 0) {
+                state = failures[state];
+            }
+            state = next == -1 ? 0 : next;
+            for (int s = outputs[state] != -1 ? state : outputLinks[state]; s != -1; s = outputLinks[s]) {
+                int term = outputs[s];
+                int start = i + 1 - termLengths[term];
+                int end = i + 1;
+                if (!found[term]
+                        && (start == 0 || !isWordChar(chars.charAt(start - 1)))
+                        && (end == length || !isWordChar(chars.charAt(end)))) {
+                    found[term] = true;
+                    findings.add(new Finding(terms[term], chars.subSequence(start, end).toString(), position));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The state the transition from the given state on the given character goes to, or -1 if there isn't one.
+     */
+    private int transition(int state, char ch) {
+        int t = Arrays.binarySearch(transitionChars[state], ch);
+        return t < 0 ? -1 : transitionStates[state][t];
+    }
+
+    /**
+     * Terms match ignoring case, and any whitespace in them matches any (single) whitespace character.
+     */
+    private static char fold(char ch) {
+        return Character.isWhitespace(ch) ? ' ' : Character.toLowerCase(ch);
+    }
+
+    private static boolean isWordChar(char ch) {
+        return Character.isLetterOrDigit(ch) || ch == '_';
+    }
+}
@@ -18,10 +18,17 @@ package org.bf2.arch.bot;
 
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.util.HashSet;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 import org.jetbrains.annotations.NotNull;
+import org.kohsuke.github.GHFileNotFoundException;
 import org.kohsuke.github.GHIssue;
 import org.kohsuke.github.GHLabel;
 import org.kohsuke.github.GHPullRequest;
@@ -39,6 +46,8 @@ public class Util {
 
     public static final String CONFIG_REPO_PATH = "bf2-arch-bot.yml";
 
+    private static final Pattern NEXT_LINK = Pattern.compile("<([^>]+)>;\\s*rel=\"next\"");
+
     private Util() { }
 
     static boolean isThisBot(ArchBotConfig config, GHUser user) throws IOException {
@@ -67,8 +76,15 @@ public class Util {
      * Gets the PR number from the issue shadowing a pull request.
      */
     private static int prNumber(GHIssue.PullRequest pullRequest) throws URISyntaxException {
+        return prNumber(pullRequest.getUrl().toURI().getPath());
+    }
+
+    /**
+     * Gets the PR number from the URL (or URL path) of a pull request.
+     */
+    static int prNumber(String url) {
         int num = -1;
-        String[] split = pullRequest.getUrl().toURI().getPath().split("/");
+        String[] split = url.split("/");
         for (int ii = split.length - 1; ii >= 0; ii--) {
             try {
                 num = Integer.parseInt(split[ii]);
@@ -80,11 +96,78 @@ public class Util {
         return num;
     }
 
+    /**
+     * Gets the URL of the next page from the {@code Link} header of a page of a REST resource.
+     * @return The URL, or null if this is the last page.
+     */
+    static String nextLink(String linkHeader) {
+        if (linkHeader == null) {
+            return null;
+        }
+        Matcher matcher = NEXT_LINK.matcher(linkHeader);
+        return matcher.find() ? matcher.group(1) : null;
+    }
+
+    /**
+     * @return The bytes as lower case hex, as git writes SHAs.
+     */
+    static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
     @NotNull
     static Set<String> existingLabels(GHPullRequest pullRequest) {
         return pullRequest.getLabels().stream().map(GHLabel::getName).collect(Collectors.toSet());
     }
-    static void setLabels(GHPullRequest pullRequest, Set<String> labels) throws IOException {
-        pullRequest.setLabels(labels.toArray(new String[0]));
+
+    /**
+     * Changes the labels of a PR from the given existing labels to the given labels, with the fewest calls:
+     * one to add any new labels, and one to remove each label which is no longer wanted.
+     * Labels added or removed by someone else in the meantime are left alone.
+     * @return true iff any label was changed.
+     */
+    static boolean changeLabels(GHPullRequest pullRequest, Set<String> existingLabels, Set<String> labels) throws IOException {
+        Set<String> added = new TreeSet<>(labels);
+        added.removeAll(existingLabels);
+        Set<String> removed = new TreeSet<>(existingLabels);
+        removed.removeAll(labels);
+        if (!added.isEmpty()) {
+            LOG.debug("PR#{}: adding labels {}", pullRequest.getNumber(), added);
+            pullRequest.addLabels(added.toArray(new String[0]));
+        }
+        for (String label : removed) {
+            LOG.debug("PR#{}: removing label {}", pullRequest.getNumber(), label);
+            try {
+                pullRequest.removeLabel(label);
+            } catch (GHFileNotFoundException e) {
+                LOG.debug("PR#{}: label {} was already removed", pullRequest.getNumber(), label);
+            }
+        }
+        return !added.isEmpty() || !removed.isEmpty();
+    }
+
+    /**
+     * Applies a change to the labels of a PR, writing only the labels which changed.
+     * It holds the PR's lock, so it's serialized with the flows' changes to the labels of the same PR,
+     * and re-reads the labels once it has the lock, so it doesn't undo changes made while it waited.
+     * @param locks The PR locks.
+     * @param pullRequest The PR
+     * @param mutation Changes the labels it is given.
+     */
+    static void updateLabels(PrLocks locks, GHPullRequest pullRequest, Consumer<Set<String>> mutation) throws IOException {
+        ReentrantLock lock = locks.lock(PrLocks.key(pullRequest.getRepository(), pullRequest.getNumber()));
+        try {
+            pullRequest.refresh();
+            Set<String> existingLabels = existingLabels(pullRequest);
+            Set<String> labels = new HashSet<>(existingLabels);
+            mutation.accept(labels);
+            changeLabels(pullRequest, existingLabels, labels);
+        } finally {
+            lock.unlock();
+        }
     }
 }
@@ -16,15 +16,14 @@
  */
 package org.bf2.arch.bot.model.patch;
 
-import java.io.IOException;
-import java.io.LineNumberReader;
-import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.EnumSet;
 import java.util.List;
 import java.util.Objects;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 /**
@@ -52,14 +51,140 @@ public class FilePatch {
 
     private final List<Hunk> hunks;
 
+    // The position index: a line's (diff) position is the number of lines it is below the first hunk header,
+    // which is how GitHub locates review comments.
+
+    /** For each hunk, the first new-file line number, ascending */
+    private final int[] hunkNewStarts;
+    /** For each hunk, the number of new-file lines it has */
+    private final int[] hunkNewCounts;
+    /** For each hunk, the index in {@link #newLinePositions} of its first new-file line */
+    private final int[] hunkNewOffsets;
+    /** The positions of the new-file lines, hunk by hunk */
+    private final int[] newLinePositions;
+    private final int[] hunkOldStarts;
+    private final int[] hunkOldCounts;
+    private final int[] hunkOldOffsets;
+    private final int[] oldLinePositions;
+    /** For each position, the new-file line number, or 0 if there isn't one (a removed line or a hunk header) */
+    private final int[] positionNewLines;
+    /** For each position, the old-file line number, or 0 if there isn't one (an added line or a hunk header) */
+    private final int[] positionOldLines;
+    /** For each position, the line, or null for hunk headers */
+    private final Line[] positionLines;
+
     public FilePatch(List<Hunk> hunks) {
         this.hunks = hunks;
+        int numHunks = hunks.size();
+        hunkNewStarts = new int[numHunks];
+        hunkNewCounts = new int[numHunks];
+        hunkNewOffsets = new int[numHunks];
+        hunkOldStarts = new int[numHunks];
+        hunkOldCounts = new int[numHunks];
+        hunkOldOffsets = new int[numHunks];
+        int numLines = 0;
+        for (Hunk hunk : hunks) {
+            numLines += hunk.lines().size();
+        }
+        newLinePositions = new int[numLines];
+        oldLinePositions = new int[numLines];
+        positionNewLines = new int[numLines + numHunks];
+        positionOldLines = new int[numLines + numHunks];
+        positionLines = new Line[numLines + numHunks];
+
+        int position = -1;
+        int numNew = 0;
+        int numOld = 0;
+        for (int h = 0; h < numHunks; h++) {
+            Hunk hunk = hunks.get(h);
+            // The hunk header
+            position++;
+            hunkNewStarts[h] = hunk.newStartLine();
+            hunkNewOffsets[h] = numNew;
+            hunkOldStarts[h] = hunk.oldStartLine();
+            hunkOldOffsets[h] = numOld;
+            int newLine = hunk.newStartLine();
+            int oldLine = hunk.oldStartLine();
+            for (Line line : hunk.lines()) {
+                position++;
+                positionLines[position] = line;
+                if (line.type() != Line.Type.REMOVE) {
+                    positionNewLines[position] = newLine++;
+                    newLinePositions[numNew++] = position;
+                }
+                if (line.type() != Line.Type.ADD) {
+                    positionOldLines[position] = oldLine++;
+                    oldLinePositions[numOld++] = position;
+                }
+            }
+            hunkNewCounts[h] = numNew - hunkNewOffsets[h];
+            hunkOldCounts[h] = numOld - hunkOldOffsets[h];
+        }
     }
 
     public List<Hunk> hunks() {
         return hunks;
     }
 
+    /**
+     * @return The position of the given line of the new file, or -1 if that line is not in the patch.
+     */
+    public int positionOfNewLine(int newLine) {
+        return positionOf(newLine, hunkNewStarts, hunkNewCounts, hunkNewOffsets, newLinePositions);
+    }
+
+    /**
+     * @return The position of the given line of the old file, or -1 if that line is not in the patch.
+     */
+    public int positionOfOldLine(int oldLine) {
+        return positionOf(oldLine, hunkOldStarts, hunkOldCounts, hunkOldOffsets, oldLinePositions);
+    }
+
+    private static int positionOf(int lineNum, int[] hunkStarts, int[] hunkCounts, int[] hunkOffsets, int[] positions) {
+        int h = Arrays.binarySearch(hunkStarts, lineNum);
+        if (h < 0) {
+            // The hunk starting before the line
+            h = -h - 2;
+            if (h < 0) {
+                return -1;
+            }
+        }
+        int offset = lineNum - hunkStarts[h];
+        return offset < hunkCounts[h] ? positions[hunkOffsets[h] + offset] : -1;
+    }
+
+    /**
+     * @return The line of the new file at the given position, or -1 if there isn't one
+     * (the position is a removed line, a hunk header, or outside the patch).
+     */
+    public int newLineAt(int position) {
+        return position >= 0 && position < positionNewLines.length && positionNewLines[position] != 0 ?
+                positionNewLines[position] : -1;
+    }
+
+    /**
+     * @return The line of the old file at the given position, or -1 if there isn't one
+     * (the position is an added line, a hunk header, or outside the patch).
+     */
+    public int oldLineAt(int position) {
+        return position >= 0 && position < positionOldLines.length && positionOldLines[position] != 0 ?
+                positionOldLines[position] : -1;
+    }
+
+    /**
+     * @return The number of positions in the patch: its lines and hunk headers.
+     */
+    public int positions() {
+        return positionLines.length;
+    }
+
+    /**
+     * @return The line at the given position, or null if the position is a hunk header or outside the patch.
+     */
+    public Line lineAt(int position) {
+        return position >= 0 && position < positionLines.length ? positionLines[position] : null;
+    }
+
     public static class LineMatch {
         private final Line line;
         private final Matcher matcher;
@@ -79,28 +204,62 @@ public class FilePatch {
             return matcher;
         }
 
+        /**
+         * @return The position of the line in the patch (see {@link #lineAt(int)}).
+         */
         public int patchLineNum() {
             return patchLineNum;
         }
     }
 
+    /**
+     * Finds the lines matching the given pattern lazily, so a caller which only wants the first match
+     * only scans the patch up to it.
+     * @param type The types of line to match.
+     * @param pattern The pattern.
+     * @return The lines which match the pattern, in the order they're in the patch.
+     */
     public Stream<LineMatch> linesMatching(EnumSet<Line.Type> type, Pattern pattern) {
-        return hunks().stream()
-                .flatMap(hunk -> {
-                    int[] patchLineNum = new int[]{hunk.hunkStartLine() - 1};
-
-                    return hunk.lines().stream()
-                            .map(line -> {
-                                patchLineNum[0]++;
-                                Matcher matcher = pattern.matcher(line.line());
-                                if (type.contains(line.type()) && matcher.matches()) {
-                                    return new LineMatch(line, matcher, patchLineNum[0]);
-                                } else {
-                                    return null;
-                                }
-                            })
-                            .filter(Objects::nonNull);
-                });
+        return IntStream.range(0, positionLines.length)
+                .filter(position -> positionLines[position] != null && type.contains(positionLines[position].type()))
+                .mapToObj(position -> {
+                    Line line = positionLines[position];
+                    Matcher matcher = pattern.matcher(line.chars());
+                    return matcher.matches() ? new LineMatch(line, matcher, position) : null;
+                })
+                .filter(Objects::nonNull);
+    }
+
+    /**
+     * Finds the lines matching each of the given patterns, in a single pass over the patch.
+     * @param type The types of line to match.
+     * @param patterns The patterns.
+     * @return For each pattern (in the same order), the lines which match it (in the order they're in the patch).
+     */
+    public List<List<LineMatch>> linesMatching(EnumSet<Line.Type> type, List<Pattern> patterns) {
+        int numPatterns = patterns.size();
+        List<List<LineMatch>> result = new ArrayList<>(numPatterns);
+        Matcher[] matchers = new Matcher[numPatterns];
+        for (int p = 0; p < numPatterns; p++) {
+            result.add(new ArrayList<>());
+            matchers[p] = patterns.get(p).matcher("");
+        }
+        for (int position = 0; position < positionLines.length; position++) {
+            Line line = positionLines[position];
+            if (line == null || !type.contains(line.type())) {
+                continue;
+            }
+            CharSequence chars = line.chars();
+            for (int p = 0; p < numPatterns; p++) {
+                if (matchers[p].reset(chars).matches()) {
+                    // The caller gets its own matcher, so the shared one can be reused for the next line
+                    Matcher matcher = patterns.get(p).matcher(chars);
+                    matcher.matches();
+                    result.get(p).add(new LineMatch(line, matcher, position));
+                }
+            }
+        }
+        return result;
     }
 
     //    /**
@@ -130,60 +289,162 @@ public class FilePatch {
 
     /**
      * Parse a patch, returning the list of hunks.
+     * This is a single pass over the patch, and the {@link Line Lines} of the hunks are views onto it.
+     * Any text before the first hunk header (such as {@code diff --git}, {@code ---} and {@code +++} file headers)
+     * is ignored. Hunk headers can omit the line counts when they're 1 ({@code @@ -1 +1 @@}) and can be followed
+     * by section text ({@code @@ -42,4 +42,4 @@ tags: []}).
+     * @throws IllegalStateException If a hunk header is malformed.
      */
     public static FilePatch parsePatch(String patch) {
-        Pattern headerPattern = Pattern.compile("^@@ -([0-9]+),([0-9]+) \\+([0-9]+),([0-9]+) @@$");
-        Pattern linePattern = Pattern.compile("^([ +-])(.*)$");
-        var hunks = new ArrayList<Hunk>();
-        // TODO care over handling of new lines
-        try {
-            try (var it = new LineNumberReader(new StringReader(patch))) {
-                String line = it.readLine();
-                while (line != null) {
-                    Matcher headerMatcher = headerPattern.matcher(line);
-                    if (!headerMatcher.matches()) {
-                        throw new IllegalStateException();
-                    }
-                    // See https://docs.github.com/en/rest/reference/pulls#create-a-review-comment-for-a-pull-request
-                    int hunkStartLine = it.getLineNumber();
-                    var lines = new ArrayList<Line>();
-                    line = it.readLine();
-                    while (line != null) {
-                        Matcher lineMatcher = linePattern.matcher(line);
-                        if (lineMatcher.matches()) {
-                            Line.Type type;
-                            switch (lineMatcher.group(1)) {
-                                case " ":
-                                    type = Line.Type.CONTEXT;
-                                    break;
-                                case "+":
-                                    type = Line.Type.ADD;
-                                    break;
-                                case "-":
-                                    type = Line.Type.REMOVE;
-                                    break;
-                                default:
-                                    throw new IllegalStateException();
-                            }
-                            Line l = new Line(type, lineMatcher.group(2));
-                            lines.add(l);
-                        } else {
-                            break;
-                        }
-                        line = it.readLine();
-                    }
-                    var hunk = new Hunk(hunkStartLine,
-                            Integer.parseInt(headerMatcher.group(1)),
-                            Integer.parseInt(headerMatcher.group(2)),
-                            Integer.parseInt(headerMatcher.group(3)),
-                            Integer.parseInt(headerMatcher.group(4)),
-                            lines);
-                    hunks.add(hunk);
+        return new Parser(patch).parse();
+    }
+
+    private static class Parser {
+        private final String patch;
+        private final int length;
+        /** The index of the start of the current line */
+        private int pos;
+        /** The 1-based number of the current line */
+        private int lineNum;
+        /** The index of the next character of the hunk header being parsed */
+        private int headerPos;
+
+        Parser(String patch) {
+            this.patch = patch;
+            this.length = patch.length();
+            this.lineNum = 1;
+        }
+
+        FilePatch parse() {
+            var hunks = new ArrayList<Hunk>();
+            while (pos < length) {
+                if (patch.startsWith("@@ ", pos)) {
+                    hunks.add(hunk());
+                } else {
+                    // Not in a hunk, e.g. a file header
+                    nextLine();
                 }
             }
             return new FilePatch(hunks);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+        }
+
+        private int endOfLine() {
+            int eol = patch.indexOf('\n', pos);
+            return eol == -1 ? length : eol;
+        }
+
+        /**
+         * @return The end of the content of the line ending at {@code eol}, without the {@code \r} of a CRLF.
+         */
+        private int endOfContent(int eol) {
+            return eol > pos && patch.charAt(eol - 1) == '\r' ? eol - 1 : eol;
+        }
+
+        private void nextLine() {
+            pos = endOfLine() + 1;
+            lineNum++;
+        }
+
+        private Hunk hunk() {
+            // See https://docs.github.com/en/rest/reference/pulls#create-a-review-comment-for-a-pull-request
+            int hunkStartLine = lineNum;
+            int eol = endOfContent(endOfLine());
+            // @@ -<old start>[,<old length>] +<new start>[,<new length>] @@[ <section>]
+            headerPos = pos + "@@ ".length();
+            expect('-', eol);
+            int oldStartLine = number(eol);
+            int oldLength = optionalLength(eol);
+            expect(' ', eol);
+            expect('+', eol);
+            int newStartLine = number(eol);
+            int newLength = optionalLength(eol);
+            if (!patch.startsWith(" @@", headerPos)) {
+                throw malformedHeader(eol);
+            }
+            nextLine();
+
+            var lines = new ArrayList<Line>(Math.min(oldLength + newLength, 1024));
+            int oldRemaining = oldLength;
+            int newRemaining = newLength;
+            while (pos < length) {
+                eol = endOfContent(endOfLine());
+                char prefix = pos < eol ? patch.charAt(pos) : ' ';
+                if (prefix == '\\') {
+                    // "\ No newline at end of file" applies to the line before it
+                    if (!lines.isEmpty()) {
+                        int last = lines.size() - 1;
+                        lines.set(last, lines.get(last).withNoNewlineAtEndOfFile());
+                    }
+                    nextLine();
+                    continue;
+                }
+                if (oldRemaining <= 0 && newRemaining <= 0) {
+                    break;
+                }
+                Line.Type type;
+                switch (prefix) {
+                    case ' ':
+                        type = Line.Type.CONTEXT;
+                        oldRemaining--;
+                        newRemaining--;
+                        break;
+                    case '+':
+                        type = Line.Type.ADD;
+                        newRemaining--;
+                        break;
+                    case '-':
+                        type = Line.Type.REMOVE;
+                        oldRemaining--;
+                        break;
+                    default:
+                        // The hunk is shorter than its header says (e.g. the patch was truncated)
+                        return new Hunk(hunkStartLine, oldStartLine, oldLength, newStartLine, newLength, lines);
+                }
+                // An empty line is an empty context line whose leading space got stripped
+                lines.add(new Line(type, patch, Math.min(pos + 1, eol), eol, false));
+                nextLine();
+            }
+            return new Hunk(hunkStartLine, oldStartLine, oldLength, newStartLine, newLength, lines);
+        }
+
+        private void expect(char ch, int eol) {
+            if (headerPos >= eol || patch.charAt(headerPos) != ch) {
+                throw malformedHeader(eol);
+            }
+            headerPos++;
+        }
+
+        private int number(int eol) {
+            int start = headerPos;
+            int result = 0;
+            while (headerPos < eol) {
+                char ch = patch.charAt(headerPos);
+                if (ch < '0' || ch > '9') {
+                    break;
+                }
+                if (result > (Integer.MAX_VALUE - 9) / 10) {
+                    throw malformedHeader(eol);
+                }
+                result = result * 10 + (ch - '0');
+                headerPos++;
+            }
+            if (headerPos == start) {
+                throw malformedHeader(eol);
+            }
+            return result;
+        }
+
+        private int optionalLength(int eol) {
+            if (headerPos < eol && patch.charAt(headerPos) == ',') {
+                headerPos++;
+                return number(eol);
+            }
+            return 1;
+        }
+
+        private IllegalStateException malformedHeader(int eol) {
+            return new IllegalStateException("Malformed hunk header on line " + lineNum + " of patch: "
+                    + patch.substring(pos, eol));
         }
     }
 }
@@ -47,7 +47,7 @@ public class Hunk {
     @Override
     public String toString() {
         return String.format("@@ -%d,%d +%d,%d @@",
-                oldLength(),
+                oldStartLine(),
                 oldLength(),
                 newStartLine(),
                 newLength());
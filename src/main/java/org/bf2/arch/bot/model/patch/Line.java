@@ -16,8 +16,12 @@
  */
 package org.bf2.arch.bot.model.patch;
 
+import java.nio.CharBuffer;
+
 /**
- * A line in a patch
+ * A line in a patch.
+ * Lines parsed by {@link FilePatch#parsePatch(String)} are views onto the patch, so no copy of their content
+ * is made unless it's asked for as a {@code String}.
  */
 public class Line {
 
@@ -33,11 +37,32 @@ public class Line {
     }
 
     private final Type type;
-    private final String line;
+    private final String source;
+    private final int start;
+    private final int end;
+    private final boolean noNewlineAtEndOfFile;
+    private String line;
 
     public Line(Type type, String line) {
+        this(type, line, 0, line.length(), false);
+    }
+
+    /**
+     * @param source The text the line is in.
+     * @param start The index in the source of the line's first character (after the prefix).
+     * @param end The index in the source after the line's last character (excluding the newline).
+     * @param noNewlineAtEndOfFile Whether the line is the last in the file, and has no newline.
+     */
+    Line(Type type, String source, int start, int end, boolean noNewlineAtEndOfFile) {
         this.type = type;
-        this.line = line;
+        this.source = source;
+        this.start = start;
+        this.end = end;
+        this.noNewlineAtEndOfFile = noNewlineAtEndOfFile;
+    }
+
+    Line withNoNewlineAtEndOfFile() {
+        return new Line(type, source, start, end, true);
     }
 
     public Type type() {
@@ -45,11 +70,35 @@ public class Line {
     }
 
     public String line() {
+        String line = this.line;
+        if (line == null) {
+            line = source.substring(start, end);
+            this.line = line;
+        }
         return line;
     }
 
+    /**
+     * @return The content of the line, without copying it.
+     */
+    public CharSequence chars() {
+        return line != null ? line : CharBuffer.wrap(source, start, end);
+    }
+
+    public int length() {
+        return end - start;
+    }
+
+    /**
+     * @return true if this is the last line of the file and it is not followed by a newline
+     * (the line after it in the patch was {@code \ No newline at end of file}).
+     */
+    public boolean noNewlineAtEndOfFile() {
+        return noNewlineAtEndOfFile;
+    }
+
     @Override
     public String toString() {
-        return type.prefix + line;
+        return type.prefix + line();
     }
 }
@@ -22,14 +22,37 @@ import java.util.Objects;
  * The id for a record, consistenting of a {@linkplain RecordType record type} and an id number.
  */
 public class RecordId {
+
+    /** The ids of the first records of each type, which are the ones which exist. */
+    private static final int CACHED = 1024;
+    private static final RecordId[][] CACHE = new RecordId[RecordType.values().length][CACHED];
+
     private final RecordType recordType;
     private final int num;
+    private String repoPath;
 
     public RecordId(RecordType recordType, int num) {
         this.recordType = recordType;
         this.num = num;
     }
 
+    /**
+     * @return The id of the given record, which is shared with other callers when it can be.
+     */
+    public static RecordId of(RecordType recordType, int num) {
+        if (num < 0 || num >= CACHED) {
+            return new RecordId(recordType, num);
+        }
+        RecordId[] cache = CACHE[recordType.ordinal()];
+        RecordId recordId = cache[num];
+        if (recordId == null) {
+            // Racing threads might both create it, which is harmless
+            recordId = new RecordId(recordType, num);
+            cache[num] = recordId;
+        }
+        return recordId;
+    }
+
     public RecordType recordType() {
         return recordType;
     }
@@ -39,7 +62,12 @@ public class RecordId {
     }
 
     public String repoPath() {
-        return recordType.path(num);
+        String path = repoPath;
+        if (path == null) {
+            path = recordType.path(num);
+            repoPath = path;
+        }
+        return path;
     }
 
     public String publishedUrl(String baseUrl) {
@@ -42,6 +42,13 @@ public class RecordPage {
         return new RecordPage(fm, bodyContent);
     }
 
+    /**
+     * @return A copy of this page, which can be changed independently of it.
+     */
+    public RecordPage copy() {
+        return new RecordPage(frontMatter.copy(), bodyContent);
+    }
+
     public String toContentString() throws IOException {
         return YAML_MAPPER.writeValueAsString(frontMatter) + "---" + bodyContent;
     }
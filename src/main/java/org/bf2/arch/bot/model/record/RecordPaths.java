@@ -0,0 +1,67 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bf2.arch.bot.model.record;
+
+/**
+ * Classifies paths in the repository as the pages of records, or not.
+ *
+ * This is called for every file in a PR or push, so it dispatches on the first segment of the path,
+ * and parses the record number, in a single pass over the path without compiling (or even using) a regex.
+ */
+public final class RecordPaths {
+
+    private static final String INDEX = "index.adoc";
+    private static final RecordType[] RECORD_TYPES = RecordType.values();
+
+    private RecordPaths() {
+    }
+
+    /**
+     * @param repoPath A path in the repository, such as {@code _adr/12/index.adoc}.
+     * @return The record whose page is at the given path, or null if the path is not the page of a record.
+     */
+    public static RecordId recordOf(String repoPath) {
+        int slash = repoPath.indexOf('/');
+        if (slash <= 0) {
+            return null;
+        }
+        RecordType recordType = null;
+        for (RecordType rt : RECORD_TYPES) {
+            if (rt.repoDir.length() == slash && repoPath.startsWith(rt.repoDir)) {
+                recordType = rt;
+                break;
+            }
+        }
+        if (recordType == null) {
+            return null;
+        }
+        // <repoDir>/<digits>/index.adoc
+        int end = repoPath.length() - INDEX.length() - 1;
+        if (end <= slash + 1 || repoPath.charAt(end) != '/' || !repoPath.startsWith(INDEX, end + 1)) {
+            return null;
+        }
+        int num = 0;
+        for (int i = slash + 1; i < end; i++) {
+            int digit = repoPath.charAt(i) - '0';
+            if (digit < 0 || digit > 9 || num > (Integer.MAX_VALUE - digit) / 10) {
+                return null;
+            }
+            num = num * 10 + digit;
+        }
+        return RecordId.of(recordType, num);
+    }
+}
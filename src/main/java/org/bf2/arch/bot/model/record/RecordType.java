@@ -16,9 +16,6 @@
  */
 package org.bf2.arch.bot.model.record;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
 public enum RecordType {
     ADR("_adr", "adr"),
     AP("_ap", "ap"),
@@ -36,13 +33,12 @@ public enum RecordType {
         return String.format("%s/%d/index.adoc", repoDir, recordId);
     }
 
+    /**
+     * @return The record of this type whose page is at the given path, or null.
+     * @see RecordPaths#recordOf(String)
+     */
     public RecordId recordOf(String repoPath) {
-        Pattern p = Pattern.compile(repoDir + "/(?<num>[0-9]+)/index.adoc");
-        Matcher matcher = p.matcher(repoPath);
-        if (matcher.matches()) {
-            return new RecordId(this, Integer.parseInt(matcher.group("num")));
-        } else {
-            return null;
-        }
+        RecordId recordId = RecordPaths.recordOf(repoPath);
+        return recordId != null && recordId.recordType() == this ? recordId : null;
     }
 }
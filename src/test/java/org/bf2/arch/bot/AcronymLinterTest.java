@@ -0,0 +1,86 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bf2.arch.bot;
+
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.bf2.arch.bot.model.patch.FilePatch;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AcronymLinterTest {
+
+    @Test
+    public void testDefinedAcronyms() {
+        Set<String> defined = AcronymLinter.definedAcronyms(
+                "WOOT. This is some text with a Three Letter Abbreviation (TLA).\n" +
+                "And some more stuff. It's OK to mention TLA again here.\n" +
+                "But later on I might use 3LA (3 letter abbreviation), which is also fine.\n" +
+                "So long as I don't use FLA and not define it. WDYT?",
+                null,
+                "Use an Availability Zone (AZ)");
+        assertEquals(Set.of("OK", "TLA", "3LA", "AZ"), defined);
+    }
+
+    @Test
+    public void testUndefinedAcronyms() {
+        FilePatch patch = FilePatch.parsePatch(
+                "@@ -1,3 +1,5 @@\n" +
+                " Some text with a Three Letter Abbreviation (TLA).\n" +
+                "-Removed lines don't count, even with XYZ.\n" +
+                "+Added TLA and FLA, which is OK.\n" +
+                " Context lines don't count, even with XYZ.\n" +
+                "+But FLA again, and WDYT?\n" +
+                "+Numbers like 42 or 2022 aren't acronyms, nor are snake_CASE or A.\n");
+        Set<String> defined = AcronymLinter.definedAcronyms("Three Letter Abbreviation (TLA)");
+        List<AcronymLinter.Finding> findings = AcronymLinter.undefinedAcronyms(patch, defined);
+        assertEquals(List.of("FLA@3", "WDYT@5"),
+                findings.stream().map(AcronymLinter.Finding::toString).collect(Collectors.toList()));
+    }
+
+    @Test
+    public void testDefinedElsewhereInRecord() {
+        FilePatch patch = FilePatch.parsePatch(
+                "@@ -10,1 +10,2 @@ tags: []\n" +
+                " Intro.\n" +
+                "+We rely on the SLO.\n");
+        assertTrue(AcronymLinter.undefinedAcronyms(patch,
+                AcronymLinter.definedAcronyms("The Service Level Objective (SLO) is ...")).isEmpty());
+        assertFalse(AcronymLinter.undefinedAcronyms(patch,
+                AcronymLinter.definedAcronyms("The Service Level (SLO) is ...")).isEmpty());
+    }
+
+    @Test
+    public void testPositionsInLaterHunks() {
+        // Positions carry on counting through the later hunks, including their headers
+        FilePatch patch = FilePatch.parsePatch(
+                "@@ -1,2 +1,2 @@\n" +
+                " Intro.\n" +
+                "-Old.\n" +
+                "+New.\n" +
+                "@@ -40,1 +40,2 @@ tags: []\n" +
+                " More.\n" +
+                "+We rely on the SLO.\n");
+        assertEquals(List.of("SLO@6"), AcronymLinter.undefinedAcronyms(patch, Set.of()).stream()
+                .map(AcronymLinter.Finding::toString).collect(Collectors.toList()));
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bf2.arch.bot;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ApiCostLedgerTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    @BeforeEach
+    public void addRegistry() {
+        Metrics.addRegistry(registry);
+    }
+
+    @AfterEach
+    public void removeRegistry() {
+        Metrics.removeRegistry(registry);
+    }
+
+    ApiCostLedger ledger() {
+        var ledger = new ApiCostLedger();
+        ledger.callBudget = 3;
+        ledger.scheduledCallBudget = 10;
+        return ledger;
+    }
+
+    private long calls(String kind) {
+        var summary = registry.find(ApiCostLedger.CALLS).tag("kind", kind).summary();
+        return summary == null ? 0 : (long) summary.totalAmount();
+    }
+
+    private long overBudget(String kind) {
+        var counter = registry.find(ApiCostLedger.OVER_BUDGET).tag("kind", kind).counter();
+        return counter == null ? 0 : (long) counter.count();
+    }
+
+    @Test
+    public void testRecord() {
+        var event = ledger().webhook("issue_comment.created");
+        event.handledBy("onIssueComment", "foo/bar#1");
+        event.record("GET", "/repos/{owner}/{repo}/pulls/{number}", false, 1_000_000);
+        event.record("GET", "/repos/{owner}/{repo}/pulls/{number}", false, 1_000_000);
+        event.recordCacheHit();
+        event.record("POST", "/repos/{owner}/{repo}/pulls", true, 2_000_000);
+        // A GraphQL query is POSTed, but doesn't write
+        event.record("POST", "/graphql", false, 1_000_000);
+        assertEquals(4, event.calls());
+        assertEquals(1, event.writes());
+        String summary = event.toString();
+        assertTrue(summary.startsWith("event=delivery:1 kind=webhook trigger=issue_comment.created "
+                + "handlers=onIssueComment subject=foo/bar#1 calls=4 writes=1 cache_hits=1 github_ms=5 "), summary);
+        assertTrue(summary.endsWith(" endpoints=\"GET /repos/{owner}/{repo}/pulls/{number}=2, "
+                + "POST /graphql=1, POST /repos/{owner}/{repo}/pulls=1\""), summary);
+    }
+
+    @Test
+    public void testLoggedOnce() {
+        var event = ledger().webhook(null);
+        event.handledBy("classifyAndMaybeReviewers", "foo/bar#1");
+        event.handledBy("files", "foo/bar#1");
+        event.record("GET", "/repos/{owner}/{repo}/pulls/{number}", false, 0);
+        assertTrue(event.toString().contains(" handlers=classifyAndMaybeReviewers,files subject=foo/bar#1 "),
+                event.toString());
+        event.finish();
+        assertEquals(1, calls(ApiCostLedger.WEBHOOK));
+        event.finish();
+        assertEquals(1, calls(ApiCostLedger.WEBHOOK));
+        assertEquals(0, overBudget(ApiCostLedger.WEBHOOK));
+    }
+
+    @Test
+    public void testOverBudget() {
+        var ledger = ledger();
+        var event = ledger.webhook(null);
+        for (int i = 0; i < 4; i++) {
+            event.record("GET", "/repos/{owner}/{repo}/contents/{path}", false, 0);
+        }
+        event.finish();
+        assertEquals(1, overBudget(ApiCostLedger.WEBHOOK));
+
+        // Scheduled runs have a budget of their own
+        var run = ledger.scheduled("checkForStalledDiscussions");
+        for (int i = 0; i < 4; i++) {
+            run.record("GET", "/repos/{owner}/{repo}/pulls/{number}", false, 0);
+        }
+        run.finish();
+        assertEquals(0, overBudget(ApiCostLedger.SCHEDULED));
+        assertEquals(4, calls(ApiCostLedger.SCHEDULED));
+    }
+
+    @Test
+    public void testCurrentEvent() throws Exception {
+        var event = ledger().scheduled("checkForStalledDiscussions");
+        assertNull(ApiCostLedger.current());
+        Callable<ApiCostLedger.Event> task;
+        try (var scope = event.enter()) {
+            assertSame(event, ApiCostLedger.current());
+            task = ApiCostLedger.inCurrentEvent(ApiCostLedger::current);
+        }
+        assertNull(ApiCostLedger.current());
+        // The event follows the task to another thread
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            assertSame(event, executor.submit(task).get());
+            assertNull(executor.submit(ApiCostLedger::current).get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package org.bf2.arch.bot;
 
+import java.io.IOException;
 import java.util.EnumSet;
 import java.util.List;
 
@@ -7,8 +8,8 @@ import org.bf2.arch.bot.model.record.RecordType;
 import org.junit.jupiter.api.Test;
 import org.kohsuke.github.GHPullRequest;
 import org.kohsuke.github.GHPullRequestFileDetail;
+import org.kohsuke.github.GHRepository;
 import org.kohsuke.github.PagedIterable;
-import org.kohsuke.github.PagedIterator;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.Mockito.mock;
@@ -33,9 +34,12 @@ import static org.mockito.Mockito.when;
 class ArchReviewStateMachineFlowTest {
 
     @Test
-    public void testTouchesRecord() {
+    public void testTouchesRecord() throws IOException {
         GHPullRequest pullRequest = mock(GHPullRequest.class);
         when(pullRequest.getNumber()).thenReturn(42);
+        GHRepository repository = mock(GHRepository.class);
+        when(repository.getFullName()).thenReturn("foo/bar");
+        when(pullRequest.getRepository()).thenReturn(repository);
 
         var file1 = mock(GHPullRequestFileDetail.class);
         when(file1.getFilename()).thenReturn("_adr/12/index.adoc");
@@ -45,16 +49,12 @@ class ArchReviewStateMachineFlowTest {
         when(file3.getFilename()).thenReturn("some/other/file.adoc");
 
         PagedIterable<GHPullRequestFileDetail> pagedIterable = mock(PagedIterable.class);
-        when(pagedIterable.iterator()).thenAnswer(invocation -> {
-            PagedIterator<GHPullRequestFileDetail> iterator = mock(PagedIterator.class);
-            var it = List.of(file1, file2, file3).iterator();
-            when(iterator.hasNext()).thenAnswer(i -> it.hasNext());
-            when(iterator.next()).thenAnswer(i -> it.next());
-            return iterator;
-        });
+        when(pagedIterable.toList()).thenReturn(List.of(file1, file2, file3));
         when(pullRequest.listFiles()).thenReturn(pagedIterable);
 
-        EnumSet<RecordType> recordTypes = new ArchReviewStateMachineFlow().touchesRecord(pullRequest);
+        var flow = new ArchReviewStateMachineFlow();
+        flow.prContext = new PullRequestContext();
+        EnumSet<RecordType> recordTypes = flow.touchesRecord(pullRequest);
 
         assertEquals(EnumSet.of(RecordType.ADR), recordTypes);
     }
@@ -0,0 +1,67 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bf2.arch.bot;
+
+import org.bf2.arch.bot.model.patch.FilePatch;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BotReviewTest {
+
+    @Test
+    public void testFingerprint() {
+        BotReview review = new BotReview();
+        assertTrue(review.isEmpty());
+        review.comment("Suspect state transition", "_adr/1/index.adoc", 4);
+        review.comment("Please avoid \"actors\".", "_adr/2/index.adoc", 9);
+        assertFalse(review.isEmpty());
+
+        // The order of the comments doesn't matter, but their content does
+        BotReview reordered = new BotReview();
+        reordered.comment("Please avoid \"actors\".", "_adr/2/index.adoc", 9);
+        reordered.comment("Suspect state transition", "_adr/1/index.adoc", 4);
+        assertEquals(review.fingerprint(), reordered.fingerprint());
+        reordered.comment("Suspect state transition", "_adr/2/index.adoc", 4);
+        assertFalse(review.fingerprint().equals(reordered.fingerprint()));
+
+        assertEquals(review.fingerprint(), BotReview.fingerprintOf(review.body()));
+        assertTrue(review.body().startsWith("I found 2 things"));
+    }
+
+    @Test
+    public void testOnlyCommentsInPatch() {
+        FilePatch patch = FilePatch.parsePatch("@@ -5,1 +5,2 @@\n Hello, world\n+We rely on the SLO.");
+        BotReview review = new BotReview();
+        assertTrue(review.comment("Please avoid \"SLO\".", "_adr/1/index.adoc", patch, 2));
+        // The hunk header, and after the end of the patch
+        assertFalse(review.comment("Suspect state transition", "_adr/1/index.adoc", patch, 0));
+        assertFalse(review.comment("Suspect state transition", "_adr/1/index.adoc", patch, 3));
+        assertFalse(review.comment("Suspect state transition", "_adr/1/index.adoc", patch, -1));
+        assertEquals(1, review.comments().size());
+    }
+
+    @Test
+    public void testNoFingerprint() {
+        assertNull(BotReview.fingerprintOf(null));
+        assertNull(BotReview.fingerprintOf("LGTM"));
+        assertNull(BotReview.fingerprintOf("<!-- arch-bot-review: abc"));
+    }
+}
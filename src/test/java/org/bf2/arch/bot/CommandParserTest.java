@@ -0,0 +1,79 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bf2.arch.bot;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.bf2.arch.bot.model.record.RecordType;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class CommandParserTest {
+
+    private static List<String> parse(String body) {
+        return CommandParser.parse(body).stream().map(Command::toString).collect(Collectors.toList());
+    }
+
+    @Test
+    public void testCommands() {
+        assertEquals(List.of("/create ADR"), parse("/create adr"));
+        assertEquals(List.of("/create PADR"), parse("  /CREATE  padr  \n"));
+        assertEquals(List.of("/supersede AP 12"), parse("/supersede ap 12"));
+        assertEquals(List.of("/accept", "/defer", "/reject"), parse("/accept\n/defer, or maybe /reject."));
+
+        var commands = CommandParser.parse("Thanks for the work.\n\nLGTM\n/accept\n");
+        assertEquals(1, commands.size());
+        assertEquals(4, commands.get(0).line);
+        var supersede = (Command.Supersede) CommandParser.parse("Please\n/supersede padr 7 thanks").get(0);
+        assertEquals(RecordType.PADR, supersede.recordType);
+        assertEquals(7, supersede.num);
+    }
+
+    @Test
+    public void testNotCommands() {
+        assertEquals(List.of(), parse(""));
+        assertEquals(List.of(), parse("I accept this"));
+        assertEquals(List.of(), parse("/acceptance criteria"));
+        assertEquals(List.of(), parse("/accept2"));
+        assertEquals(List.of(), parse("see /accept.md"));
+        assertEquals(List.of(), parse("see https://example.com/accept and docs/reject"));
+        assertEquals(List.of(), parse("/unknown"));
+        assertEquals(List.of(), parse("/ accept"));
+        // Missing, or invalid, arguments
+        assertEquals(List.of(), parse("/create"));
+        assertEquals(List.of(), parse("/create\nadr"));
+        assertEquals(List.of(), parse("/create foo"));
+        assertEquals(List.of(), parse("/supersede adr"));
+        assertEquals(List.of(), parse("/supersede adr x12"));
+        assertEquals(List.of(), parse("/supersede adr 99999999999"));
+    }
+
+    @Test
+    public void testQuotedAndFencedIgnored() {
+        assertEquals(List.of(), parse("> /accept"));
+        assertEquals(List.of("/reject"), parse("  > Alice said /accept\nBut I /reject"));
+        assertEquals(List.of("/defer"), parse("Try:\n```\n/accept\n\n/reject\n```\n/defer"));
+        assertEquals(List.of("/accept"), parse("~~~text\n/create adr\n~~~\n/accept"));
+        // An unclosed fence runs to the end of the comment
+        assertEquals(List.of(), parse("```\n/accept"));
+        // Lines are still counted
+        var commands = CommandParser.parse("> quote\n```\n/reject\n```\n/accept");
+        assertEquals(5, commands.get(0).line);
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bf2.arch.bot;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import org.kohsuke.github.GHContent;
+import org.kohsuke.github.GHRepository;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class ConfigCacheTest {
+
+    static final String CONFIG = "botUserLogin: bf2-arch-test\n"
+            + "recordCreationApprovers:\n"
+            + "- tombentley\n"
+            + "suspectTerms:\n"
+            + "- term: Personas\n"
+            + "  reason: Say who, instead\n";
+
+    private static GHRepository repository() throws IOException {
+        GHContent content = mock(GHContent.class);
+        when(content.read()).thenAnswer(invocation -> new ByteArrayInputStream(CONFIG.getBytes(StandardCharsets.UTF_8)));
+        GHRepository repo = mock(GHRepository.class);
+        when(repo.getFullName()).thenReturn("foo/bar");
+        when(repo.getFileContent(ConfigCache.PATH)).thenReturn(content);
+        return repo;
+    }
+
+    @Test
+    public void testPackagePrivateFields() throws IOException {
+        var cache = new ConfigCache();
+        cache.maxAgeSeconds = 60;
+        ArchBotConfig config = cache.config(repository());
+        assertEquals("bf2-arch-test", config.botUserLogin);
+        assertEquals(Set.of("tombentley"), config.recordCreationApprovers);
+        assertEquals(1, config.suspectTerms.size());
+        assertEquals("Personas", config.suspectTerms.get(0).term);
+        assertEquals("Say who, instead", config.suspectTerms.get(0).reason);
+    }
+
+    @Test
+    public void testMaxAge() throws IOException {
+        var cache = new ConfigCache();
+        cache.maxAgeSeconds = 60;
+        GHRepository repo = repository();
+        ArchBotConfig config = cache.config(repo);
+        assertSame(config, cache.config(repo));
+        verify(repo, times(1)).getFileContent(ConfigCache.PATH);
+
+        cache.maxAgeSeconds = 0;
+        cache.config(repo);
+        verify(repo, times(2)).getFileContent(ConfigCache.PATH);
+    }
+}
@@ -3,22 +3,29 @@ package org.bf2.arch.bot;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import org.bf2.arch.bot.model.record.RecordPage;
 import org.bf2.arch.bot.model.record.RecordId;
 import org.bf2.arch.bot.model.record.RecordType;
 import org.junit.jupiter.api.Test;
-import org.kohsuke.github.GHBranch;
-import org.kohsuke.github.GHCommit;
-import org.kohsuke.github.GHContent;
+import org.junit.jupiter.api.io.TempDir;
 import org.kohsuke.github.GHRepository;
 import org.kohsuke.github.GHTree;
 import org.kohsuke.github.GHTreeEntry;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 /*
@@ -39,6 +46,9 @@ import static org.mockito.Mockito.when;
  */
 class CreateDraftRecordFlowTest {
 
+    @TempDir
+    Path directory;
+
     public static final String EXAMPLE_TEMPLATE = "---\n" +
             "num: 0 # allocate an id when the draft is created\n" +
             "title: ADR template\n" +
@@ -101,35 +111,85 @@ class CreateDraftRecordFlowTest {
         String commitSha = "123a";
 
         var repo = mock(GHRepository.class);
-        var commit = mock(GHCommit.class);
         var tree = mock(GHTree.class);
-        var entry = mock(GHTreeEntry.class);
-        var tree2 = mock(GHTree.class);
         var adr3 = mock(GHTreeEntry.class);
         var adr12 = mock(GHTreeEntry.class);
 
-        when(repo.getCommit(commitSha)).thenReturn(commit);
-        when(commit.getTree()).thenReturn(tree);
-        when(tree.getEntry(RecordType.ADR.repoDir)).thenReturn(entry);
-        when(entry.asTree()).thenReturn(tree2);
-        when(tree2.getTree()).thenReturn(List.of(adr3, adr12));
+        when(repo.getFullName()).thenReturn("foo/bar");
+        when(repo.getTree(commitSha + ":" + RecordType.ADR.repoDir)).thenReturn(tree);
+        when(tree.getTree()).thenReturn(List.of(adr3, adr12));
         when(adr3.getPath()).thenReturn("3");
         when(adr12.getPath()).thenReturn("12");
 
-        assertEquals(13, new CreateDraftRecordFlow().allocateId(repo, commitSha, RecordType.ADR));
+        var allocator = new RecordIdAllocator();
+        assertEquals(13, allocator.allocate(repo, commitSha, RecordType.ADR));
+        // 13 is reserved, so a concurrent allocation gets the next one
+        assertEquals(14, allocator.allocate(repo, commitSha, RecordType.ADR));
+        // Other record types are independent
+        when(repo.getTree(commitSha + ":" + RecordType.AP.repoDir)).thenReturn(tree);
+        assertEquals(13, allocator.allocate(repo, commitSha, RecordType.AP));
+        // Released ids can be handed out again
+        allocator.release(repo, RecordType.ADR, 14);
+        assertEquals(14, allocator.allocate(repo, commitSha, RecordType.ADR));
+        // The tree was only fetched once for each commit
+        verify(repo, times(1)).getTree(commitSha + ":" + RecordType.ADR.repoDir);
+
+        // Once the default branch has moved on past the reserved ids, they're no longer needed
+        var adr20 = mock(GHTreeEntry.class);
+        when(adr20.getPath()).thenReturn("20");
+        var tree2 = mock(GHTree.class);
+        when(tree2.getTree()).thenReturn(List.of(adr3, adr20));
+        when(repo.getTree("456b:" + RecordType.ADR.repoDir)).thenReturn(tree2);
+        assertEquals(21, allocator.allocate(repo, "456b", RecordType.ADR));
     }
 
     @Test
-    public void testGetPage() throws IOException {
+    public void testAllocateWhileFetchingTree() throws Exception {
+        var fetching = new CountDownLatch(1);
+        var fetched = new CountDownLatch(1);
+        var slowTree = mock(GHTree.class);
+        when(slowTree.getTree()).thenReturn(List.of());
+        var slow = mock(GHRepository.class);
+        when(slow.getFullName()).thenReturn("foo/slow");
+        when(slow.getTree("123a:" + RecordType.ADR.repoDir)).thenAnswer(invocation -> {
+            fetching.countDown();
+            fetched.await(10, TimeUnit.SECONDS);
+            return slowTree;
+        });
+        var adr7 = mock(GHTreeEntry.class);
+        when(adr7.getPath()).thenReturn("7");
+        var tree = mock(GHTree.class);
+        when(tree.getTree()).thenReturn(List.of(adr7));
         var repo = mock(GHRepository.class);
-        var branch = mock(GHBranch.class);
-        var content = mock(GHContent.class);
+        when(repo.getFullName()).thenReturn("foo/bar");
+        when(repo.getTree("123a:" + RecordType.ADR.repoDir)).thenReturn(tree);
+
+        var allocator = new RecordIdAllocator();
+        var executor = Executors.newSingleThreadExecutor();
+        try {
+            var slowId = executor.submit(() -> allocator.allocate(slow, "123a", RecordType.ADR));
+            assertTrue(fetching.await(10, TimeUnit.SECONDS));
+            // Neither fetching nor allocating in another repository waits for the slow fetch
+            assertEquals(8, assertTimeoutPreemptively(Duration.ofSeconds(5),
+                    () -> allocator.allocate(repo, "123a", RecordType.ADR)));
+            fetched.countDown();
+            assertEquals(2, slowId.get(10, TimeUnit.SECONDS));
+        } finally {
+            fetched.countDown();
+            executor.shutdownNow();
+        }
+    }
 
-        when(repo.getFileContent("_adr/0/index.adoc", "123a")).thenReturn(content);
-        when(content.read()).thenAnswer(i -> new ByteArrayInputStream(EXAMPLE_TEMPLATE.getBytes(StandardCharsets.UTF_8)));
-        when(branch.getSHA1()).thenReturn("123a");
+    @Test
+    public void testGetPage() throws IOException {
+        var repo = mock(GHRepository.class);
+        when(repo.readBlob(RecordPageCacheTest.TEMPLATE_SHA))
+                .thenAnswer(i -> new ByteArrayInputStream(EXAMPLE_TEMPLATE.getBytes(StandardCharsets.UTF_8)));
+        var cache = new RecordPageCache();
+        cache.directory = Optional.of(directory.toString());
+        cache.maxPages = 10;
 
-        var page = CreateDraftRecordFlow.getPage(repo, branch, "_adr/0/index.adoc");
+        var page = cache.page(repo, RecordPageCacheTest.TEMPLATE_SHA);
 
         assertEquals(0, page.frontMatter.num);
         assertTrue(page.bodyContent.contains("Hello, world"));
@@ -0,0 +1,73 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bf2.arch.bot;
+
+import java.time.Instant;
+import java.util.Optional;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DiscussionWatermarkTest {
+
+    @Test
+    public void testRecord() {
+        var watermark = new DiscussionWatermark(Instant.parse("2022-03-01T00:00:00Z"));
+        assertEquals(Instant.parse("2022-03-01T00:00:00Z"), watermark.since());
+        assertEquals(Optional.empty(), watermark.lastReviewComment(1));
+
+        watermark.record(1, Instant.parse("2022-05-01T10:00:00Z"), Instant.parse("2022-05-01T10:00:00Z"));
+        // An edit to an older comment advances the watermark, but not the last comment time
+        watermark.record(1, Instant.parse("2022-04-01T10:00:00Z"), Instant.parse("2022-05-02T10:00:00Z"));
+        watermark.record(2, Instant.parse("2022-04-20T10:00:00Z"), Instant.parse("2022-04-20T10:00:00Z"));
+
+        assertEquals(Instant.parse("2022-05-02T10:00:00Z"), watermark.since());
+        assertEquals(Optional.of(Instant.parse("2022-05-01T10:00:00Z")), watermark.lastReviewComment(1));
+        assertEquals(Optional.of(Instant.parse("2022-04-20T10:00:00Z")), watermark.lastReviewComment(2));
+    }
+
+    @Test
+    public void testKnowsAndRetain() {
+        var watermark = new DiscussionWatermark(Instant.parse("2022-04-01T00:00:00Z"));
+        watermark.record(1, Instant.parse("2022-04-02T10:00:00Z"), Instant.parse("2022-04-02T10:00:00Z"));
+        assertTrue(watermark.knows(1));
+        // Comments from before the start need listing
+        assertFalse(watermark.knows(2));
+        watermark.recordAll(2, Optional.of(Instant.parse("2022-03-01T10:00:00Z")));
+        watermark.recordAll(3, Optional.empty());
+        assertTrue(watermark.knows(2));
+        assertTrue(watermark.knows(3));
+        assertEquals(Optional.of(Instant.parse("2022-03-01T10:00:00Z")), watermark.lastReviewComment(2));
+        assertEquals(Optional.empty(), watermark.lastReviewComment(3));
+        // Listing doesn't move the watermark
+        assertEquals(Instant.parse("2022-04-02T10:00:00Z"), watermark.since());
+
+        // #3 gets its first comment
+        watermark.record(3, Instant.parse("2022-04-03T10:00:00Z"), Instant.parse("2022-04-03T10:00:00Z"));
+        assertEquals(Optional.of(Instant.parse("2022-04-03T10:00:00Z")), watermark.lastReviewComment(3));
+
+        // #1 is no longer a candidate
+        watermark.retain(Set.of(2, 3));
+        assertFalse(watermark.knows(1));
+        assertTrue(watermark.knows(2));
+        assertTrue(watermark.knows(3));
+    }
+}
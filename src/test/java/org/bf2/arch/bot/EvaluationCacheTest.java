@@ -0,0 +1,80 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bf2.arch.bot;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class EvaluationCacheTest {
+
+    @Test
+    public void testKeys() {
+        var cache = new EvaluationCache();
+        cache.maxResults = 2;
+        String key = EvaluationCache.key(EvaluationCache.REVIEW, "foo/bar", 42, "head1", "base1", "config1");
+        assertNull(cache.get(key));
+        cache.put(key, "fingerprint");
+        assertEquals("fingerprint", cache.get(key));
+        assertEquals("fingerprint",
+                cache.get(EvaluationCache.key(EvaluationCache.REVIEW, "foo/bar", 42, "head1", "base1", "config1")));
+
+        // A change to anything the result depends on misses
+        assertNull(cache.get(EvaluationCache.key(EvaluationCache.REVIEW, "foo/bar", 42, "head2", "base1", "config1")));
+        assertNull(cache.get(EvaluationCache.key(EvaluationCache.REVIEW, "foo/bar", 42, "head1", "base2", "config1")));
+        assertNull(cache.get(EvaluationCache.key(EvaluationCache.REVIEW, "foo/bar", 42, "head1", "base1", "config2")));
+        assertNull(cache.get(EvaluationCache.key(EvaluationCache.REVIEW, "foo/bar", 43, "head1", "base1", "config1")));
+        assertNull(cache.get(EvaluationCache.key(EvaluationCache.CLASSIFICATION, "foo/bar", 42, "head1", "base1", null)));
+
+        EvaluationCache.Statistics stats = cache.statistics(EvaluationCache.REVIEW);
+        assertEquals(2, stats.hits());
+        assertEquals(5, stats.misses());
+        assertEquals(2.0 / 7, stats.hitRate(), 1e-9);
+        assertEquals(1, cache.statistics(EvaluationCache.CLASSIFICATION).misses());
+    }
+
+    @Test
+    public void testBounded() {
+        var cache = new EvaluationCache();
+        cache.maxResults = 2;
+        for (int pr = 1; pr <= 3; pr++) {
+            cache.put(EvaluationCache.key(EvaluationCache.REVIEW, "foo/bar", pr, "head", "base", null), "");
+        }
+        assertNull(cache.get(EvaluationCache.key(EvaluationCache.REVIEW, "foo/bar", 1, "head", "base", null)));
+        assertEquals("", cache.get(EvaluationCache.key(EvaluationCache.REVIEW, "foo/bar", 3, "head", "base", null)));
+    }
+
+    @Test
+    public void testLastKey() {
+        var cache = new EvaluationCache();
+        cache.maxResults = 2;
+        assertNull(cache.lastKey(EvaluationCache.REVIEW, "foo/bar", 42, "config1"));
+        cache.observe("foo/bar", 42, "head1", "base1");
+        assertEquals(EvaluationCache.key(EvaluationCache.REVIEW, "foo/bar", 42, "head1", "base1", "config1"),
+                cache.lastKey(EvaluationCache.REVIEW, "foo/bar", 42, "config1"));
+        // A push gives a new head
+        cache.observe("foo/bar", 42, "head2", "base1");
+        assertEquals(EvaluationCache.key(EvaluationCache.REVIEW, "foo/bar", 42, "head2", "base1", "config1"),
+                cache.lastKey(EvaluationCache.REVIEW, "foo/bar", 42, "config1"));
+
+        // Only the most recently observed PRs are remembered
+        cache.observe("foo/bar", 43, "head", "base");
+        cache.observe("foo/bar", 44, "head", "base");
+        assertNull(cache.lastKey(EvaluationCache.REVIEW, "foo/bar", 42, "config1"));
+    }
+}
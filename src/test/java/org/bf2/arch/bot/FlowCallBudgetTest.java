@@ -0,0 +1,481 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bf2.arch.bot;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.net.InetSocketAddress;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.StringJoiner;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.quarkiverse.githubapp.runtime.config.GitHubAppRuntimeConfig;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.kohsuke.github.GHEventPayload;
+import org.kohsuke.github.GitHub;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks how many GitHub requests the flows make to handle a webhook delivery, so that changes which make them
+ * chattier fail the build. The flows use the same clients as the app, against a stub of the GitHub API
+ * which counts the requests.
+ */
+class FlowCallBudgetTest {
+
+    /** The page size GitHub uses when listing the files of a PR */
+    static final int FILES_PER_PAGE = 30;
+
+    static final String REPO = "/repos/tombentley/app-services-architecture";
+    static final String MAIN_SHA = "b63257ec0b03a9e840022d4751e629243cd1396d";
+
+    static final String TEMPLATE = "---\n" +
+            "num: 0\n" +
+            "title: ADR template\n" +
+            "status: \"Draft\"\n" +
+            "authors:\n" +
+            "  - \"\"\n" +
+            "tags:\n" +
+            "  - \"\"\n" +
+            "---\n" +
+            "Hello, world\n";
+    static final String TEMPLATE_SHA = RecordPageCache.gitBlobSha(TEMPLATE.getBytes(StandardCharsets.UTF_8));
+    static final String BASE_PAGE = page(12, "Draft");
+    static final String BASE_SHA = RecordPageCache.gitBlobSha(BASE_PAGE.getBytes(StandardCharsets.UTF_8));
+    static final String HEAD_PAGE = BASE_PAGE + "We rely on the SLO.\n";
+    static final String HEAD_SHA = RecordPageCache.gitBlobSha(HEAD_PAGE.getBytes(StandardCharsets.UTF_8));
+
+    /** Opening a PR, beyond the pages of its files */
+    static final int BUDGET_OPENED = 8;
+    static final int BUDGET_EDITED = 1;
+    static final int BUDGET_CREATE = 13;
+    static final int BUDGET_CREATE_AGAIN = 9;
+
+    private static final ObjectMapper YAML = new ObjectMapper(new YAMLFactory())
+            .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+
+    static final Map<String, String> BLOBS = Map.of(
+            TEMPLATE_SHA, TEMPLATE,
+            BASE_SHA, BASE_PAGE,
+            HEAD_SHA, HEAD_PAGE);
+
+    /** The requests made, as the method and {@linkplain GitHubRequestMetrics#endpoint endpoint} */
+    private final List<String> requests = Collections.synchronizedList(new ArrayList<>());
+    /** The requests the stub had no response for */
+    private final List<String> unexpected = Collections.synchronizedList(new ArrayList<>());
+    private int files;
+    /** The number of branches the stub says already exist, before it creates one */
+    private int existingBranches;
+
+    private HttpServer server;
+    private String endpoint;
+    private GitHubClients clients;
+    private final PrLocks locks = new PrLocks();
+
+    private ArchReviewStateMachineFlow archReview;
+    private PrReviewFlow prReview;
+    private CreateDraftRecordFlow createDraft;
+
+    @TempDir
+    Path directory;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", this::respond);
+        server.start();
+        endpoint = "http://localhost:" + server.getAddress().getPort();
+
+        var clients = new GitHubClients() {
+            @Override
+            String installationToken(long installationId) {
+                return "test-token";
+            }
+        };
+        clients.appConfig = new GitHubAppRuntimeConfig();
+        clients.appConfig.instanceEndpoint = endpoint;
+        clients.cacheDirectory = Optional.of(directory.resolve("http").toString());
+        clients.cacheMaxSize = 0;
+        clients.writeIntervalMillis = 0;
+        clients.backgroundReserve = 0.2;
+        clients.maxWaitSeconds = 1;
+        clients.configureRateLimiter();
+        this.clients = clients;
+
+        // The application scoped beans
+        locks.stripes = 1;
+        var evaluations = new EvaluationCache();
+        evaluations.maxResults = 100;
+        var pageCache = new RecordPageCache();
+        pageCache.directory = Optional.of(directory.resolve("blobs").toString());
+        pageCache.maxPages = 100;
+        var recordIndex = new RecordIndex();
+        recordIndex.pageCache = pageCache;
+        recordIndex.maxAgeSeconds = 300;
+        var idempotencyStore = new IdempotencyStore();
+        idempotencyStore.directory = Optional.of(directory.resolve("idempotency").toString());
+        idempotencyStore.maxKeys = 100;
+        var commentCommands = new CommentCommands();
+        var configCache = new ConfigCache();
+        configCache.maxAgeSeconds = 60;
+
+        archReview = new ArchReviewStateMachineFlow();
+        archReview.enabled = true;
+        archReview.evaluations = evaluations;
+        archReview.commentCommands = commentCommands;
+
+        prReview = new PrReviewFlow();
+        prReview.enabled = true;
+        prReview.evaluations = evaluations;
+        prReview.recordIndex = recordIndex;
+        prReview.pageCache = pageCache;
+        prReview.configCache = configCache;
+
+        createDraft = new CreateDraftRecordFlow();
+        createDraft.enabled = true;
+        createDraft.recordIndex = recordIndex;
+        createDraft.pageCache = pageCache;
+        createDraft.idAllocator = new RecordIdAllocator();
+        createDraft.commentCommands = commentCommands;
+        createDraft.idempotencyStore = idempotencyStore;
+        createDraft.configCache = configCache;
+    }
+
+    @AfterEach
+    public void stopStub() {
+        server.stop(0);
+    }
+
+    private void respond(HttpExchange exchange) throws IOException {
+        exchange.getRequestBody().readAllBytes();
+        String path = exchange.getRequestURI().getPath();
+        String request = exchange.getRequestMethod() + " " + GitHubRequestMetrics.endpoint(path);
+        requests.add(request);
+        String body;
+        switch (request) {
+            case "GET /repos/{owner}/{repo}":
+                body = part("/2-bot-open-pr.json", "repository");
+                break;
+            case "GET /repos/{owner}/{repo}/pulls/{number}":
+                body = part("/2-bot-open-pr.json", "pull_request");
+                break;
+            case "GET /repos/{owner}/{repo}/issues/{number}":
+                body = part("/1-user-comment-issue.json", "issue");
+                break;
+            case "GET /repos/{owner}/{repo}/pulls/{number}/files":
+                body = filesPage(exchange);
+                break;
+            case "GET /repos/{owner}/{repo}/branches/{name}":
+                body = "{\"name\": \"main\", \"commit\": {\"sha\": \"" + MAIN_SHA + "\"}}";
+                break;
+            case "GET /repos/{owner}/{repo}/git/trees/{path}":
+                body = path.endsWith(":_adr")
+                        ? tree(treeEntry("0", "tree", "t0"), treeEntry("12", "tree", "t12"))
+                        : tree(treeEntry("README.md", "blob", "b0"),
+                        treeEntry("_adr", "tree", "t1"),
+                        treeEntry("_adr/0/index.adoc", "blob", TEMPLATE_SHA),
+                        treeEntry("_adr/12/index.adoc", "blob", BASE_SHA));
+                break;
+            case "GET /repos/{owner}/{repo}/contents/{path}":
+                body = path.endsWith("/" + ConfigCache.PATH) ? configFile() : null;
+                break;
+            case "GET /repos/{owner}/{repo}/git/blobs/{path}":
+                body = BLOBS.get(path.substring(path.lastIndexOf('/') + 1));
+                break;
+            case "GET /repos/{owner}/{repo}/pulls/{number}/reviews":
+            case "POST /repos/{owner}/{repo}/issues/{number}/labels":
+                body = "[]";
+                break;
+            case "POST /repos/{owner}/{repo}/pulls/{number}/reviews":
+            case "POST /repos/{owner}/{repo}/issues/{number}/comments":
+                body = "{\"id\": 1}";
+                break;
+            case "POST /repos/{owner}/{repo}/git/blobs":
+                body = "{\"sha\": \"5b6c1d7e8f90a1b2c3d4e5f60718293a4b5c6d7e\"}";
+                break;
+            case "POST /repos/{owner}/{repo}/git/trees":
+                body = "{\"sha\": \"2f3e0c0a1e1de76e3b0a0b2a3b4c5d6e7f8091a2\", \"tree\": []}";
+                break;
+            case "POST /repos/{owner}/{repo}/git/commits":
+                body = "{\"sha\": \"7d0d0a4c2f1e6b5a49382716afe0d9c8b7a65432\"}";
+                break;
+            case "POST /repos/{owner}/{repo}/git/refs":
+                if (existingBranches > 0) {
+                    existingBranches--;
+                    respond(exchange, 422, "{\"message\": \"Reference already exists\"}");
+                    return;
+                }
+                body = "{\"ref\": \"refs/heads/create-ADR-13\"}";
+                break;
+            case "POST /repos/{owner}/{repo}/pulls":
+                body = "{\"number\": 52}";
+                break;
+            case "PUT /repos/{owner}/{repo}/pulls/{number}/merge":
+                body = "{\"merged\": true}";
+                break;
+            case "PATCH /repos/{owner}/{repo}/issues/{number}":
+                body = "{\"number\": 50, \"state\": \"closed\"}";
+                break;
+            default:
+                body = null;
+        }
+        if (body == null) {
+            unexpected.add(request);
+        }
+        respond(exchange, body != null ? 200 : 404, body != null ? body : "{\"message\": \"Not Found\"}");
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * @return A page of the files of the PR, which modifies ADR 12 and adds some other files.
+     */
+    private String filesPage(HttpExchange exchange) {
+        String query = exchange.getRequestURI().getQuery();
+        int page = query != null && query.startsWith("page=") ? Integer.parseInt(query.substring("page=".length())) : 1;
+        int last = (files + FILES_PER_PAGE - 1) / FILES_PER_PAGE;
+        if (page < last) {
+            exchange.getResponseHeaders().add("Link",
+                    "<" + endpoint + REPO + "/pulls/51/files?page=" + (page + 1) + ">; rel=\"next\"");
+        }
+        StringJoiner json = new StringJoiner(", ", "[", "]");
+        for (int i = (page - 1) * FILES_PER_PAGE; i < Math.min(page * FILES_PER_PAGE, files); i++) {
+            if (i == 0) {
+                json.add("{\"filename\": \"_adr/12/index.adoc\", \"status\": \"modified\", \"sha\": \"" + HEAD_SHA + "\", "
+                        + "\"patch\": \"@@ -5,1 +5,2 @@\\n Hello, world\\n+We rely on the SLO.\"}");
+            } else {
+                json.add("{\"filename\": \"docs/file-" + i + ".md\", \"status\": \"added\", "
+                        + "\"sha\": \"0000000000000000000000000000000000000000\", \"patch\": \"@@ -0,0 +1,1 @@\\n+Hello\"}");
+            }
+        }
+        return json.toString();
+    }
+
+    /**
+     * @return The content of the bot's config file.
+     */
+    private String configFile() throws IOException {
+        String content = Base64.getEncoder().encodeToString(resource("/config.yaml").getBytes(StandardCharsets.UTF_8));
+        return "{\"type\": \"file\", \"encoding\": \"base64\", \"path\": \"" + ConfigCache.PATH + "\", "
+                + "\"content\": \"" + content + "\"}";
+    }
+
+    private static String treeEntry(String path, String type, String sha) {
+        return "{\"path\": \"" + path + "\", \"type\": \"" + type + "\", \"sha\": \"" + sha + "\"}";
+    }
+
+    private static String tree(String... entries) {
+        return "{\"sha\": \"" + MAIN_SHA + "\", \"truncated\": false, \"tree\": [" + String.join(", ", entries) + "]}";
+    }
+
+    /**
+     * @return A field of a payload, such as the PR in a {@code pull_request} event, as GitHub's API returns it.
+     */
+    private String part(String payload, String field) throws IOException {
+        return new ObjectMapper().readTree(resource(payload)).get(field).toString();
+    }
+
+    private String resource(String name) throws IOException {
+        try (InputStream in = getClass().getResourceAsStream(name)) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * @return A record page with the given status.
+     */
+    private static String page(int num, String status) {
+        return "---\n" +
+                "num: " + num + "\n" +
+                "title: \"Foo\"\n" +
+                "status: \"" + status + "\"\n" +
+                "---\n" +
+                "Hello, world\n";
+    }
+
+    /**
+     * Delivers a webhook event like the app does: within a new request context, the event is dispatched to every
+     * handler which observes it, with the config the {@code @ConfigFile} parameters get,
+     * then the request context is destroyed.
+     * Like the framework's own client, that which parsed the payload can't be used to make requests,
+     * so the flows must make them through the {@link PullRequestContext}.
+     * @return The number of requests made to GitHub.
+     */
+    private int deliver(String event, String json) throws IOException, URISyntaxException {
+        // The request scoped beans
+        var prContext = new PullRequestContext();
+        prContext.clients = clients;
+        var runner = new FlowRunner();
+        runner.locks = locks;
+        runner.costLedger = new ApiCostLedger();
+        runner.prContext = prContext;
+        archReview.runner = runner;
+        archReview.prContext = prContext;
+        prReview.runner = runner;
+        prReview.prContext = prContext;
+        createDraft.runner = runner;
+        createDraft.prContext = prContext;
+
+        ArchBotConfig config = YAML.readValue(resource("/config.yaml"), ArchBotConfig.class);
+        String action = new ObjectMapper().readTree(json).get("action").asText();
+        int before = requests.size();
+        try {
+            switch (event + "." + action) {
+                case "pull_request.opened": {
+                    var payload = payload(json, GHEventPayload.PullRequest.class);
+                    archReview.classifyAndMaybeReviewers(payload, config);
+                    prReview.onPullRequestOpened(payload);
+                    break;
+                }
+                case "pull_request.edited": {
+                    var payload = payload(json, GHEventPayload.PullRequest.class);
+                    archReview.classifyAndMaybeReviewers(payload, config);
+                    prReview.onPullRequestEdited(payload);
+                    break;
+                }
+                case "issue_comment.created": {
+                    var payload = payload(json, GHEventPayload.IssueComment.class);
+                    createDraft.onIssueComment(payload);
+                    archReview.readyForMerge(payload, config);
+                    prReview.onPullRequestComment(payload);
+                    break;
+                }
+                default:
+                    throw new IllegalArgumentException(event + "." + action);
+            }
+        } finally {
+            runner.finish();
+        }
+        assertEquals(List.of(), unexpected);
+        return requests.size() - before;
+    }
+
+    private static <T extends GHEventPayload> T payload(String json, Class<T> type) throws IOException {
+        return GitHub.offline().parseEventPayload(new StringReader(json), type);
+    }
+
+    private long made(String request) {
+        return requests.stream().filter(request::equals).count();
+    }
+
+    private void assertWithinBudget(int budget, int calls) {
+        assertTrue(calls <= budget, "Made " + calls + " GitHub requests, more than the budget of " + budget
+                + ": " + requests);
+    }
+
+    @Test
+    public void testPullRequestOpened() throws IOException, URISyntaxException {
+        String opened = resource("/2-bot-open-pr.json");
+        String edited = opened.replace("\"action\": \"opened\"", "\"action\": \"edited\"");
+        for (int m : new int[] {1, FILES_PER_PAGE, 95}) {
+            files = m;
+            requests.clear();
+            // Neither flow has seen the PR
+            var evaluations = new EvaluationCache();
+            evaluations.maxResults = 100;
+            archReview.evaluations = evaluations;
+            prReview.evaluations = evaluations;
+            int pages = (m + FILES_PER_PAGE - 1) / FILES_PER_PAGE;
+
+            // Both flows see the event, and share the list of files. The repository and the PR are the payload's.
+            // The classification adds the labels in one request. The review also needs the config, the branch and
+            // trees of the default branch, the base and head pages, the existing reviews, and submitting the review
+            // (fewer once the pages are cached).
+            int calls = deliver("pull_request", opened);
+            assertWithinBudget(pages + BUDGET_OPENED, calls);
+            assertEquals(pages, made("GET /repos/{owner}/{repo}/pulls/{number}/files"));
+            assertEquals(0, made("GET /repos/{owner}/{repo}"));
+            assertEquals(0, made("GET /repos/{owner}/{repo}/pulls/{number}"));
+            assertEquals(1, made("POST /repos/{owner}/{repo}/issues/{number}/labels"));
+            assertEquals(1, made("POST /repos/{owner}/{repo}/pulls/{number}/reviews"));
+
+            // An edit which doesn't change the commits is neither classified nor reviewed again,
+            // so only needs writing the labels the payload lacks
+            requests.clear();
+            calls = deliver("pull_request", edited);
+            assertWithinBudget(BUDGET_EDITED, calls);
+            assertEquals(0, made("GET /repos/{owner}/{repo}/pulls/{number}/files"));
+            assertEquals(0, made("POST /repos/{owner}/{repo}/pulls/{number}/reviews"));
+        }
+    }
+
+    @Test
+    public void testCreateAdr() throws IOException, URISyntaxException {
+        String json = resource("/1-user-comment-issue.json");
+
+        // Every flow which observes comments sees it, but only one has anything to do.
+        // Getting the config, the default branch, its trees for the ADR ids and the
+        // template, then 8 writes to commit the draft, open and merge the PR, comment on, and close, the issue.
+        int calls = deliver("issue_comment", json);
+        assertWithinBudget(BUDGET_CREATE, calls);
+        assertEquals(0, made("GET /repos/{owner}/{repo}"));
+        assertEquals(0, made("GET /repos/{owner}/{repo}/issues/{number}"));
+        assertEquals(1, made("PUT /repos/{owner}/{repo}/pulls/{number}/merge"));
+        assertEquals(1, made("PATCH /repos/{owner}/{repo}/issues/{number}"));
+
+        // Another /create, while the default branch and the config are unchanged, only needs to get the
+        // branch before writing
+        requests.clear();
+        String another = json.replace("\"id\": 1139495387", "\"id\": 1139495388");
+        calls = deliver("issue_comment", another);
+        assertWithinBudget(BUDGET_CREATE_AGAIN, calls);
+        assertEquals(1, made("PATCH /repos/{owner}/{repo}/issues/{number}"));
+
+        // A redelivery makes no requests at all
+        requests.clear();
+        calls = deliver("issue_comment", another);
+        assertWithinBudget(0, calls);
+    }
+
+    @Test
+    public void testCreateAdrRetry() throws IOException, URISyntaxException {
+        String json = resource("/1-user-comment-issue.json");
+        existingBranches = 2;
+
+        // The branches for the first two ids already exist, so it takes three attempts,
+        // but the template is only read once, and only the blob, tree, commit and branch are written again
+        int calls = deliver("issue_comment", json);
+        assertWithinBudget(BUDGET_CREATE + 2 * 4, calls);
+        assertEquals(3, made("POST /repos/{owner}/{repo}/git/refs"));
+        assertEquals(1, made("GET /repos/{owner}/{repo}/git/blobs/{path}"));
+        assertEquals(1, made("PATCH /repos/{owner}/{repo}/issues/{number}"));
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bf2.arch.bot;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.kohsuke.github.GHEventPayload;
+import org.kohsuke.github.GHPullRequest;
+import org.kohsuke.github.GitHub;
+import org.mockito.Mockito;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class FlowRunnerTest {
+
+    private final PrLocks locks = new PrLocks();
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private GHEventPayload.IssueComment payload;
+    private ExecutorService executor;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        locks.stripes = 4;
+        try (var in = new InputStreamReader(getClass().getResourceAsStream("/1-user-comment-issue.json"), StandardCharsets.UTF_8)) {
+            payload = GitHub.offline().parseEventPayload(in, GHEventPayload.IssueComment.class);
+        }
+        executor = Executors.newFixedThreadPool(2);
+        Metrics.addRegistry(registry);
+    }
+
+    @AfterEach
+    public void shutdown() {
+        executor.shutdownNow();
+        Metrics.removeRegistry(registry);
+    }
+
+    /**
+     * @return A runner for one delivery.
+     */
+    private FlowRunner runner() {
+        var runner = new FlowRunner();
+        runner.locks = locks;
+        runner.costLedger = new ApiCostLedger();
+        runner.prContext = new PullRequestContext();
+        return runner;
+    }
+
+    @Test
+    public void testSamePrSerialized() throws Exception {
+        var started = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        var running = new AtomicInteger();
+        var maxRunning = new AtomicInteger();
+        FlowRunner.Task task = () -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            started.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            running.decrementAndGet();
+        };
+        Future<?> first = executor.submit(() -> {
+            runner().run(payload, 1, "files", task);
+            return null;
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        Future<?> second = executor.submit(() -> {
+            runner().run(payload, 1, "readyForMerge", task);
+            return null;
+        });
+        // The second delivery waits for the first
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (locks.waiting() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, locks.waiting());
+        assertFalse(second.isDone());
+        Thread.sleep(50);
+        release.countDown();
+        first.get(10, TimeUnit.SECONDS);
+        second.get(10, TimeUnit.SECONDS);
+        assertEquals(1, maxRunning.get());
+        assertEquals(0, locks.waiting());
+        // Both deliveries' waits are timed, and the second waited for the first
+        var wait = registry.get(PrLocks.LOCK_WAIT).timer();
+        assertEquals(2, wait.count());
+        assertTrue(wait.max(TimeUnit.MILLISECONDS) >= 50);
+    }
+
+    @Test
+    public void testOtherPrsNotBlocked() throws Exception {
+        // #1 and #2 have different stripes
+        var release = new CountDownLatch(1);
+        Future<?> first = executor.submit(() -> {
+            runner().run(payload, 1, "files", () -> {
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            return null;
+        });
+        // Only the flows of the same delivery run in this thread, and the locks are reentrant
+        var runner = runner();
+        var ran = new AtomicInteger();
+        runner.run(payload, 2, "files", () -> runner.run(payload, 2, "readyForMerge", ran::incrementAndGet));
+        assertEquals(1, ran.get());
+        release.countDown();
+        first.get(10, TimeUnit.SECONDS);
+        // Taking the lock again for the same delivery isn't a wait
+        assertEquals(2, registry.get(PrLocks.LOCK_WAIT).timer().count());
+    }
+
+    @Test
+    public void testFailureRethrown() throws Exception {
+        var runner = runner();
+        var failure = new IOException("boom");
+        assertSame(failure, assertThrows(IOException.class,
+                () -> runner.run(payload, 1, "files", () -> {
+                    throw failure;
+                })));
+        // The lock was released
+        assertSame(null, executor.submit(() -> {
+            runner().run(payload, 1, "files", () -> { });
+            return null;
+        }).get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testWorksForDelivery() throws Exception {
+        var runner = runner();
+        runner.run(payload, 1, "classifyAndMaybeReviewers", () -> {
+            assertEquals("classifyAndMaybeReviewers", FlowMetrics.current());
+            ApiCostLedger.current().record("GET", "/repos/{owner}/{repo}/pulls/{number}/files", false, 0);
+        });
+        assertSame(null, ApiCostLedger.current());
+        runner.run(payload, 1, "files",
+                () -> ApiCostLedger.current().record("GET", "/repos/{owner}/{repo}/pulls/{number}/files", false, 0));
+        assertEquals(FlowMetrics.NO_FLOW, FlowMetrics.current());
+        String summary = runner.cost().toString();
+        assertEquals("issue_comment.created", runner.cost().trigger);
+        assertTrue(summary.contains(" handlers=classifyAndMaybeReviewers,files subject=tombentley/app-services-architecture#1 calls=2 "), summary);
+    }
+
+    @Test
+    public void testLabelsWrittenByFlow() throws Exception {
+        var pullRequest = mock(GHPullRequest.class);
+        when(pullRequest.getNumber()).thenReturn(1);
+        when(pullRequest.getRepository()).thenReturn(payload.getRepository());
+        var flows = new ArrayList<String>();
+        doAnswer(invocation -> {
+            flows.add(FlowMetrics.current());
+            return List.of();
+        })
+                .when(pullRequest).addLabels(Mockito.<String[]>any());
+        var runner = runner();
+        runner.run(payload, 1, "classifyAndMaybeReviewers", () -> {
+            Set<String> labels = runner.prContext.labels(pullRequest);
+            labels.add(Labels.TYPE_ADR);
+            runner.prContext.setLabels(pullRequest, labels);
+        });
+        // Written before the flow finished, so attributed to it
+        assertEquals(List.of("classifyAndMaybeReviewers"), flows);
+    }
+
+    @Test
+    public void testLabelFailureRethrown() throws Exception {
+        var pullRequest = mock(GHPullRequest.class);
+        when(pullRequest.getNumber()).thenReturn(1);
+        when(pullRequest.getRepository()).thenReturn(payload.getRepository());
+        var failure = new IOException("boom");
+        when(pullRequest.addLabels(Mockito.<String[]>any())).thenThrow(failure);
+        var runner = runner();
+        assertSame(failure, assertThrows(IOException.class,
+                () -> runner.run(payload, 1, "classifyAndMaybeReviewers", () -> {
+                    Set<String> labels = runner.prContext.labels(pullRequest);
+                    labels.add(Labels.TYPE_ADR);
+                    runner.prContext.setLabels(pullRequest, labels);
+                })));
+        // Not written again by the delivery's next flow
+        runner.run(payload, 1, "readyForMerge", () -> { });
+        verify(pullRequest, times(1)).addLabels(Mockito.<String[]>any());
+    }
+}
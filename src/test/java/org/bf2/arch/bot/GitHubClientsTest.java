@@ -0,0 +1,189 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bf2.arch.bot;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import com.sun.net.httpserver.HttpServer;
+import io.quarkiverse.githubapp.runtime.config.GitHubAppRuntimeConfig;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.kohsuke.github.GHAppInstallationToken;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class GitHubClientsTest {
+
+    static final String ETAG = "\"0123abcd\"";
+
+    private final List<String> ifNoneMatch = new ArrayList<>();
+    private HttpServer server;
+    private GitHubClients clients;
+    private int tokenRenewals;
+
+    @TempDir
+    Path cacheDirectory;
+
+    @BeforeEach
+    public void startStub() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/repos/foo/bar/labels", exchange -> {
+            String condition = exchange.getRequestHeaders().getFirst("If-None-Match");
+            ifNoneMatch.add(condition);
+            exchange.getResponseHeaders().add("ETag", ETAG);
+            exchange.getResponseHeaders().add("Cache-Control", "private, max-age=60, s-maxage=60");
+            exchange.getResponseHeaders().add("Vary", "Accept, Authorization, Cookie, X-GitHub-OTP");
+            if (ETAG.equals(condition)) {
+                exchange.sendResponseHeaders(304, -1);
+                exchange.close();
+                return;
+            }
+            byte[] bytes = "[{\"name\": \"state: draft\"}]".getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(bytes);
+            }
+        });
+        server.createContext("/markdown", exchange -> {
+            // Echoes the body
+            byte[] bytes = exchange.getRequestBody().readAllBytes();
+            exchange.getResponseHeaders().add("Content-Type", "text/html;charset=utf-8");
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(bytes);
+            }
+        });
+        server.start();
+
+        clients = new GitHubClients() {
+            @Override
+            String installationToken(long installationId) {
+                // A different token for every request, as if it had been renewed
+                return "test-token-" + tokenRenewals++;
+            }
+        };
+        clients.appConfig = new GitHubAppRuntimeConfig();
+        clients.appConfig.instanceEndpoint = "http://localhost:" + server.getAddress().getPort();
+        clients.cacheDirectory = Optional.of(cacheDirectory.toString());
+        clients.cacheMaxSize = 1024 * 1024;
+    }
+
+    @AfterEach
+    public void stopStub() {
+        server.stop(0);
+    }
+
+    @Test
+    public void testRevalidation() throws IOException {
+        for (int ii = 0; ii < 3; ii++) {
+            var labels = clients.getAllPages(42, GitHubRateLimiter.Priority.BACKGROUND, "/repos/foo/bar/labels", Label[].class);
+            assertEquals(1, labels.size());
+            assertEquals("state: draft", labels.get(0).name);
+        }
+
+        // Despite max-age every request was sent, but only the first got a full response
+        assertEquals(3, ifNoneMatch.size());
+        assertNull(ifNoneMatch.get(0));
+        assertEquals(ETAG, ifNoneMatch.get(1));
+        assertEquals(ETAG, ifNoneMatch.get(2));
+
+        assertEquals(0, clients.cacheStatistics.hits());
+        assertEquals(2, clients.cacheStatistics.revalidations());
+        assertEquals(1, clients.cacheStatistics.misses());
+        assertEquals(2, clients.cacheStatistics.saved());
+    }
+
+    @Test
+    public void testCacheDisabled() throws IOException {
+        clients.cacheMaxSize = 0;
+        for (int ii = 0; ii < 2; ii++) {
+            clients.getAllPages(42, GitHubRateLimiter.Priority.BACKGROUND, "/repos/foo/bar/labels", Label[].class);
+        }
+        assertEquals(List.of(), ifNoneMatch.stream().filter(ETAG::equals).collect(Collectors.toList()));
+        assertEquals(2, clients.cacheStatistics.misses());
+    }
+
+    @Test
+    public void testRequestWithBody() throws IOException {
+        try (Reader reader = clients.installationClient(42).renderMarkdown("Hello *world*")) {
+            var body = new StringWriter();
+            reader.transferTo(body);
+            assertEquals("Hello *world*", body.toString());
+        }
+    }
+
+    static class Label {
+        public String name;
+    }
+
+    @Test
+    public void testConcurrentCallersShareToken() throws Exception {
+        var created = new AtomicInteger();
+        var tokenClients = new GitHubClients() {
+            @Override
+            GHAppInstallationToken createInstallationToken(long installationId) throws IOException {
+                created.incrementAndGet();
+                var token = mock(GHAppInstallationToken.class);
+                when(token.getToken()).thenReturn("token-" + installationId);
+                when(token.getExpiresAt()).thenReturn(Date.from(Instant.now().plus(Duration.ofHours(1))));
+                return token;
+            }
+        };
+        var executor = Executors.newFixedThreadPool(4);
+        try {
+            var start = new CountDownLatch(1);
+            List<Future<String>> tokens = new ArrayList<>();
+            for (int ii = 0; ii < 8; ii++) {
+                tokens.add(executor.submit(() -> {
+                    start.await();
+                    return tokenClients.installationToken(42);
+                }));
+            }
+            start.countDown();
+            for (var token : tokens) {
+                assertEquals("token-42", token.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, created.get());
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bf2.arch.bot;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpServer;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import org.bf2.arch.bot.GitHubRateLimiter.Priority;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class GitHubRateLimiterTest {
+
+    private final List<Long> sleeps = new ArrayList<>();
+    private final AtomicInteger requests = new AtomicInteger();
+    private HttpServer server;
+    private GitHubRateLimiter rateLimiter;
+    private String endpoint;
+
+    /** The rate limit headers the stub sends */
+    private volatile int remaining = 4999;
+    private volatile long resetSeconds;
+    /** How many requests the stub rejects with a secondary rate limit before accepting one */
+    private volatile int secondaryLimited;
+
+    @BeforeEach
+    public void startStub() throws IOException {
+        resetSeconds = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()) + 3600;
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            requests.incrementAndGet();
+            exchange.getResponseHeaders().add("X-RateLimit-Limit", "5000");
+            exchange.getResponseHeaders().add("X-RateLimit-Remaining", Integer.toString(remaining));
+            exchange.getResponseHeaders().add("X-RateLimit-Reset", Long.toString(resetSeconds));
+            exchange.getRequestBody().readAllBytes();
+            if (secondaryLimited > 0) {
+                secondaryLimited--;
+                exchange.getResponseHeaders().add("Retry-After", "7");
+                exchange.sendResponseHeaders(403, -1);
+                exchange.close();
+                return;
+            }
+            byte[] bytes = "{}".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(bytes);
+            }
+        });
+        server.start();
+        endpoint = "http://localhost:" + server.getAddress().getPort();
+
+        rateLimiter = new GitHubRateLimiter() {
+            @Override
+            void sleep(long millis) {
+                // Record, rather than slow the test down
+                if (millis > 0) {
+                    sleeps.add(millis);
+                }
+            }
+        };
+        rateLimiter.backgroundReserve = 0.2;
+        rateLimiter.maxWaitMillis = TimeUnit.HOURS.toMillis(2);
+    }
+
+    @AfterEach
+    public void stopStub() {
+        server.stop(0);
+    }
+
+    private int send(Priority priority, String method, String path) throws IOException {
+        OkHttpClient client = new OkHttpClient.Builder()
+                .addInterceptor(rateLimiter.interceptor(42, priority))
+                .build();
+        Request.Builder request = new Request.Builder().url(endpoint + path);
+        if (!"GET".equals(method)) {
+            request.method(method, RequestBody.create(MediaType.get("application/json"), "{}"));
+        }
+        try (Response response = client.newCall(request.build()).execute()) {
+            return response.code();
+        }
+    }
+
+    @Test
+    public void testTracksRateLimitHeaders() throws IOException {
+        remaining = 1234;
+        send(Priority.INTERACTIVE, "GET", "/repos/foo/bar/labels");
+        GitHubRateLimiter.Budget budget = rateLimiter.budget(42, "core");
+        assertEquals(5000, budget.limit);
+        assertEquals(1234, budget.remaining);
+        assertEquals(TimeUnit.SECONDS.toMillis(resetSeconds), budget.resetMillis);
+        // Other resources have budgets of their own
+        assertEquals(-1, rateLimiter.budget(42, "graphql").remaining);
+        assertEquals(-1, rateLimiter.budget(43, "core").remaining);
+    }
+
+    @Test
+    public void testResource() {
+        assertEquals("core", GitHubRateLimiter.resource(new Request.Builder().url(endpoint + "/repos/foo/bar").build()));
+        assertEquals("search", GitHubRateLimiter.resource(new Request.Builder().url(endpoint + "/search/issues").build()));
+        assertEquals("graphql", GitHubRateLimiter.resource(new Request.Builder().url(endpoint + "/graphql").build()));
+        assertEquals("graphql", GitHubRateLimiter.resource(new Request.Builder().url(endpoint + "/api/graphql").build()));
+    }
+
+    @Test
+    public void testBackgroundDeferredBelowReserve() throws IOException {
+        assertFalse(rateLimiter.shouldDefer(42), "Nothing known about the budget yet");
+        remaining = 2000;
+        send(Priority.INTERACTIVE, "GET", "/repos/foo/bar/labels");
+        assertFalse(rateLimiter.shouldDefer(42));
+        remaining = 1000;
+        send(Priority.INTERACTIVE, "GET", "/repos/foo/bar/labels");
+        assertTrue(rateLimiter.shouldDefer(42));
+        assertEquals(1, rateLimiter.deferrals());
+    }
+
+    @Test
+    public void testBackgroundWaitsForResetBelowReserve() throws IOException {
+        remaining = 900;
+        send(Priority.INTERACTIVE, "GET", "/repos/foo/bar/labels");
+        assertTrue(sleeps.isEmpty());
+
+        // Interactive requests may use the reserve
+        send(Priority.INTERACTIVE, "GET", "/repos/foo/bar/labels");
+        assertTrue(sleeps.isEmpty());
+
+        // Background ones wait for the window to reset
+        send(Priority.BACKGROUND, "GET", "/repos/foo/bar/labels");
+        assertEquals(1, sleeps.size());
+        assertTrue(sleeps.get(0) > TimeUnit.MINUTES.toMillis(59), "Slept " + sleeps.get(0));
+    }
+
+    @Test
+    public void testBackgroundSlowedNearReserve() throws IOException {
+        // Between the reserve (1000) and twice it, spread over the rest of the window
+        remaining = 1500;
+        send(Priority.BACKGROUND, "GET", "/repos/foo/bar/labels");
+        assertTrue(sleeps.isEmpty());
+        send(Priority.BACKGROUND, "GET", "/repos/foo/bar/labels");
+        assertEquals(1, sleeps.size());
+        // About an hour / 500 requests
+        assertTrue(sleeps.get(0) > 7000 && sleeps.get(0) <= 7200, "Slept " + sleeps.get(0));
+    }
+
+    @Test
+    public void testWritesArePaced() throws IOException {
+        rateLimiter.writeIntervalMillis = 1000;
+        send(Priority.INTERACTIVE, "POST", "/repos/foo/bar/issues/1/comments");
+        assertTrue(sleeps.isEmpty());
+        // Reads aren't paced
+        send(Priority.INTERACTIVE, "GET", "/repos/foo/bar/labels");
+        assertTrue(sleeps.isEmpty());
+        // Neither are GraphQL queries, though they're POSTed
+        send(Priority.INTERACTIVE, "POST", "/graphql");
+        assertTrue(sleeps.isEmpty());
+        send(Priority.INTERACTIVE, "PATCH", "/repos/foo/bar/issues/1");
+        assertEquals(1, sleeps.size());
+        assertTrue(sleeps.get(0) > 0 && sleeps.get(0) <= 1000, "Slept " + sleeps.get(0));
+    }
+
+    @Test
+    public void testSecondaryRateLimitRetried() throws IOException {
+        secondaryLimited = 1;
+        assertEquals(200, send(Priority.INTERACTIVE, "POST", "/repos/foo/bar/issues/1/labels"));
+        assertEquals(2, requests.get());
+        assertEquals(1, rateLimiter.retries());
+        assertEquals(1, sleeps.size());
+        assertTrue(sleeps.get(0) > 6000 && sleeps.get(0) <= 7000, "Slept " + sleeps.get(0));
+
+        // Only retried once
+        secondaryLimited = 2;
+        assertEquals(403, send(Priority.INTERACTIVE, "GET", "/repos/foo/bar/labels"));
+        assertEquals(4, requests.get());
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bf2.arch.bot;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.Callable;
+
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import okhttp3.Cache;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class GitHubRequestMetricsTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private HttpServer server;
+    private String endpoint;
+
+    @TempDir
+    Path directory;
+
+    @BeforeEach
+    public void startStub() throws IOException {
+        Metrics.addRegistry(registry);
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            if (exchange.getRequestURI().getPath().startsWith("/repos/foo/cached/")) {
+                exchange.getResponseHeaders().add("Cache-Control", "max-age=60");
+            }
+            byte[] bytes = "{}".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(bytes);
+            }
+        });
+        server.start();
+        endpoint = "http://localhost:" + server.getAddress().getPort();
+    }
+
+    @AfterEach
+    public void stopStub() {
+        server.stop(0);
+        Metrics.removeRegistry(registry);
+    }
+
+    private void send(String method, String path) throws IOException {
+        send(new OkHttpClient.Builder()
+                .addInterceptor(new GitHubRequestMetrics())
+                .build(), method, path);
+    }
+
+    private void send(OkHttpClient client, String method, String path) throws IOException {
+        Request.Builder request = new Request.Builder().url(endpoint + path);
+        if (!"GET".equals(method)) {
+            request.method(method, RequestBody.create(MediaType.get("application/json"), "{}"));
+        }
+        try (Response response = client.newCall(request.build()).execute()) {
+            assertEquals(200, response.code());
+        }
+    }
+
+    @Test
+    public void testEndpoint() {
+        assertEquals("/repos/{owner}/{repo}/pulls/{number}/files",
+                GitHubRequestMetrics.endpoint("/repos/foo/bar/pulls/12/files"));
+        assertEquals("/repos/{owner}/{repo}/issues/{number}/labels/{name}",
+                GitHubRequestMetrics.endpoint("/api/v3/repos/foo/bar/issues/3/labels/state:%20draft"));
+        assertEquals("/repos/{owner}/{repo}/git/refs/{path}",
+                GitHubRequestMetrics.endpoint("/repos/foo/bar/git/refs/heads/main"));
+        assertEquals("/repos/{owner}/{repo}/contents/{path}",
+                GitHubRequestMetrics.endpoint("/repos/foo/bar/contents/_adr/12/index.adoc"));
+        assertEquals("/repos/{owner}/{repo}/commits/{sha}",
+                GitHubRequestMetrics.endpoint("/repos/foo/bar/commits/0123456789abcdef0123456789abcdef01234567"));
+        assertEquals("/graphql", GitHubRequestMetrics.endpoint("/api/graphql"));
+        assertEquals("/search/issues", GitHubRequestMetrics.endpoint("/search/issues"));
+    }
+
+    @Test
+    public void testRequestsAttributedToFlow() throws Exception {
+        send("GET", "/repos/foo/bar/pulls/1");
+        try (var timing = FlowMetrics.time("readyForMerge")) {
+            send("GET", "/repos/foo/bar/pulls/1");
+            send("POST", "/repos/foo/bar/issues/1/labels");
+            send("DELETE", "/repos/foo/bar/issues/1/labels/state:%20draft");
+            // Work handed to another thread is still for the flow
+            Callable<Void> task = FlowMetrics.inCurrentFlow(() -> {
+                send("GET", "/repos/foo/bar/pulls/2");
+                return null;
+            });
+            Thread thread = new Thread(() -> {
+                try {
+                    task.call();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            thread.start();
+            thread.join();
+        }
+        assertEquals(FlowMetrics.NO_FLOW, FlowMetrics.current());
+
+        assertEquals(1, registry.get(GitHubRequestMetrics.REQUESTS)
+                .tags("flow", FlowMetrics.NO_FLOW, "endpoint", "/repos/{owner}/{repo}/pulls/{number}", "cache", "miss")
+                .timer().count());
+        assertEquals(2, registry.get(GitHubRequestMetrics.REQUESTS)
+                .tags("flow", "readyForMerge", "endpoint", "/repos/{owner}/{repo}/pulls/{number}", "method", "GET",
+                        "status", "200", "cache", "miss")
+                .timer().count());
+        assertEquals(2, registry.get(GitHubRequestMetrics.LABEL_WRITES)
+                .tag("flow", "readyForMerge")
+                .counter().count());
+        var unattributed = registry.find(GitHubRequestMetrics.LABEL_WRITES).tag("flow", FlowMetrics.NO_FLOW).counter();
+        assertTrue(unattributed == null || unattributed.count() == 0);
+        assertEquals(1, registry.get(FlowMetrics.FLOW_DURATION)
+                .tag("handler", "readyForMerge")
+                .timer().count());
+    }
+
+    @Test
+    public void testRecordedAgainstEvent() throws IOException {
+        OkHttpClient client = new OkHttpClient.Builder()
+                .addInterceptor(new GitHubRequestMetrics())
+                .cache(new Cache(directory.toFile(), 1024 * 1024))
+                .build();
+        var event = new ApiCostLedger().webhook("pull_request.opened");
+        try (var scope = event.enter()) {
+            send(client, "GET", "/repos/foo/cached/pulls/1");
+            // Served from the cache, so not a call
+            send(client, "GET", "/repos/foo/cached/pulls/1");
+            send(client, "POST", "/repos/foo/bar/issues/1/labels");
+            // A GraphQL query is not a write
+            send(client, "POST", "/graphql");
+        }
+        assertEquals(3, event.calls());
+        assertEquals(1, event.writes());
+        assertTrue(event.toString().contains(" cache_hits=1 "), event.toString());
+    }
+}
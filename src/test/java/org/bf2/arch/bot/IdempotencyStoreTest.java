@@ -0,0 +1,99 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bf2.arch.bot;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Optional;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IdempotencyStoreTest {
+
+    @TempDir
+    Path directory;
+
+    IdempotencyStore store(int maxKeys) {
+        var store = new IdempotencyStore();
+        store.directory = Optional.of(directory.toString());
+        store.maxKeys = maxKeys;
+        return store;
+    }
+
+    @Test
+    public void testDuplicates() throws IOException {
+        var store = store(100);
+        String comment = IdempotencyStore.commentKey(1, "/create adr");
+        assertTrue(store.claim(comment));
+        // Redelivered, or delivered again as an edit which didn't change the body
+        assertFalse(store.claim(comment));
+        // Edited to make a new request
+        assertTrue(store.claim(IdempotencyStore.commentKey(1, "/create padr")));
+
+        // After a restart
+        var restarted = store(100);
+        assertFalse(restarted.claim(comment));
+        assertTrue(restarted.claim(IdempotencyStore.commentKey(3, "/create ap")));
+    }
+
+    @Test
+    public void testRelease() throws IOException {
+        var store = store(100);
+        String comment = IdempotencyStore.commentKey(1, "/create adr");
+        assertTrue(store.claim(comment));
+        store.release(comment);
+        // Retried after the failure
+        assertTrue(store.claim(comment));
+        store.release(comment);
+        // The release survives a restart
+        assertTrue(store(100).claim(comment));
+    }
+
+    @Test
+    public void testBounded() throws IOException {
+        var store = store(2);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(store.claim(IdempotencyStore.commentKey(i, "/create adr")));
+        }
+        // The oldest keys have been forgotten, the newest haven't
+        assertTrue(store(2).claim(IdempotencyStore.commentKey(0, "/create adr")));
+        assertFalse(store(2).claim(IdempotencyStore.commentKey(2, "/create adr")));
+    }
+
+    @Test
+    public void testAppendedThenCompacted() throws IOException {
+        var store = store(2);
+        Path file = directory.resolve("keys");
+        assertTrue(store.claim(IdempotencyStore.commentKey(0, "/create adr")));
+        assertTrue(store.claim(IdempotencyStore.commentKey(1, "/create adr")));
+        store.release(IdempotencyStore.commentKey(1, "/create adr"));
+        assertTrue(store.claim(IdempotencyStore.commentKey(2, "/create adr")));
+        assertEquals(4, Files.readAllLines(file).size());
+        // The file has reached twice max-keys lines, so is rewritten with just the claimed keys
+        assertTrue(store.claim(IdempotencyStore.commentKey(3, "/create adr")));
+        assertEquals(List.of(IdempotencyStore.commentKey(2, "/create adr"), IdempotencyStore.commentKey(3, "/create adr")),
+                Files.readAllLines(file));
+        assertFalse(store(2).claim(IdempotencyStore.commentKey(2, "/create adr")));
+    }
+}
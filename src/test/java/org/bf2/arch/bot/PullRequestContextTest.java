@@ -0,0 +1,212 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bf2.arch.bot;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+import org.kohsuke.github.GHEventPayload;
+import org.kohsuke.github.GHIssue;
+import org.kohsuke.github.GHLabel;
+import org.kohsuke.github.GHPullRequest;
+import org.kohsuke.github.GHPullRequestFileDetail;
+import org.kohsuke.github.GHRepository;
+import org.kohsuke.github.GHUser;
+import org.kohsuke.github.GitHub;
+import org.kohsuke.github.PagedIterable;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.mockingDetails;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class PullRequestContextTest {
+
+    static final String REPO = "tombentley/app-services-architecture";
+
+    @Test
+    public void testPayloadBoundOncePerEvent() throws IOException {
+        // The payload's objects belong to another client
+        GHEventPayload.PullRequest payload;
+        try (var in = new InputStreamReader(getClass().getResourceAsStream("/2-bot-open-pr.json"), StandardCharsets.UTF_8)) {
+            payload = GitHub.offline().parseEventPayload(in, GHEventPayload.PullRequest.class);
+        }
+        var github = mock(GitHub.class);
+        when(github.parseEventPayload(any(), eq(GHEventPayload.PullRequest.class)))
+                .thenAnswer(invocation -> GitHub.offline().parseEventPayload(invocation.getArgument(0),
+                        GHEventPayload.PullRequest.class));
+        var clients = mock(GitHubClients.class);
+        when(clients.installationClient(24676777)).thenReturn(github);
+
+        var context = new PullRequestContext();
+        context.clients = clients;
+        GHRepository repository = context.repository(payload);
+        GHPullRequest pullRequest = context.pullRequest(payload);
+        assertNotSame(payload.getRepository(), repository);
+        assertEquals(REPO, repository.getFullName());
+        assertEquals(payload.getNumber(), pullRequest.getNumber());
+        assertEquals(payload.getPullRequest().getHead().getSha(), pullRequest.getHead().getSha());
+        // As if another flow handled the same event
+        assertSame(repository, context.repository(payload));
+        assertSame(pullRequest, context.pullRequest(payload));
+        verify(github, times(1)).parseEventPayload(any(), eq(GHEventPayload.PullRequest.class));
+        verify(github, never()).getRepository(REPO);
+    }
+
+    @Test
+    public void testCommentPullRequestFetchedOnce() throws IOException {
+        var repository = mock(GHRepository.class);
+        when(repository.getFullName()).thenReturn(REPO);
+        var pullRequest = mock(GHPullRequest.class);
+        when(pullRequest.getNumber()).thenReturn(51);
+        when(pullRequest.getRepository()).thenReturn(repository);
+        when(repository.getPullRequest(51)).thenReturn(pullRequest);
+        var issue = mock(GHIssue.class);
+        when(issue.getNumber()).thenReturn(51);
+        when(issue.isPullRequest()).thenReturn(true);
+        var bound = mock(GHEventPayload.IssueComment.class);
+        when(bound.getRepository()).thenReturn(repository);
+        when(bound.getIssue()).thenReturn(issue);
+        var github = mock(GitHub.class);
+        when(github.parseEventPayload(any(), eq(GHEventPayload.IssueComment.class))).thenReturn(bound);
+        var clients = mock(GitHubClients.class);
+        when(clients.installationClient(24676777)).thenReturn(github);
+
+        // The PR's issue, in the bound payload, stands in for the fixture's issue
+        GHEventPayload.IssueComment payload;
+        try (var in = new InputStreamReader(getClass().getResourceAsStream("/1-user-comment-issue.json"), StandardCharsets.UTF_8)) {
+            payload = GitHub.offline().parseEventPayload(in, GHEventPayload.IssueComment.class);
+        }
+
+        var context = new PullRequestContext();
+        context.clients = clients;
+        // As if two flows handled the same event
+        for (int i = 0; i < 2; i++) {
+            assertSame(issue, context.issue(payload));
+            assertSame(pullRequest, context.pullRequest(payload));
+        }
+        verify(repository, times(1)).getPullRequest(51);
+    }
+
+    @Test
+    public void testFetchedOncePerEvent() throws IOException {
+        var repository = mock(GHRepository.class);
+        when(repository.getFullName()).thenReturn(REPO);
+        var pullRequest = mock(GHPullRequest.class);
+        when(pullRequest.getNumber()).thenReturn(51);
+        when(pullRequest.getRepository()).thenReturn(repository);
+        var label = mock(GHLabel.class);
+        when(label.getName()).thenReturn(Labels.TYPE_ADR);
+        when(pullRequest.getLabels()).thenReturn(List.of(label));
+        var reviewer = mock(GHUser.class);
+        when(pullRequest.getRequestedReviewers()).thenReturn(List.of(reviewer));
+        var file = mock(GHPullRequestFileDetail.class);
+        PagedIterable<GHPullRequestFileDetail> files = mock(PagedIterable.class);
+        when(files.toList()).thenReturn(List.of(file));
+        when(pullRequest.listFiles()).thenReturn(files);
+
+        var context = new PullRequestContext();
+        // As if two flows handled the same event
+        for (int i = 0; i < 2; i++) {
+            assertEquals(List.of(file), context.files(pullRequest));
+            assertEquals(List.of(reviewer), context.requestedReviewers(pullRequest));
+            assertEquals(Set.of(Labels.TYPE_ADR), context.labels(pullRequest));
+        }
+        verify(pullRequest, times(1)).listFiles();
+        verify(pullRequest, times(1)).getRequestedReviewers();
+        verify(pullRequest, times(1)).getLabels();
+
+        // Callers can change the labels they're given, but only setting them changes the PR's labels
+        context.labels(pullRequest).add(Labels.TYPE_AP);
+        assertEquals(Set.of(Labels.TYPE_ADR), context.labels(pullRequest));
+    }
+
+    @Test
+    public void testLabelChangesCoalesced() throws IOException {
+        var repository = mock(GHRepository.class);
+        when(repository.getFullName()).thenReturn(REPO);
+        var pullRequest = mock(GHPullRequest.class);
+        when(pullRequest.getNumber()).thenReturn(42);
+        when(pullRequest.getRepository()).thenReturn(repository);
+        var adr = mock(GHLabel.class);
+        when(adr.getName()).thenReturn(Labels.TYPE_ADR);
+        var needsReviewers = mock(GHLabel.class);
+        when(needsReviewers.getName()).thenReturn(Labels.STATE_NEEDS_REVIEWERS);
+        when(pullRequest.getLabels()).thenReturn(List.of(adr, needsReviewers));
+
+        var context = new PullRequestContext();
+        // As if two flows changed the labels while handling the same event
+        Set<String> labels = context.labels(pullRequest);
+        labels.remove(Labels.STATE_NEEDS_REVIEWERS);
+        labels.add(Labels.STATE_BEING_REVIEWED);
+        context.setLabels(pullRequest, labels);
+        labels = context.labels(pullRequest);
+        assertEquals(Set.of(Labels.TYPE_ADR, Labels.STATE_BEING_REVIEWED), labels);
+        labels.add(Labels.NOTICE_SPLIT_REVIEW);
+        labels.add(Labels.TYPE_AP);
+        labels.remove(Labels.TYPE_AP);
+        context.setLabels(pullRequest, labels);
+        assertEquals(List.of(), labelWrites(pullRequest));
+
+        context.flush();
+        verify(pullRequest).addLabels(Labels.NOTICE_SPLIT_REVIEW, Labels.STATE_BEING_REVIEWED);
+        verify(pullRequest).removeLabel(Labels.STATE_NEEDS_REVIEWERS);
+        assertEquals(List.of("addLabels", "removeLabel"), labelWrites(pullRequest));
+    }
+
+    @Test
+    public void testUnchangedLabelsNotWritten() throws IOException {
+        var repository = mock(GHRepository.class);
+        when(repository.getFullName()).thenReturn(REPO);
+        var pullRequest = mock(GHPullRequest.class);
+        when(pullRequest.getRepository()).thenReturn(repository);
+        var adr = mock(GHLabel.class);
+        when(adr.getName()).thenReturn(Labels.TYPE_ADR);
+        when(pullRequest.getLabels()).thenReturn(List.of(adr));
+
+        var context = new PullRequestContext();
+        Set<String> labels = context.labels(pullRequest);
+        labels.add(Labels.TYPE_AP);
+        context.setLabels(pullRequest, labels);
+        labels.remove(Labels.TYPE_AP);
+        context.setLabels(pullRequest, labels);
+        context.flush();
+        assertEquals(List.of(), labelWrites(pullRequest));
+    }
+
+    /**
+     * @return The names of the methods called to change the labels of the PR.
+     */
+    private static List<String> labelWrites(GHPullRequest pullRequest) {
+        return mockingDetails(pullRequest).getInvocations().stream()
+                .map(invocation -> invocation.getMethod().getName())
+                .filter(name -> name.matches("(add|remove|set)Labels?"))
+                .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bf2.arch.bot;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+import org.bf2.arch.bot.model.record.RecordId;
+import org.bf2.arch.bot.model.record.RecordType;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.kohsuke.github.GHBranch;
+import org.kohsuke.github.GHCommit;
+import org.kohsuke.github.GHCompare;
+import org.kohsuke.github.GHContent;
+import org.kohsuke.github.GHEventPayload;
+import org.kohsuke.github.GHRepository;
+import org.kohsuke.github.GHTree;
+import org.kohsuke.github.GHTreeEntry;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class RecordIndexTest {
+
+    static String page(String status) {
+        return "---\n" +
+                "num: 3\n" +
+                "title: \"Foo\"\n" +
+                "status: \"" + status + "\"\n" +
+                "---\n" +
+                "Hello, world\n";
+    }
+
+    static final String DRAFT_SHA = RecordPageCache.gitBlobSha(page("Draft").getBytes(StandardCharsets.UTF_8));
+    static final String ACCEPTED_SHA = RecordPageCache.gitBlobSha(page("Accepted").getBytes(StandardCharsets.UTF_8));
+
+    private final RecordIndex index = new RecordIndex();
+    private GHRepository repo;
+
+    @TempDir
+    Path cacheDirectory;
+
+    static GHTreeEntry treeEntry(String path, String type, String sha) {
+        var entry = mock(GHTreeEntry.class);
+        when(entry.getPath()).thenReturn(path);
+        when(entry.getType()).thenReturn(type);
+        when(entry.getSha()).thenReturn(sha);
+        return entry;
+    }
+
+    @BeforeEach
+    public void setup() throws IOException {
+        index.pageCache = new RecordPageCache();
+        index.pageCache.directory = Optional.of(cacheDirectory.toString());
+        index.pageCache.maxPages = 10;
+        index.maxAgeSeconds = 300;
+
+        repo = mock(GHRepository.class);
+        when(repo.getFullName()).thenReturn("foo/bar");
+        when(repo.getDefaultBranch()).thenReturn("main");
+
+        var entries = List.of(
+                treeEntry("README.md", "blob", "b0"),
+                treeEntry("_adr", "tree", "t1"),
+                treeEntry("_adr/3", "tree", "t2"),
+                treeEntry("_adr/3/index.adoc", "blob", DRAFT_SHA),
+                treeEntry("_ap/1/index.adoc", "blob", "b1"));
+        var tree = mock(GHTree.class);
+        when(tree.getTree()).thenReturn(entries);
+        when(repo.getTreeRecursive("c1", 1)).thenReturn(tree);
+        when(repo.readBlob(DRAFT_SHA)).thenAnswer(i -> new ByteArrayInputStream(page("Draft").getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void testBootstrap() throws IOException {
+        var snapshot = index.snapshot(repo, "c1");
+        assertEquals(Set.of(new RecordId(RecordType.ADR, 3), new RecordId(RecordType.AP, 1)),
+                snapshot.records.keySet());
+        assertEquals(DRAFT_SHA, snapshot.records.get(new RecordId(RecordType.ADR, 3)).blobSha);
+
+        // Front matter is fetched lazily, and only once
+        verify(repo, never()).readBlob(anyString());
+        assertEquals("Draft", index.frontMatter(repo, new RecordId(RecordType.ADR, 3)).get().status);
+        assertEquals("Draft", index.frontMatter(repo, new RecordId(RecordType.ADR, 3)).get().status);
+        assertEquals(Optional.empty(), index.frontMatter(repo, new RecordId(RecordType.ADR, 4)));
+        verify(repo, times(1)).readBlob(DRAFT_SHA);
+        verify(repo, times(1)).getTreeRecursive(anyString(), anyInt());
+    }
+
+    @Test
+    public void testPush() throws IOException {
+        index.snapshot(repo, "c1");
+
+        var content = mock(GHContent.class);
+        when(content.getSha()).thenReturn(ACCEPTED_SHA);
+        when(content.read()).thenAnswer(i -> new ByteArrayInputStream(page("Accepted").getBytes(StandardCharsets.UTF_8)));
+        when(repo.getFileContent("_adr/3/index.adoc", "c2")).thenReturn(content);
+
+        var commit = mock(GHEventPayload.Push.PushCommit.class);
+        when(commit.getAdded()).thenReturn(List.of("docs/other.md"));
+        when(commit.getModified()).thenReturn(List.of("_adr/3/index.adoc"));
+        when(commit.getRemoved()).thenReturn(List.of("_ap/1/index.adoc"));
+        var push = mock(GHEventPayload.Push.class);
+        when(push.getRepository()).thenReturn(repo);
+        when(push.getRef()).thenReturn("refs/heads/main");
+        when(push.getBefore()).thenReturn("c1");
+        when(push.getHead()).thenReturn("c2");
+        when(push.getCommits()).thenReturn(List.of(commit));
+
+        index.update(push);
+
+        var snapshot = index.snapshot(repo);
+        assertEquals("c2", snapshot.commitSha);
+        assertEquals(Set.of(new RecordId(RecordType.ADR, 3)), snapshot.records.keySet());
+        assertEquals(ACCEPTED_SHA, snapshot.records.get(new RecordId(RecordType.ADR, 3)).blobSha);
+        assertEquals("Accepted", index.frontMatter(repo, new RecordId(RecordType.ADR, 3)).get().status);
+        // No need to refetch the tree, nor any blobs
+        verify(repo, times(1)).getTreeRecursive(anyString(), anyInt());
+        verify(repo, never()).readBlob(anyString());
+    }
+
+    @Test
+    public void testPushNotFollowingIndexRebuilds() throws IOException {
+        index.snapshot(repo, "c1");
+        var entries = List.of(treeEntry("_padr/2/index.adoc", "blob", "b2"));
+        var tree = mock(GHTree.class);
+        when(tree.getTree()).thenReturn(entries);
+        when(repo.getTreeRecursive("c3", 1)).thenReturn(tree);
+
+        var push = mock(GHEventPayload.Push.class);
+        when(push.getRepository()).thenReturn(repo);
+        when(push.getRef()).thenReturn("refs/heads/main");
+        when(push.getBefore()).thenReturn("c2");
+        when(push.getHead()).thenReturn("c3");
+
+        index.update(push);
+
+        assertEquals(Set.of(new RecordId(RecordType.PADR, 2)), index.snapshot(repo).records.keySet());
+    }
+
+    static GHCommit.File file(String status, String fileName, String previousFilename, String sha) {
+        var file = mock(GHCommit.File.class);
+        when(file.getStatus()).thenReturn(status);
+        when(file.getFileName()).thenReturn(fileName);
+        when(file.getPreviousFilename()).thenReturn(previousFilename);
+        when(file.getSha()).thenReturn(sha);
+        return file;
+    }
+
+    private void compare(String base, String head, GHCompare.Status status, GHCommit.File... files) throws IOException {
+        var compare = mock(GHCompare.class);
+        when(compare.getStatus()).thenReturn(status);
+        when(compare.getFiles()).thenReturn(files);
+        when(repo.getCompare(base, head)).thenReturn(compare);
+    }
+
+    @Test
+    public void testAdvance() throws IOException {
+        index.snapshot(repo, "c1");
+        compare("c1", "c2", GHCompare.Status.ahead,
+                file("modified", "_adr/3/index.adoc", null, ACCEPTED_SHA),
+                file("removed", "_ap/1/index.adoc", null, "b1"),
+                file("renamed", "_padr/2/index.adoc", "drafts/2.adoc", "b2"),
+                file("added", "docs/other.md", null, "b3"));
+
+        var snapshot = index.snapshot(repo, "c2");
+
+        assertEquals("c2", snapshot.commitSha);
+        assertEquals(Set.of(new RecordId(RecordType.ADR, 3), new RecordId(RecordType.PADR, 2)),
+                snapshot.records.keySet());
+        assertEquals(ACCEPTED_SHA, snapshot.records.get(new RecordId(RecordType.ADR, 3)).blobSha);
+        assertEquals("b2", snapshot.records.get(new RecordId(RecordType.PADR, 2)).blobSha);
+        // Advanced from the comparison, without refetching the tree
+        verify(repo, times(1)).getTreeRecursive(anyString(), anyInt());
+    }
+
+    @Test
+    public void testAdvanceNotFollowingIndexRebuilds() throws IOException {
+        index.snapshot(repo, "c1");
+        compare("c1", "c3", GHCompare.Status.diverged, file("modified", "_adr/3/index.adoc", null, ACCEPTED_SHA));
+        var tree = mock(GHTree.class);
+        var entries = List.of(treeEntry("_padr/2/index.adoc", "blob", "b2"));
+        when(tree.getTree()).thenReturn(entries);
+        when(repo.getTreeRecursive("c3", 1)).thenReturn(tree);
+
+        assertEquals(Set.of(new RecordId(RecordType.PADR, 2)), index.snapshot(repo, "c3").records.keySet());
+    }
+
+    @Test
+    public void testRevalidate() throws IOException {
+        index.maxAgeSeconds = 0;
+        var branch = mock(GHBranch.class);
+        when(repo.getBranch("main")).thenReturn(branch);
+        when(branch.getSHA1()).thenReturn("c1", "c1", "c2");
+        compare("c1", "c2", GHCompare.Status.ahead, file("removed", "_ap/1/index.adoc", null, "b1"));
+
+        assertEquals("c1", index.snapshot(repo).commitSha);
+        // Still the head of the branch
+        assertEquals("c1", index.snapshot(repo).commitSha);
+        // A push was missed
+        var snapshot = index.snapshot(repo);
+        assertEquals("c2", snapshot.commitSha);
+        assertEquals(Set.of(new RecordId(RecordType.ADR, 3)), snapshot.records.keySet());
+        verify(repo, times(3)).getBranch("main");
+        verify(repo, times(1)).getTreeRecursive(anyString(), anyInt());
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bf2.arch.bot;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.kohsuke.github.GHRepository;
+
+import static org.bf2.arch.bot.CreateDraftRecordFlowTest.EXAMPLE_TEMPLATE;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class RecordPageCacheTest {
+
+    static final byte[] TEMPLATE = EXAMPLE_TEMPLATE.getBytes(StandardCharsets.UTF_8);
+    static final String TEMPLATE_SHA = RecordPageCache.gitBlobSha(TEMPLATE);
+
+    @TempDir
+    Path directory;
+
+    RecordPageCache cache() {
+        var cache = new RecordPageCache();
+        cache.directory = Optional.of(directory.toString());
+        cache.maxPages = 10;
+        return cache;
+    }
+
+    @Test
+    public void testGitBlobSha() {
+        // $ printf 'Hello, world\n' | git hash-object --stdin
+        assertEquals("a5c19667710254f835085b99726e523457150e03",
+                RecordPageCache.gitBlobSha("Hello, world\n".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void testTiers() throws IOException {
+        var repo = mock(GHRepository.class);
+        when(repo.readBlob(TEMPLATE_SHA)).thenAnswer(i -> new ByteArrayInputStream(TEMPLATE));
+
+        var cache = cache();
+        var page = cache.page(repo, TEMPLATE_SHA);
+        assertEquals("ADR template", page.frontMatter.title);
+
+        // Callers get their own copy, which they can change
+        page.frontMatter.title = "Changed";
+        page.frontMatter.authors.add("me");
+        var again = cache.page(repo, TEMPLATE_SHA);
+        assertEquals("ADR template", again.frontMatter.title);
+        assertEquals(1, again.frontMatter.authors.size());
+        verify(repo, times(1)).readBlob(TEMPLATE_SHA);
+
+        // After a restart the blob comes from disk
+        assertEquals("ADR template", cache().page(repo, TEMPLATE_SHA).frontMatter.title);
+        verify(repo, times(1)).readBlob(TEMPLATE_SHA);
+
+        // Unless the blob on disk is corrupt
+        Files.writeString(directory.resolve(TEMPLATE_SHA.substring(0, 2)).resolve(TEMPLATE_SHA.substring(2)), "garbage");
+        assertEquals("ADR template", cache().page(repo, TEMPLATE_SHA).frontMatter.title);
+        verify(repo, times(2)).readBlob(TEMPLATE_SHA);
+    }
+}
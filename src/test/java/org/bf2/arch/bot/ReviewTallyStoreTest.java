@@ -0,0 +1,186 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bf2.arch.bot;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import org.bf2.arch.bot.ArchReviewStateMachineFlow.ReviewerDisposition;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.kohsuke.github.GHIssue;
+import org.kohsuke.github.GHIssueComment;
+import org.kohsuke.github.GHRepository;
+import org.kohsuke.github.GitHub;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class ReviewTallyStoreTest {
+
+    @TempDir
+    Path directory;
+
+    private GHIssue issue;
+    private final List<GHIssueComment> comments = new ArrayList<>();
+
+    /** getId() has bridge methods returning int and String, which can't be mocked, so these comments are real. */
+    static GHIssueComment comment(long id, String login, String body) throws IOException {
+        return GitHub.getMappingObjectReader()
+                .forType(GHIssueComment.class)
+                .readValue(String.format("{\"id\": %d, \"body\": \"%s\", \"user\": {\"login\": \"%s\"}}", id, body, login));
+    }
+
+    @BeforeEach
+    public void setup() throws IOException {
+        var repository = mock(GHRepository.class);
+        when(repository.getFullName()).thenReturn("foo/bar");
+        issue = mock(GHIssue.class);
+        when(issue.getRepository()).thenReturn(repository);
+        when(issue.getNumber()).thenReturn(42);
+        when(issue.getComments()).thenReturn(comments);
+    }
+
+    private ReviewTallyStore store() {
+        var store = new ReviewTallyStore();
+        store.directory = Optional.of(directory.toString());
+        store.maxTallies = 10;
+        return store;
+    }
+
+    private Map<String, ReviewerDisposition> record(ReviewTallyStore store, GHIssueComment comment) throws IOException {
+        if (!comments.contains(comment)) {
+            comments.add(comment);
+        }
+        when(issue.getCommentsCount()).thenReturn(comments.size());
+        return store.record(issue, comment, new CommentCommands());
+    }
+
+    @Test
+    public void testDisposition() {
+        assertNull(ReviewTally.disposition(CommandParser.parse("Looks good, but what about accept?")));
+        assertNull(ReviewTally.disposition(CommandParser.parse("Is this ready for /acceptance?")));
+        assertEquals(ReviewerDisposition.ACCEPT, ReviewTally.disposition(CommandParser.parse("/accept")));
+        assertEquals(ReviewerDisposition.DEFER, ReviewTally.disposition(CommandParser.parse("Not yet. /defer")));
+        assertEquals(ReviewerDisposition.REJECT, ReviewTally.disposition(CommandParser.parse("/reject /other")));
+        // As before, accepting takes precedence over deferring, which takes precedence over rejecting
+        assertEquals(ReviewerDisposition.ACCEPT, ReviewTally.disposition(CommandParser.parse("/reject, no /accept")));
+        assertEquals(ReviewerDisposition.DEFER, ReviewTally.disposition(CommandParser.parse("/reject, no /defer")));
+    }
+
+    @Test
+    public void testIncremental() throws IOException {
+        comments.add(comment(1, "alice", "Nice"));
+        comments.add(comment(2, "bob", "/defer"));
+        var store = store();
+
+        // No tally: it's built from all the comments
+        assertEquals(Map.of("alice", ReviewerDisposition.ACCEPT, "bob", ReviewerDisposition.DEFER),
+                record(store, comment(3, "alice", "/accept")));
+        verify(issue, times(1)).getComments();
+
+        // Later comments only update the tally
+        assertEquals(Map.of("alice", ReviewerDisposition.ACCEPT, "bob", ReviewerDisposition.ACCEPT),
+                record(store, comment(4, "bob", "OK then, /accept")));
+        var redelivered = comments.get(1);
+        assertEquals(Map.of("alice", ReviewerDisposition.ACCEPT, "bob", ReviewerDisposition.ACCEPT),
+                record(store, redelivered));
+        verify(issue, times(1)).getComments();
+
+        // After a restart the tally is read back
+        assertEquals(Map.of("alice", ReviewerDisposition.REJECT, "bob", ReviewerDisposition.ACCEPT),
+                record(store(), comment(5, "alice", "/reject")));
+        verify(issue, times(1)).getComments();
+    }
+
+    @Test
+    public void testMissedComments() throws IOException {
+        var store = store();
+        record(store, comment(1, "alice", "/accept"));
+        verify(issue, times(1)).getComments();
+
+        // A comment is added while the bot is down
+        comments.add(comment(2, "bob", "/reject"));
+        assertEquals(Map.of("alice", ReviewerDisposition.DEFER, "bob", ReviewerDisposition.REJECT),
+                record(store(), comment(3, "alice", "/defer")));
+        verify(issue, times(2)).getComments();
+    }
+
+    @Test
+    public void testEditedOrDeleted() throws IOException {
+        var store = store();
+        record(store, comment(1, "alice", "/accept"));
+        record(store, comment(2, "bob", "/accept"));
+
+        // Alice changes her mind by editing her comment
+        comments.set(0, comment(1, "alice", "/reject"));
+        assertEquals(Map.of("alice", ReviewerDisposition.REJECT, "bob", ReviewerDisposition.ACCEPT),
+                store.rebuild(issue, new CommentCommands()));
+
+        // Bob deletes his
+        comments.remove(1);
+        assertEquals(Map.of("alice", ReviewerDisposition.REJECT), store.rebuild(issue, new CommentCommands()));
+        // and the rebuilt tally was written
+        assertEquals(Map.of("alice", ReviewerDisposition.ACCEPT),
+                record(store(), comment(3, "alice", "/accept")));
+    }
+
+    @Test
+    public void testDeletedWhileDown() throws IOException {
+        var store = store();
+        record(store, comment(1, "alice", "/accept"));
+        record(store, comment(2, "bob", "/reject"));
+        verify(issue, times(1)).getComments();
+
+        // Bob's comment is deleted while the bot is down, so the tally has recorded more comments than there are
+        comments.remove(1);
+        assertEquals(Map.of("alice", ReviewerDisposition.ACCEPT),
+                record(store(), comment(3, "carol", "Hmm")));
+        verify(issue, times(2)).getComments();
+    }
+
+    @Test
+    public void testBounded() throws IOException {
+        var store = store();
+        store.maxTallies = 1;
+        record(store, comment(1, "alice", "/accept"));
+        var other = mock(GHIssue.class);
+        var repository = issue.getRepository();
+        when(other.getRepository()).thenReturn(repository);
+        when(other.getNumber()).thenReturn(43);
+        when(other.getComments()).thenReturn(List.of());
+        when(other.getCommentsCount()).thenReturn(1);
+        store.record(other, comment(10, "bob", "/defer"), new CommentCommands());
+
+        // The tally of #42 was dropped from memory, so without its file it has to be rebuilt
+        Files.delete(directory.resolve("foo/bar/42.json"));
+        assertEquals(Map.of("alice", ReviewerDisposition.ACCEPT, "bob", ReviewerDisposition.REJECT),
+                record(store, comment(2, "bob", "/reject")));
+        verify(issue, times(2)).getComments();
+    }
+}
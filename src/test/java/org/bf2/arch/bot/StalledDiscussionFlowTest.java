@@ -0,0 +1,204 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bf2.arch.bot;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.StringJoiner;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.quarkiverse.githubapp.runtime.config.GitHubAppRuntimeConfig;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class StalledDiscussionFlowTest {
+
+    private static final Instant NOW = Instant.now();
+    private static final Instant RECENT = NOW.minus(Duration.ofHours(1));
+    private static final Instant OLD = NOW.minus(Duration.ofDays(30));
+
+    /**
+     * The candidate PRs, least recently updated first:
+     * #3 was last updated long ago and has no review comments,
+     * #1 was updated recently (e.g. by a push) but its only review comment is old,
+     * #2 was updated recently and has no review comments.
+     */
+    private static final Map<Integer, Instant> UPDATED = Map.of(3, OLD, 1, RECENT, 2, RECENT);
+    private static final List<Integer> SEARCH_ORDER = List.of(3, 1, 2);
+    /** The creation (and update) time of each PR's review comments. */
+    private static final Map<Integer, List<Instant>> REVIEW_COMMENTS = Map.of(1, List.of(OLD), 2, List.of(), 3, List.of());
+
+    /** The PRs labelled as stalled */
+    private final List<Integer> labelled = Collections.synchronizedList(new ArrayList<>());
+    private HttpServer server;
+    private String endpoint;
+    private GitHubClients clients;
+
+    @BeforeEach
+    public void startStub() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", this::respond);
+        server.start();
+        endpoint = "http://localhost:" + server.getAddress().getPort();
+
+        clients = new GitHubClients() {
+            @Override
+            String installationToken(long installationId) {
+                return "test-token";
+            }
+        };
+        clients.appConfig = new GitHubAppRuntimeConfig();
+        clients.appConfig.instanceEndpoint = endpoint;
+        clients.cacheDirectory = Optional.empty();
+        clients.cacheMaxSize = 0;
+        clients.writeIntervalMillis = 0;
+        clients.backgroundReserve = 0.2;
+        clients.maxWaitSeconds = 1;
+        clients.configureRateLimiter();
+    }
+
+    @AfterEach
+    public void stopStub() {
+        server.stop(0);
+    }
+
+    private void respond(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        String query = exchange.getRequestURI().getQuery();
+        String[] segments = path.split("/");
+        String body = null;
+        if (path.equals("/search/issues")) {
+            var items = new StringJoiner(", ", "{\"total_count\": 3, \"incomplete_results\": false, \"items\": [", "]}");
+            SEARCH_ORDER.forEach(number -> items.add(issue(number)));
+            body = items.toString();
+        } else if (path.equals("/repos/foo/bar")) {
+            body = repository();
+        } else if (path.equals("/repos/foo/bar/pulls/comments")) {
+            // Only those updated since the given time
+            Instant since = Instant.parse(query.substring(query.indexOf("since=") + "since=".length()));
+            var comments = new StringJoiner(", ", "[", "]");
+            REVIEW_COMMENTS.forEach((number, createdAt) -> createdAt.stream()
+                    .filter(instant -> !instant.isBefore(since))
+                    .forEach(instant -> comments.add(reviewComment(number, instant))));
+            body = comments.toString();
+        } else if (path.matches("/repos/foo/bar/pulls/\\d+/comments")) {
+            int number = Integer.parseInt(segments[5]);
+            var comments = new StringJoiner(", ", "[", "]");
+            REVIEW_COMMENTS.get(number).forEach(instant -> comments.add(reviewComment(number, instant)));
+            body = comments.toString();
+        } else if (path.matches("/repos/foo/bar/pulls/\\d+")) {
+            body = pullRequest(Integer.parseInt(segments[5]));
+        } else if (path.matches("/repos/foo/bar/issues/\\d+/labels") && "POST".equals(exchange.getRequestMethod())) {
+            labelled.add(Integer.parseInt(segments[5]));
+            body = "[]";
+        }
+        byte[] bytes = (body != null ? body : "{\"message\": \"Not Found\"}").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(body != null ? 200 : 404, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private String repository() {
+        return "{\"name\": \"bar\", \"full_name\": \"foo/bar\", \"owner\": {\"login\": \"foo\"}, "
+                + "\"url\": \"" + endpoint + "/repos/foo/bar\"}";
+    }
+
+    private String issue(int number) {
+        return "{\"number\": " + number + ", \"state\": \"open\", \"updated_at\": \"" + UPDATED.get(number) + "\", "
+                + "\"labels\": [{\"name\": \"" + Labels.STATE_BEING_REVIEWED + "\"}], "
+                + "\"url\": \"" + endpoint + "/repos/foo/bar/issues/" + number + "\", "
+                + "\"repository_url\": \"" + endpoint + "/repos/foo/bar\", "
+                + "\"pull_request\": {\"url\": \"" + endpoint + "/repos/foo/bar/pulls/" + number + "\", "
+                + "\"html_url\": \"https://github.com/foo/bar/pull/" + number + "\"}}";
+    }
+
+    private String pullRequest(int number) {
+        return "{\"number\": " + number + ", \"state\": \"open\", \"updated_at\": \"" + UPDATED.get(number) + "\", "
+                + "\"labels\": [{\"name\": \"" + Labels.STATE_BEING_REVIEWED + "\"}], "
+                + "\"url\": \"" + endpoint + "/repos/foo/bar/pulls/" + number + "\"}";
+    }
+
+    private String reviewComment(int number, Instant createdAt) {
+        return "{\"body\": \"Hmm\", \"user\": {\"login\": \"reviewer\"}, "
+                + "\"created_at\": \"" + createdAt + "\", \"updated_at\": \"" + createdAt + "\", "
+                + "\"pull_request_url\": \"" + endpoint + "/repos/foo/bar/pulls/" + number + "\"}";
+    }
+
+    private StalledDiscussionFlow flow(StalledDiscussionFlow.Mode mode) throws IOException {
+        var flow = new StalledDiscussionFlow();
+        flow.enabled = true;
+        flow.installationId = 42L;
+        flow.repositoryPath = "foo/bar";
+        flow.mode = mode;
+        flow.concurrency = 2;
+        flow.costLedger = new ApiCostLedger();
+        flow.prLocks = new PrLocks();
+        flow.prLocks.stripes = 4;
+        flow.init(clients);
+        return flow;
+    }
+
+    private List<Integer> check(StalledDiscussionFlow.Mode mode) throws IOException {
+        labelled.clear();
+        var flow = flow(mode);
+        try {
+            flow.checkForStalledDiscussions();
+        } finally {
+            flow.shutdown();
+        }
+        var result = new ArrayList<>(labelled);
+        Collections.sort(result);
+        return result;
+    }
+
+    @Test
+    public void testModesAgree() throws IOException {
+        // #1 is judged by its old review comment, not by its recent update
+        assertEquals(List.of(1, 3), check(StalledDiscussionFlow.Mode.FULL));
+        assertEquals(List.of(1, 3), check(StalledDiscussionFlow.Mode.INCREMENTAL));
+    }
+
+    @Test
+    public void testIncrementalRescan() throws IOException {
+        var flow = flow(StalledDiscussionFlow.Mode.INCREMENTAL);
+        try {
+            flow.checkForStalledDiscussions();
+            labelled.clear();
+            // The comments of #1 and #2 are now known, so the result doesn't change
+            flow.checkForStalledDiscussions();
+        } finally {
+            flow.shutdown();
+        }
+        labelled.sort(Integer::compareTo);
+        assertEquals(List.of(1, 3), labelled);
+    }
+}
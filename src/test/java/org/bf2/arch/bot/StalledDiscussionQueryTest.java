@@ -0,0 +1,171 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bf2.arch.bot;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+import io.quarkiverse.githubapp.runtime.config.GitHubAppRuntimeConfig;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class StalledDiscussionQueryTest {
+
+    static final String PAGE_1 = "{\"data\": {\"search\": {\n" +
+            "  \"pageInfo\": {\"hasNextPage\": true, \"endCursor\": \"Y3Vyc29yOjI=\"},\n" +
+            "  \"nodes\": [\n" +
+            "    {\"number\": 12, \"updatedAt\": \"2022-05-01T00:00:00Z\",\n" +
+            "     \"labels\": {\"nodes\": [{\"name\": \"state: being-reviewed\"}]},\n" +
+            "     \"comments\": {\"nodes\": [{\"createdAt\": \"2022-04-20T00:00:00Z\"}]},\n" +
+            "     \"reviews\": {\"nodes\": [{\"submittedAt\": \"2022-04-25T00:00:00Z\"}]},\n" +
+            "     \"reviewThreads\": {\"pageInfo\": {\"hasNextPage\": false}, \"nodes\": [\n" +
+            "       {\"comments\": {\"nodes\": [{\"createdAt\": \"2022-04-26T00:00:00Z\"}]}},\n" +
+            "       {\"comments\": {\"nodes\": [{\"createdAt\": \"2022-04-24T00:00:00Z\"}]}}]}},\n" +
+            "    {}\n" +
+            "  ]}}}";
+
+    static final String PAGE_2 = "{\"data\": {\"search\": {\n" +
+            "  \"pageInfo\": {\"hasNextPage\": false, \"endCursor\": \"Y3Vyc29yOjQ=\"},\n" +
+            "  \"nodes\": [\n" +
+            "    {\"number\": 7, \"updatedAt\": \"2022-05-02T00:00:00Z\",\n" +
+            "     \"labels\": {\"nodes\": [{\"name\": \"state: needs-reviewers\"}, {\"name\": \"notice: stalled-discussion\"}]},\n" +
+            "     \"comments\": {\"nodes\": []},\n" +
+            "     \"reviews\": {\"nodes\": []},\n" +
+            "     \"reviewThreads\": {\"pageInfo\": {\"hasNextPage\": false}, \"nodes\": []}},\n" +
+            "    {\"number\": 5, \"updatedAt\": \"2022-05-03T00:00:00Z\",\n" +
+            "     \"labels\": {\"nodes\": []},\n" +
+            "     \"comments\": {\"nodes\": []},\n" +
+            "     \"reviews\": {\"nodes\": []},\n" +
+            "     \"reviewThreads\": {\"pageInfo\": {\"hasNextPage\": true},\n" +
+            "                        \"nodes\": [{\"comments\": {\"nodes\": [{\"createdAt\": \"2022-04-01T00:00:00Z\"}]}}]}},\n" +
+            "    {\"number\": 3, \"updatedAt\": \"2022-06-01T00:00:00Z\",\n" +
+            "     \"labels\": {\"nodes\": []},\n" +
+            "     \"comments\": {\"nodes\": [{\"createdAt\": \"2022-04-01T00:00:00Z\"}]},\n" +
+            "     \"reviews\": {\"nodes\": []},\n" +
+            "     \"reviewThreads\": {\"pageInfo\": {\"hasNextPage\": false}, \"nodes\": []}},\n" +
+            "    {\"number\": 9, \"updatedAt\": \"2022-06-01T00:00:00Z\",\n" +
+            "     \"labels\": {\"nodes\": []},\n" +
+            "     \"comments\": {\"nodes\": []},\n" +
+            "     \"reviews\": {\"nodes\": [{\"submittedAt\": \"2022-04-01T00:00:00Z\"}]},\n" +
+            "     \"reviewThreads\": {\"pageInfo\": {\"hasNextPage\": false},\n" +
+            "                        \"nodes\": [{\"comments\": {\"nodes\": [{\"createdAt\": \"2022-05-20T00:00:00Z\"}]}}]}}\n" +
+            "  ]}}}";
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final List<JsonNode> requests = new ArrayList<>();
+    private HttpServer server;
+    private GitHubClients clients;
+
+    @BeforeEach
+    public void startStub() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/graphql", exchange -> {
+            JsonNode request = mapper.readTree(exchange.getRequestBody());
+            requests.add(request);
+            String response;
+            if (!"bearer test-token".equals(exchange.getRequestHeaders().getFirst("Authorization"))) {
+                response = "{\"errors\": [{\"message\": \"Bad credentials\"}]}";
+            } else if (request.get("variables").get("cursor").isNull()) {
+                response = PAGE_1;
+            } else {
+                response = PAGE_2;
+            }
+            byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(bytes);
+            }
+        });
+        server.start();
+
+        clients = new GitHubClients() {
+            @Override
+            String installationToken(long installationId) {
+                return installationId == 42 ? "test-token" : "wrong-token";
+            }
+        };
+        clients.appConfig = new GitHubAppRuntimeConfig();
+        clients.appConfig.instanceEndpoint = "http://localhost:" + server.getAddress().getPort();
+    }
+
+    @AfterEach
+    public void stopStub() {
+        server.stop(0);
+    }
+
+    @Test
+    public void testCandidates() throws IOException {
+        var candidates = new StalledDiscussionQuery(clients, 42)
+                .candidates("repo:foo/bar is:pr sort:updated-asc", Instant.parse("2022-05-10T00:00:00Z"));
+
+        assertEquals(2, requests.size());
+        assertEquals("repo:foo/bar is:pr sort:updated-asc", requests.get(0).get("variables").get("searchQuery").asText());
+        assertEquals("Y3Vyc29yOjI=", requests.get(1).get("variables").get("cursor").asText());
+        // #3 was updated after the given time, but last discussed before it,
+        // whereas a reply in an older thread of #9 was after it
+        assertEquals(List.of(12, 7, 5, 3), candidates.stream().map(candidate -> candidate.number).collect(Collectors.toList()));
+
+        var pr12 = candidates.get(0);
+        assertEquals(12, pr12.number);
+        assertEquals(Set.of("state: being-reviewed"), pr12.labels);
+        // The reply in the older thread is the latest review comment
+        assertEquals(Instant.parse("2022-04-26T00:00:00Z"), pr12.lastReviewComment);
+        assertEquals(Instant.parse("2022-04-20T00:00:00Z"), pr12.lastIssueComment);
+        assertEquals(Instant.parse("2022-04-25T00:00:00Z"), pr12.lastReview);
+        assertEquals(Instant.parse("2022-04-26T00:00:00Z"), pr12.lastDiscussed());
+
+        var pr7 = candidates.get(1);
+        assertEquals(7, pr7.number);
+        assertNull(pr7.lastReviewComment);
+        assertNull(pr7.lastIssueComment);
+        assertNull(pr7.lastReview);
+        // With no discussion, falls back to the update time
+        assertEquals(Instant.parse("2022-05-02T00:00:00Z"), pr7.lastDiscussed());
+
+        // Too many threads to see them all, so the update time is used
+        var pr5 = candidates.get(2);
+        assertEquals(Instant.parse("2022-05-03T00:00:00Z"), pr5.lastReviewComment);
+    }
+
+    @Test
+    public void testErrors() {
+        var query = new StalledDiscussionQuery(clients, 1);
+        assertThrows(IOException.class,
+                () -> query.candidates("repo:foo/bar is:pr sort:updated-asc", Instant.parse("2022-05-10T00:00:00Z")));
+    }
+
+    @Test
+    public void testGraphqlEndpoint() {
+        assertEquals("https://api.github.com/graphql", GitHubClients.graphqlEndpoint("https://api.github.com"));
+        assertEquals("https://ghe.example.com/api/graphql", GitHubClients.graphqlEndpoint("https://ghe.example.com/api/v3"));
+    }
+}
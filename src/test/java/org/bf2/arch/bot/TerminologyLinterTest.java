@@ -0,0 +1,80 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bf2.arch.bot;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.bf2.arch.bot.model.patch.FilePatch;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class TerminologyLinterTest {
+
+    private static List<String> findings(TerminologyLinter linter, FilePatch patch) {
+        return linter.suspectTerms(patch).stream().map(TerminologyLinter.Finding::toString).collect(Collectors.toList());
+    }
+
+    private static ArchBotConfig.SuspectTerm term(String term) {
+        return new ArchBotConfig.SuspectTerm(term, null);
+    }
+
+    @Test
+    public void testSuspectTerms() {
+        TerminologyLinter linter = TerminologyLinter.forTerms(List.of(
+                term("actors"), term("Personas"), term("he"), term("hers"), term("control plane"), term("ACTORS")));
+        assertEquals(5, linter.size());
+        FilePatch patch = FilePatch.parsePatch(
+                "@@ -1,3 +1,5 @@\n" +
+                " Context lines don't count: Actors.\n" +
+                "-Nor do removed lines: Personas.\n" +
+                "+The Actors/PERSONAS are listed.\n" +
+                " The other Control Plane.\n" +
+                "+The control  plane is not the Control\tPlane, and the actors are here.\n" +
+                "+Whole words only: these, hershey, others, factors.\n");
+        assertEquals(List.of("Actors@3", "PERSONAS@3", "Control\tPlane@5"), findings(linter, patch));
+    }
+
+    @Test
+    public void testOverlappingTerms() {
+        TerminologyLinter linter = TerminologyLinter.forTerms(List.of(
+                term("she"), term("he"), term("his"), term("hers"), term("ushers")));
+        FilePatch patch = FilePatch.parsePatch(
+                "@@ -0,0 +1,3 @@\n" +
+                "+ushers\n" +
+                "+she said it was hers\n" +
+                "+he said it was his\n");
+        assertEquals(List.of("ushers@1", "she@2", "hers@2", "he@3", "his@3"), findings(linter, patch));
+    }
+
+    @Test
+    public void testCompiledOnce() {
+        List<ArchBotConfig.SuspectTerm> terms = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            terms.add(term("term" + i));
+        }
+        TerminologyLinter linter = TerminologyLinter.forTerms(terms);
+        assertSame(linter, TerminologyLinter.forTerms(new ArrayList<>(terms)));
+        assertEquals(List.of(), findings(TerminologyLinter.forTerms(List.of()),
+                FilePatch.parsePatch("@@ -0,0 +1 @@\n+term1\n")));
+        assertEquals(List.of("term499@1", "term1@1"), findings(linter,
+                FilePatch.parsePatch("@@ -0,0 +1 @@\n+term499 term1 term5000\n")));
+    }
+}
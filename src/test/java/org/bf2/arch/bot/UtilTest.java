@@ -0,0 +1,90 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bf2.arch.bot;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.kohsuke.github.GHLabel;
+import org.kohsuke.github.GHPullRequest;
+import org.kohsuke.github.GHRepository;
+import org.mockito.InOrder;
+import org.mockito.Mockito;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class UtilTest {
+
+    private static GHLabel label(String name) {
+        var label = mock(GHLabel.class);
+        when(label.getName()).thenReturn(name);
+        return label;
+    }
+
+    @Test
+    public void testUpdateLabelsRereadsUnderLock() throws IOException {
+        var locks = new PrLocks();
+        locks.stripes = 1;
+        var repository = mock(GHRepository.class);
+        when(repository.getFullName()).thenReturn("foo/bar");
+        var pullRequest = mock(GHPullRequest.class);
+        when(pullRequest.getRepository()).thenReturn(repository);
+        when(pullRequest.getNumber()).thenReturn(42);
+        var labels = List.of(label(Labels.STATE_BEING_REVIEWED));
+        when(pullRequest.getLabels()).thenReturn(labels);
+
+        Util.updateLabels(locks, pullRequest, wanted -> {
+            // Already held by this thread, so this only checks it
+            var lock = locks.lock(PrLocks.key(repository, 42));
+            try {
+                assertTrue(lock.getHoldCount() > 1);
+            } finally {
+                lock.unlock();
+            }
+            wanted.add(Labels.NOTICE_STALLED_DISCUSSION);
+        });
+
+        InOrder order = inOrder(pullRequest);
+        // The labels are read after the PR is refreshed, and only the new label is written
+        order.verify(pullRequest).refresh();
+        order.verify(pullRequest).getLabels();
+        order.verify(pullRequest).addLabels(Labels.NOTICE_STALLED_DISCUSSION);
+        verify(pullRequest, never()).removeLabel(Mockito.anyString());
+    }
+
+    @Test
+    public void testPrNumber() {
+        assertEquals(42, Util.prNumber("https://api.github.com/repos/foo/bar/pulls/42"));
+    }
+
+    @Test
+    public void testNextLink() {
+        assertEquals("https://api.github.com/repositories/1/pulls/comments?page=2",
+                Util.nextLink("<https://api.github.com/repositories/1/pulls/comments?page=2>; rel=\"next\", "
+                        + "<https://api.github.com/repositories/1/pulls/comments?page=5>; rel=\"last\""));
+        assertNull(Util.nextLink("<https://api.github.com/repositories/1/pulls/comments?page=1>; rel=\"prev\""));
+        assertNull(Util.nextLink(null));
+    }
+}
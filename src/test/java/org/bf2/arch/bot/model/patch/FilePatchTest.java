@@ -8,6 +8,10 @@ import java.util.stream.Collectors;
 import org.junit.jupiter.api.Test;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 /*
  * Licensed to the Apache Software Foundation (ASF) under one or more
@@ -123,4 +127,158 @@ class FilePatchTest {
         assertEquals("status: \"Foo\"", list.get(1).line().line());
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testCrlf() {
+        FilePatch filePatch = FilePatch.parsePatch(
+                "@@ -1,3 +1,3 @@ tags: []\r\n" +
+                        " ---\r\n" +
+                        "\r\n" +
+                        "-status: \"Draft\"\r\n" +
+                        "+status: \"Accepted\"\r\n");
+        assertEquals(1, filePatch.hunks().size());
+        assertEquals(4, filePatch.hunks().get(0).lines().size());
+        assertEquals("---", filePatch.lineAt(1).line());
+        assertEquals(Line.Type.CONTEXT, filePatch.lineAt(2).type());
+        assertEquals("", filePatch.lineAt(2).line());
+        assertEquals("status: \"Accepted\"", filePatch.lineAt(4).line());
+        assertTrue(filePatch.linesMatching(EnumSet.of(Line.Type.ADD), Pattern.compile("^status: \"Accepted\"$"))
+                .findFirst().isPresent());
+    }
+
+    @Test
+    public void testLinesMatchingPositionsAfterFileHeader() {
+        // Positions count from the first hunk header, not from the start of the text
+        FilePatch filePatch = FilePatch.parsePatch(
+                "diff --git a/_adr/1/index.adoc b/_adr/1/index.adoc\n" +
+                        "--- a/_adr/1/index.adoc\n" +
+                        "+++ b/_adr/1/index.adoc\n" +
+                        "@@ -1,2 +1,2 @@\n" +
+                        " ---\n" +
+                        "-status: \"Draft\"\n" +
+                        "+status: \"Accepted\"\n");
+        var first = filePatch.linesMatching(EnumSet.of(Line.Type.ADD), Pattern.compile("^status: .*$")).findFirst();
+        assertEquals(3, first.get().patchLineNum());
+        assertEquals(first.get().line(), filePatch.lineAt(first.get().patchLineNum()));
+        assertEquals(List.of(3), filePatch.linesMatching(EnumSet.of(Line.Type.ADD),
+                List.of(Pattern.compile("^status: .*$"))).get(0).stream()
+                .map(FilePatch.LineMatch::patchLineNum).collect(Collectors.toList()));
+    }
+
+    @Test
+    public void testHeaderGrammar() {
+        FilePatch filePatch = FilePatch.parsePatch(
+                "diff --git a/_adr/89/index.adoc b/_adr/89/index.adoc\n" +
+                        "--- a/_adr/89/index.adoc\n" +
+                        "+++ b/_adr/89/index.adoc\n" +
+                        "@@ -1 +1 @@\n" +
+                        "----\n" +
+                        "+---\n" +
+                        "@@ -42,3 +42,3 @@ tags: []\n" +
+                        " // What are the knock-on effects if this decision is accepted?\n" +
+                        "\n" +
+                        "-// What are the knock-on effects if this decision is not accepted?\n" +
+                        "\\ No newline at end of file\n" +
+                        "+// What are the knock-on effects if this decision is not accepted?\n" +
+                        "\\ No newline at end of file");
+        assertEquals(2, filePatch.hunks().size());
+
+        Hunk hunk = filePatch.hunks().get(0);
+        assertEquals(4, hunk.hunkStartLine());
+        assertEquals(1, hunk.oldStartLine());
+        assertEquals(1, hunk.oldLength());
+        assertEquals(1, hunk.newStartLine());
+        assertEquals(1, hunk.newLength());
+        // A removed "---" line is not mistaken for a file header
+        assertEquals(2, hunk.lines().size());
+        assertEquals(Line.Type.REMOVE, hunk.lines().get(0).type());
+        assertEquals("---", hunk.lines().get(0).line());
+        assertEquals(Line.Type.ADD, hunk.lines().get(1).type());
+
+        hunk = filePatch.hunks().get(1);
+        assertEquals(7, hunk.hunkStartLine());
+        assertEquals(42, hunk.oldStartLine());
+        assertEquals(3, hunk.oldLength());
+        assertEquals(4, hunk.lines().size());
+        // An empty line is an empty context line
+        assertEquals(Line.Type.CONTEXT, hunk.lines().get(1).type());
+        assertEquals("", hunk.lines().get(1).line());
+        assertEquals(Line.Type.REMOVE, hunk.lines().get(2).type());
+        assertTrue(hunk.lines().get(2).noNewlineAtEndOfFile());
+        assertEquals(Line.Type.ADD, hunk.lines().get(3).type());
+        assertEquals("// What are the knock-on effects if this decision is not accepted?", hunk.lines().get(3).line());
+        assertTrue(hunk.lines().get(3).noNewlineAtEndOfFile());
+        assertFalse(hunk.lines().get(0).noNewlineAtEndOfFile());
+    }
+
+    @Test
+    public void testMalformedHeader() {
+        var e = assertThrows(IllegalStateException.class, () -> FilePatch.parsePatch(
+                "@@ -1,7 +2,7 @@\n" +
+                        " ---\n" +
+                        "@@ -x +2 @@\n"));
+        assertEquals("Malformed hunk header on line 3 of patch: @@ -x +2 @@", e.getMessage());
+        assertThrows(IllegalStateException.class, () -> FilePatch.parsePatch("@@ -1,7 +2,7\n"));
+    }
+
+    @Test
+    public void testPositionIndex() {
+        FilePatch filePatch = FilePatch.parsePatch(
+                "@@ -1,4 +1,4 @@\n" +
+                        " ---\n" +
+                        "-status: \"Draft\"\n" +
+                        "+status: \"Accepted\"\n" +
+                        " authors:\n" +
+                        " ---\n" +
+                        "@@ -42,2 +42,3 @@ tags: []\n" +
+                        " Hello\n" +
+                        "+new\n" +
+                        " world\n");
+        // New file lines
+        assertEquals(1, filePatch.positionOfNewLine(1));
+        assertEquals(3, filePatch.positionOfNewLine(2));
+        assertEquals(5, filePatch.positionOfNewLine(4));
+        assertEquals(-1, filePatch.positionOfNewLine(5));
+        assertEquals(7, filePatch.positionOfNewLine(42));
+        assertEquals(8, filePatch.positionOfNewLine(43));
+        assertEquals(9, filePatch.positionOfNewLine(44));
+        assertEquals(-1, filePatch.positionOfNewLine(45));
+        assertEquals(-1, filePatch.positionOfNewLine(0));
+        // Old file lines
+        assertEquals(2, filePatch.positionOfOldLine(2));
+        assertEquals(4, filePatch.positionOfOldLine(3));
+        assertEquals(9, filePatch.positionOfOldLine(43));
+        assertEquals(-1, filePatch.positionOfOldLine(44));
+        // And back
+        assertEquals(2, filePatch.newLineAt(3));
+        assertEquals(-1, filePatch.newLineAt(2));
+        assertEquals(-1, filePatch.newLineAt(6));
+        assertEquals(2, filePatch.oldLineAt(2));
+        assertEquals(-1, filePatch.oldLineAt(8));
+        assertEquals(-1, filePatch.oldLineAt(100));
+        assertEquals("new", filePatch.lineAt(8).line());
+        assertNull(filePatch.lineAt(6));
+        assertEquals(10, filePatch.positions());
+        assertNull(filePatch.lineAt(10));
+    }
+
+    @Test
+    public void testLinesMatchingMultiplePatterns() {
+        FilePatch filePatch = FilePatch.parsePatch(
+                "@@ -1,4 +1,4 @@\n" +
+                        " ---\n" +
+                        "-status: \"Draft\"\n" +
+                        "+status: \"Accepted\"\n" +
+                        "+title: \"Foo\"\n" +
+                        " ---\n");
+        var matches = filePatch.linesMatching(EnumSet.of(Line.Type.ADD, Line.Type.CONTEXT),
+                List.of(Pattern.compile("^status: \"(.*)\"$"), Pattern.compile("^---$"), Pattern.compile("nope")));
+        assertEquals(3, matches.size());
+        assertEquals(1, matches.get(0).size());
+        assertEquals(3, matches.get(0).get(0).patchLineNum());
+        assertEquals("Accepted", matches.get(0).get(0).matcher().group(1));
+        assertEquals(2, matches.get(1).size());
+        assertEquals(1, matches.get(1).get(0).patchLineNum());
+        assertEquals(5, matches.get(1).get(1).patchLineNum());
+        assertEquals(List.of(), matches.get(2));
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bf2.arch.bot.model.record;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class RecordPathsTest {
+
+    @Test
+    public void testRecordOf() {
+        assertEquals(new RecordId(RecordType.ADR, 12), RecordPaths.recordOf("_adr/12/index.adoc"));
+        assertEquals(new RecordId(RecordType.AP, 0), RecordPaths.recordOf("_ap/0/index.adoc"));
+        assertEquals(new RecordId(RecordType.PADR, 3), RecordPaths.recordOf("_padr/003/index.adoc"));
+        assertEquals(new RecordId(RecordType.PADR, 2000), RecordPaths.recordOf("_padr/2000/index.adoc"));
+
+        assertNull(RecordPaths.recordOf("README.md"));
+        assertNull(RecordPaths.recordOf("/_adr/12/index.adoc"));
+        assertNull(RecordPaths.recordOf("_adrs/12/index.adoc"));
+        assertNull(RecordPaths.recordOf("adr/12/index.adoc"));
+        assertNull(RecordPaths.recordOf("_adr//index.adoc"));
+        assertNull(RecordPaths.recordOf("_adr/index.adoc"));
+        assertNull(RecordPaths.recordOf("_adr/1a/index.adoc"));
+        assertNull(RecordPaths.recordOf("_adr/12/diagram.png"));
+        assertNull(RecordPaths.recordOf("_adr/12/index.adoc.orig"));
+        assertNull(RecordPaths.recordOf("_adr/12/13/index.adoc"));
+        assertNull(RecordPaths.recordOf("_adr/99999999999/index.adoc"));
+
+        assertEquals(new RecordId(RecordType.ADR, 12), RecordType.ADR.recordOf("_adr/12/index.adoc"));
+        assertNull(RecordType.AP.recordOf("_adr/12/index.adoc"));
+    }
+
+    @Test
+    public void testCached() {
+        RecordId recordId = RecordPaths.recordOf("_adr/12/index.adoc");
+        assertSame(recordId, RecordPaths.recordOf("_adr/12/index.adoc"));
+        assertSame(recordId, RecordId.of(RecordType.ADR, 12));
+        assertEquals("_adr/12/index.adoc", recordId.repoPath());
+        assertSame(recordId.repoPath(), recordId.repoPath());
+    }
+}